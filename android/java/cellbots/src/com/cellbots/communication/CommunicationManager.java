@@ -60,6 +60,24 @@ public class CommunicationManager {
         mChannelMap.put(name, new CustomHttpCommChannel(receivingUrl, sendingUrl, listener, name));
     }
 
+    /**
+     * Add a new HTTP relay channel whose server can hold polls open until
+     * there is a new message.
+     * 
+     * @param name Name of the channel.
+     * @param receivingUrl Receive message by polling this URL.
+     * @param sendingUrl Send messages by PUTing to this URL.
+     * @param listener The listener to received callback for this HTTP channel.
+     * @param longPollWait Duration in ms the server may hold each poll open.
+     */
+    public void addHttpChannel(String name, String receivingUrl, String sendingUrl,
+            CommMessageListener listener, long longPollWait) {
+        CustomHttpCommChannel channel =
+                new CustomHttpCommChannel(receivingUrl, sendingUrl, listener, name);
+        channel.setLongPollWait(longPollWait);
+        mChannelMap.put(name, channel);
+    }
+
     /**
      * Add a new XMPP channel.
      * 
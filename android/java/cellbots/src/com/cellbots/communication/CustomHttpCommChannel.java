@@ -26,8 +26,10 @@ import org.apache.http.client.ClientProtocolException;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
@@ -35,6 +37,16 @@ import java.net.URLConnection;
 /**
  * This class sends and reads text from the specified URLs.
  *
+ * Polls are conditional GETs: the ETag and Last-Modified of the last answer
+ * are sent back as If-None-Match and If-Modified-Since, so a server that
+ * supports them answers an unchanged command with an empty 304. Bodies are
+ * read to the end and closed so the keep-alive connection is reused for the
+ * next poll. With {@link #setLongPollWait(long)} the request also asks the
+ * server to hold it open, with a WAIT parameter as CellServ uses, until there
+ * is something new. After a new command the next poll goes out at once;
+ * after an unchanged one it waits out what is left of the polling interval,
+ * so servers that answer at once are still polled at the old rate.
+ *
  * @author chaitanyag@google.com (Chaitanya Gharpure)
  * @author clchen@google.com (Charles L. Chen)
  */
@@ -62,6 +74,19 @@ public class CustomHttpCommChannel extends AbstractCommChannel {
     
     private Thread listenThread;
 
+    /** Validators of the last answer, sent back on the next poll. */
+    private String etag;
+
+    private String lastModified;
+
+    /** How long to ask the server to hold a poll, in ms; 0 to not ask. */
+    private volatile long longPollWait = 0;
+
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    /** Time allowed on top of the long poll wait for the answer to arrive. */
+    private static final int READ_TIMEOUT = 10000;
+
     public CustomHttpCommChannel(String receivingUrl, String sendingUrl,
             CommMessageListener listener, String name) {
         super(name);
@@ -110,6 +135,16 @@ public class CustomHttpCommChannel extends AbstractCommChannel {
                 }).start();
     }
     
+    /**
+     * Asks the server to hold each poll open for up to waitMs until the
+     * command changes. Takes effect from the next poll.
+     *
+     * @param waitMs How long the server may hold a poll, or 0 to not ask.
+     */
+    public void setLongPollWait(long waitMs) {
+        longPollWait = Math.max(waitMs, 0);
+    }
+
     @Override
     public void listenForMessages(final long waitTimeBetweenPolling, final boolean returnStream) {
         if (inUrl == null || doDisconnect) return;
@@ -118,54 +153,26 @@ public class CustomHttpCommChannel extends AbstractCommChannel {
             @Override
             public void run() {
                 Looper.prepare();
+                boolean changed = true;
                 while (!stopReading) {
+                    long start = System.currentTimeMillis();
                     try {
-                        if (waitTimeBetweenPolling >= 0)
-                            Thread.sleep(waitTimeBetweenPolling);
-                        if (commandUrl == null) {
-                            commandUrl = new URL(inUrl);
-                        }
-                        URLConnection cn = commandUrl.openConnection();
-                        cn.connect();
-                        if (returnStream) {
-                            if (mMessageListener != null) {
-                                mMessageListener.onMessage(new CommMessage(null,
-                                        cn.getInputStream(), null, null, null, mChannelName,
-                                        CommunicationManager.CHANNEL_HTTP));
-                            }
-                        } else {
-                            BufferedReader rd = new BufferedReader(
-                                    new InputStreamReader(cn.getInputStream()), 1024);
-                            String cmd = rd.readLine();
-                            if (cmd != null && !cmd.equals(prevCmd) && mMessageListener != null) {
-                                prevCmd = cmd;
-                                // TODO (chaitanyag): Change this after we come
-                                // up with a better protocol. The first (space
-                                // separated) token in the command string could
-                                // be a timestamp. This is useful if the same
-                                // commands are sent back to back. For example,
-                                // the controller sends consecutive "hu"
-                                // (head up) commands to tilt the head up in
-                                // small increments.
-                                if (cmd.indexOf(' ') >= 0) {
-                                    try {
-                                        Long.parseLong(cmd.substring(0, cmd.indexOf(' ')));
-                                        cmd = cmd.substring(cmd.indexOf(' ') + 1);
-                                    } catch (NumberFormatException e) {
-                                    }
-                                }
-                                mMessageListener.onMessage(new CommMessage(cmd, null, null, null,
-                                        null, mChannelName, CommunicationManager.CHANNEL_HTTP));
-                            }
-                        }
+                        changed = poll(returnStream);
                         if (waitTimeBetweenPolling < 0) {   // Do not repeat this loop
                             break;
                         }
                     } catch (MalformedURLException e) {
                         Log.e(TAG, "Error processing URL: " + e.getMessage());
+                        changed = false;
                     } catch (IOException e) {
                         Log.e(TAG, "Error reading command from URL: " + commandUrl + " : "
                                 + e.getMessage());
+                        changed = false;
+                    }
+                    try {
+                        long wait = waitTimeBetweenPolling - (System.currentTimeMillis() - start);
+                        if (!changed && wait > 0)
+                            Thread.sleep(wait);
                     } catch (InterruptedException e) {
                         e.printStackTrace();
                     }
@@ -175,6 +182,112 @@ public class CustomHttpCommChannel extends AbstractCommChannel {
         listenThread.start();
     }
 
+    /**
+     * Fetches the command URL once and passes on what is new.
+     *
+     * @return true if the server answered with something new.
+     */
+    private boolean poll(boolean returnStream) throws IOException {
+        long wait = longPollWait;
+        if (commandUrl == null) {
+            commandUrl = new URL(inUrl);
+        }
+        URL url = commandUrl;
+        if (wait > 0) {
+            url = new URL(inUrl + (inUrl.indexOf('?') < 0 ? '?' : '&') + "WAIT=" + wait);
+        }
+        URLConnection cn = url.openConnection();
+        cn.setUseCaches(false);
+        cn.setConnectTimeout(CONNECT_TIMEOUT);
+        cn.setReadTimeout((int) Math.min(wait + READ_TIMEOUT, Integer.MAX_VALUE));
+        if (etag != null)
+            cn.setRequestProperty("If-None-Match", etag);
+        if (lastModified != null)
+            cn.setRequestProperty("If-Modified-Since", lastModified);
+        cn.connect();
+
+        if (cn instanceof HttpURLConnection) {
+            int status = ((HttpURLConnection) cn).getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                drain(cn.getInputStream());
+                return false;
+            }
+            if (status >= 400) {
+                drain(((HttpURLConnection) cn).getErrorStream());
+                throw new IOException("HTTP " + status);
+            }
+        }
+        etag = cn.getHeaderField("ETag");
+        lastModified = cn.getHeaderField("Last-Modified");
+
+        if (returnStream) {
+            if (mMessageListener != null) {
+                mMessageListener.onMessage(new CommMessage(null,
+                        cn.getInputStream(), null, null, null, mChannelName,
+                        CommunicationManager.CHANNEL_HTTP));
+            } else {
+                drain(cn.getInputStream());
+            }
+            return true;
+        }
+
+        String cmd;
+        BufferedReader rd = new BufferedReader(
+                new InputStreamReader(cn.getInputStream()), 1024);
+        try {
+            cmd = rd.readLine();
+            // Read to the end so the connection can be reused.
+            while (rd.read() >= 0) {
+            }
+        } finally {
+            rd.close();
+        }
+        if (cmd == null || cmd.equals(prevCmd))
+            return false;
+        prevCmd = cmd;
+        if (mMessageListener != null) {
+            // TODO (chaitanyag): Change this after we come
+            // up with a better protocol. The first (space
+            // separated) token in the command string could
+            // be a timestamp. This is useful if the same
+            // commands are sent back to back. For example,
+            // the controller sends consecutive "hu"
+            // (head up) commands to tilt the head up in
+            // small increments.
+            if (cmd.indexOf(' ') >= 0) {
+                try {
+                    Long.parseLong(cmd.substring(0, cmd.indexOf(' ')));
+                    cmd = cmd.substring(cmd.indexOf(' ') + 1);
+                } catch (NumberFormatException e) {
+                }
+            }
+            mMessageListener.onMessage(new CommMessage(cmd, null, null, null,
+                    null, mChannelName, CommunicationManager.CHANNEL_HTTP));
+        }
+        return true;
+    }
+
+    /**
+     * Reads a response body to the end and closes it, which hands the
+     * connection back for reuse.
+     */
+    private static void drain(InputStream in) {
+        if (in == null)
+            return;
+        byte[] buf = new byte[256];
+        try {
+            while (in.read(buf) >= 0) {
+            }
+        } catch (IOException e) {
+            // the connection will not be reused
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
     @Override
     public void disconnect() {
         doDisconnect = true;
@@ -34,6 +34,13 @@ import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 
+/**
+ * Owns the Bluetooth connection to the robot. Commands arrive on this
+ * thread's handler and are queued on a {@link BTLink}, whose own threads do
+ * the blocking reads and writes, so a slow radio never holds up the handler
+ * and lines from the robot are passed on as soon as they arrive rather than
+ * when the next command happens to be sent.
+ */
 class BTCommThread extends Thread
 {
   private BluetoothSocket  socket;
@@ -42,30 +49,17 @@ class BTCommThread extends Thread
 
   private OutputStream     ostream;
 
-  private BluetoothAdapter adapter;
-
-  StringBuffer             sb;
+  private volatile BTLink  link;
 
-  byte[]                   prevBuffer;                         // buffer store
-                                                                // for
+  private BluetoothAdapter adapter;
 
-  // the stream
   BluetoothDevice          device;
 
-  int                      bytes;                              // bytes
-                                                                // returned
-
-  // from read()
-
   RobotStateHandler        state;
 
   public Handler           handler;
 
-  public StringBuffer      readBuffer;
-
-  public static String     TAG                = "BtCommThread";
-
-  private Boolean          lastMsgWasAllZeros = false;
+  public static String     TAG = "BtCommThread";
 
   public BTCommThread(BluetoothAdapter adapter, RobotStateHandler rState)
   {
@@ -73,12 +67,6 @@ class BTCommThread extends Thread
     this.state = rState;
     setName("BlueTooth Com");
 
-    sb = new StringBuffer();
-
-    prevBuffer = new byte[128];
-
-    readBuffer = new StringBuffer();
-
     if (adapter == null)
       return;
 
@@ -147,6 +135,9 @@ class BTCommThread extends Thread
     istream = tmpIn;
     ostream = tmpOut;
 
+    LinkListener listener = new LinkListener();
+    link = listener.owner = new BTLink(istream, ostream, listener);
+    link.start();
   }
 
   public boolean connected()
@@ -167,51 +158,32 @@ class BTCommThread extends Thread
       @Override
       public void handleMessage(Message msg)
       {
+        String command = null;
+        if (msg.obj instanceof ControllerState)
+        {
+          command = ( (ControllerState) msg.obj ).getTxtCommand();
+        }
+        else if (msg.obj instanceof String)
+        {
+          command = (String) msg.obj;
+        }
 
-        if (connected())
+        if (!connected())
         {
+          connect();
+        }
 
-          if (msg.obj instanceof ControllerState)
+        BTLink current = link;
+        if (command != null && current != null)
+        {
+          try
           {
-            ControllerState cs = ( (ControllerState) msg.obj );
-
-            Log.d(TAG, "Handeling Message" + msg.obj);
-            byte[] bytes;
-            try
-            {
-              bytes = cs.getTxtCommand().getBytes("ASCI");
-              write(bytes);
-            }
-            catch (UnsupportedEncodingException e)
-            {
-              Log.e(TAG, "could not write txt command", e);
-            }
-
+            current.send(command.getBytes("US-ASCII"));
           }
-
-          if (msg.obj instanceof String)
+          catch (UnsupportedEncodingException e)
           {
-            String s = (String) msg.obj;
-
-            Log.d(TAG, "Handeling String" + s);
-            byte[] bytes;
-            try
-            {
-              bytes = s.getBytes("ASCI");
-              write(bytes);
-            }
-            catch (UnsupportedEncodingException e)
-            {
-              Log.e(TAG, "could not write txt command", e);
-            }
-
+            Log.e(TAG, "could not write txt command", e);
           }
-
-          read();
-        }
-        else
-        {
-          connect();
         }
       }
     };
@@ -222,64 +194,38 @@ class BTCommThread extends Thread
 
   }
 
-  private void write(byte[] bytes)
+  /**
+   * Passes lines on to the robot state and drops the connection when its own
+   * link fails, so the next command reconnects. The socket is only touched on
+   * the handler thread.
+   */
+  private class LinkListener implements BTLink.Listener
   {
-    if (ostream != null)
-    {
-      try
-      {
-        Log.d(TAG, "Writing bytes :" + bytes.length);
-        ostream.write(bytes);
-        prevBuffer = bytes;
-      }
-      catch (IOException e)
-      {
-        Log.e(TAG, "Error duing write", e);
+    volatile BTLink owner;
 
-        this.disconnect();
-
-        state.onBtDataError();
-        // java.io.IOException: Transport endpoint is not connected
-
-      }
+    public void onLine(String line)
+    {
+      Log.i(TAG, "got bt data:" + line);
+      state.onBtDataRecive(line);
     }
 
-  }
-
-  private void read()
-  {
-    if (istream != null)
+    public void onError(IOException e)
     {
-      try
+      Log.e(TAG, "bluetooth link failed", e);
+      if (handler != null)
       {
-        int inChar;
-        while (istream.available() > 0)
+        handler.post(new Runnable()
         {
-
-          inChar = istream.read();
-
-          if (inChar != 13 && inChar != 10)// do not write carriage returns or
-                                           // newlines to the buffer
-          {
-            readBuffer.append((char) inChar);
-          }
-
-          if (inChar == 10)// look for newlines
+          public void run()
           {
-            String tmp = readBuffer.toString();
-            Log.i(TAG, "got bt data:" + tmp);
-            readBuffer.delete(0, readBuffer.length());
-            state.onBtDataRecive(tmp);
+            if (link == owner)
+            {
+              disconnect();
+            }
           }
-        }
-      }
-
-      catch (Exception e)
-      {
-        Log.e(TAG, "exception during read", e);
-        this.disconnect();
-        state.onBtDataError();
+        });
       }
+      state.onBtDataError();
     }
   }
 
@@ -287,6 +233,13 @@ class BTCommThread extends Thread
   {
     Log.i(TAG, "quit callled");
 
+    BTLink oldLink = link;
+    link = null;
+    if (oldLink != null)
+    {
+      oldLink.close();
+    }
+
     try
     {
       istream.close();
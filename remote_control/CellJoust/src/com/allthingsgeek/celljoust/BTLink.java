@@ -0,0 +1,282 @@
+package com.allthingsgeek.celljoust;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+
+/**
+ * Line-oriented link to the robot's serial port, over any pair of streams: a
+ * Bluetooth socket on the phone, a {@link LoopbackStream} in tests.
+ *
+ * A reader thread blocks in bulk reads into one reusable buffer and hands
+ * each complete line, without its CR/LF, to the listener as soon as it
+ * arrives. A writer thread drains a bounded queue of commands, writing all
+ * that are waiting in one go. A drive command queued behind another drive
+ * command that has not gone out yet replaces it, since the robot would only
+ * act on the last one anyway; if the queue still fills up, the oldest command
+ * is dropped.
+ */
+class BTLink
+{
+  /** Callbacks, made on the reader thread or the writer thread. */
+  interface Listener
+  {
+    void onLine(String line);
+
+    /** The link is dead after this; no more callbacks follow. */
+    void onError(IOException e);
+  }
+
+  static final int               QUEUE_CAPACITY = 32;
+
+  static final int               MAX_LINE       = 256;
+
+  private final InputStream      in;
+
+  private final OutputStream     out;
+
+  private final Listener         listener;
+
+  // guarded by itself
+  private final LinkedList<byte[]> queue        = new LinkedList<byte[]>();
+
+  private volatile boolean       closed;
+
+  private volatile long          linesRead;
+
+  private volatile long          bytesWritten;
+
+  private volatile long          coalescedCommands;
+
+  private volatile long          droppedCommands;
+
+  private final Thread           reader;
+
+  private final Thread           writer;
+
+  BTLink(InputStream in, OutputStream out, Listener listener)
+  {
+    this.in = in;
+    this.out = out;
+    this.listener = listener;
+    reader = new Thread("BT reader")
+    {
+      public void run()
+      {
+        readLoop();
+      }
+    };
+    writer = new Thread("BT writer")
+    {
+      public void run()
+      {
+        writeLoop();
+      }
+    };
+    reader.setDaemon(true);
+    writer.setDaemon(true);
+  }
+
+  void start()
+  {
+    reader.start();
+    writer.start();
+  }
+
+  /**
+   * Queues a command for the robot without waiting for it to be written.
+   */
+  void send(byte[] command)
+  {
+    synchronized (queue)
+    {
+      if (isDriveCommand(command) && !queue.isEmpty() && isDriveCommand(queue.getLast()))
+      {
+        queue.removeLast();
+        coalescedCommands++;
+      }
+      else if (queue.size() >= QUEUE_CAPACITY)
+      {
+        queue.removeFirst();
+        droppedCommands++;
+      }
+      queue.add(command);
+      queue.notify();
+    }
+  }
+
+  /**
+   * Stops both threads. The streams are left to their owner to close, which
+   * is what unblocks a read in progress.
+   */
+  void close()
+  {
+    closed = true;
+    synchronized (queue)
+    {
+      queue.clear();
+      queue.notify();
+    }
+    reader.interrupt();
+  }
+
+  long getLinesRead()
+  {
+    return linesRead;
+  }
+
+  long getBytesWritten()
+  {
+    return bytesWritten;
+  }
+
+  /**
+   * @return the number of drive commands replaced by a newer one before they
+   *         were written
+   */
+  long getCoalescedCommandCount()
+  {
+    return coalescedCommands;
+  }
+
+  /**
+   * @return the number of commands dropped because the queue was full
+   */
+  long getDroppedCommandCount()
+  {
+    return droppedCommands;
+  }
+
+  /**
+   * @return true for the one-letter movement commands Movement sends, such as
+   *         "f\n"; speed steps and text commands are never replaced
+   */
+  static boolean isDriveCommand(byte[] command)
+  {
+    if (command.length != 2 || command[1] != '\n')
+    {
+      return false;
+    }
+    switch (command[0])
+    {
+      case 'f':
+      case 'b':
+      case 'l':
+      case 'r':
+      case 's':
+        return true;
+    }
+    return false;
+  }
+
+  private void writeLoop()
+  {
+    byte[] batch = new byte[64];
+    try
+    {
+      while (true)
+      {
+        int n = 0;
+        synchronized (queue)
+        {
+          while (queue.isEmpty() && !closed)
+          {
+            queue.wait();
+          }
+          if (closed)
+          {
+            return;
+          }
+          while (!queue.isEmpty())
+          {
+            byte[] command = queue.removeFirst();
+            if (n + command.length > batch.length)
+            {
+              byte[] bigger = new byte[Math.max(batch.length * 2, n + command.length)];
+              System.arraycopy(batch, 0, bigger, 0, n);
+              batch = bigger;
+            }
+            System.arraycopy(command, 0, batch, n, command.length);
+            n += command.length;
+          }
+        }
+        out.write(batch, 0, n);
+        out.flush();
+        bytesWritten += n;
+      }
+    }
+    catch (InterruptedException e)
+    {
+      // closing
+    }
+    catch (IOException e)
+    {
+      fail(e);
+    }
+  }
+
+  private void readLoop()
+  {
+    byte[] buf = new byte[MAX_LINE];
+    int end = 0;
+    try
+    {
+      while (!closed)
+      {
+        int n = in.read(buf, end, buf.length - end);
+        if (n < 0)
+        {
+          throw new IOException("end of stream");
+        }
+        int start = 0;
+        for (int i = end; i < end + n; i++)
+        {
+          if (buf[i] == '\n')
+          {
+            deliver(buf, start, i);
+            start = i + 1;
+          }
+        }
+        end += n;
+        if (start == 0 && end == buf.length)
+        {
+          // no newline in a whole buffer: pass it on rather than stall
+          deliver(buf, 0, end);
+          start = end;
+        }
+        if (start > 0)
+        {
+          System.arraycopy(buf, start, buf, 0, end - start);
+          end -= start;
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      fail(e);
+    }
+  }
+
+  @SuppressWarnings("deprecation")
+  private void deliver(byte[] buf, int start, int end)
+  {
+    if (end > start && buf[end - 1] == '\r')
+    {
+      end--;
+    }
+    linesRead++;
+    // the robot talks ASCII, so the high byte is always 0; this constructor
+    // skips the charset decoder
+    listener.onLine(new String(buf, 0, start, end - start));
+  }
+
+  private void fail(IOException e)
+  {
+    if (!closed)
+    {
+      closed = true;
+      listener.onError(e);
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package com.allthingsgeek.celljoust;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stands in for a Bluetooth serial link: what is written to
+ * {@link #getOutputStream()} can be read back from {@link #getInputStream()},
+ * as if the robot echoed every byte. It holds up to capacity bytes, so a
+ * writer can get ahead of the reader only as far as a real link's buffers
+ * would let it. Used to measure BTLink throughput and latency without a radio.
+ */
+class LoopbackStream
+{
+  private final byte[]       ring;
+
+  // guarded by this
+  private int                head;
+
+  private int                size;
+
+  private boolean            closed;
+
+  private final InputStream  in  = new InputStream()
+                                 {
+                                   public int read() throws IOException
+                                   {
+                                     byte[] one = new byte[1];
+                                     return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+                                   }
+
+                                   public int read(byte[] b, int off, int len) throws IOException
+                                   {
+                                     return take(b, off, len);
+                                   }
+
+                                   public int available()
+                                   {
+                                     synchronized (LoopbackStream.this)
+                                     {
+                                       return size;
+                                     }
+                                   }
+
+                                   public void close()
+                                   {
+                                     LoopbackStream.this.close();
+                                   }
+                                 };
+
+  private final OutputStream out = new OutputStream()
+                                 {
+                                   public void write(int b) throws IOException
+                                   {
+                                     write(new byte[] { (byte) b }, 0, 1);
+                                   }
+
+                                   public void write(byte[] b, int off, int len) throws IOException
+                                   {
+                                     put(b, off, len);
+                                   }
+
+                                   public void close()
+                                   {
+                                     LoopbackStream.this.close();
+                                   }
+                                 };
+
+  LoopbackStream(int capacity)
+  {
+    ring = new byte[capacity];
+  }
+
+  InputStream getInputStream()
+  {
+    return in;
+  }
+
+  OutputStream getOutputStream()
+  {
+    return out;
+  }
+
+  /**
+   * Ends the stream: readers get end of stream once it is drained, and
+   * writers an IOException.
+   */
+  synchronized void close()
+  {
+    closed = true;
+    notifyAll();
+  }
+
+  private synchronized void put(byte[] b, int off, int len) throws IOException
+  {
+    while (len > 0)
+    {
+      while (size == ring.length && !closed)
+      {
+        waitQuietly();
+      }
+      if (closed)
+      {
+        throw new IOException("loopback closed");
+      }
+      int tail = (head + size) % ring.length;
+      int n = Math.min(len, Math.min(ring.length - size, ring.length - tail));
+      System.arraycopy(b, off, ring, tail, n);
+      size += n;
+      off += n;
+      len -= n;
+      notifyAll();
+    }
+  }
+
+  private synchronized int take(byte[] b, int off, int len) throws IOException
+  {
+    if (len == 0)
+    {
+      return 0;
+    }
+    while (size == 0 && !closed)
+    {
+      waitQuietly();
+    }
+    if (size == 0)
+    {
+      return -1;
+    }
+    int n = Math.min(len, Math.min(size, ring.length - head));
+    System.arraycopy(ring, head, b, off, n);
+    head = (head + n) % ring.length;
+    size -= n;
+    notifyAll();
+    return n;
+  }
+
+  private void waitQuietly() throws IOException
+  {
+    try
+    {
+      wait();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted");
+    }
+  }
+}
@@ -34,12 +34,11 @@ package com.allthingsgeek.celljoust;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
 import com.allthingsgeek.celljoust.R;
 import com.cellbots.CellbotProtos.AudioVideoFrame;
 import com.cellbots.CellbotProtos.PhoneState;
@@ -55,6 +54,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import android.graphics.YuvImage;
 import android.hardware.Camera;
@@ -67,6 +67,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.Menu;
@@ -98,28 +99,23 @@ public class MainActivity extends Activity implements Callback
 
   // private HttpState mHttpState;
 
-  private Rect                  r;
-
   private int                   previewHeight        = 0;
 
   private int                   previewWidth         = 0;
 
   private int                   previewFormat        = 0;
-  
-  //how much to crop the edges
-  private int                   previewShrink        = 0;
-  
 
+  // starting JPEG quality; the controller adjusts it to the uplink
   private int                   jpegCompressionLevel = 20;
 
-  private byte[]                mCallbackBuffer;
+  private VideoQualityController videoQuality;
 
   byte[]                        buff;
 
-  private ByteArrayOutputStream out;
-
   private ConversionWorker      convWorker;
 
+  private UploadWorker          uploadWorker;
+
   public static SensorManager   sensorManager;
 
   RobotStateHandler             state;
@@ -152,8 +148,6 @@ public class MainActivity extends Activity implements Callback
 
     mTorchMode = false;
 
-    out = new ByteArrayOutputStream();
-
     setContentView(R.layout.main);
 
     if (sensorManager == null)
@@ -183,6 +177,21 @@ public class MainActivity extends Activity implements Callback
     noise.setOffsetPulsePercent(settings.getInt("servo4Percent", 50), 3);
     mover.setOffset(settings.getInt("wheelOffset", 0));
     RobotStateHandler.ROBOT_ID = settings.getString("ROBOT_ID", RobotStateHandler.ROBOT_ID);
+    RobotStateHandler.STATE_BATCH_MS = settings.getInt("STATE_BATCH_MS", RobotStateHandler.STATE_BATCH_MS);
+    RobotStateHandler.STATE_BATCH_SIZE = settings.getInt("STATE_BATCH_SIZE", RobotStateHandler.STATE_BATCH_SIZE);
+    SensorListenerImpl.ACCEL_INTERVAL_MS = settings.getInt("ACCEL_INTERVAL_MS", SensorListenerImpl.ACCEL_INTERVAL_MS);
+    SensorListenerImpl.ACCEL_DEADBAND = settings.getFloat("ACCEL_DEADBAND", SensorListenerImpl.ACCEL_DEADBAND);
+    SensorListenerImpl.COMPASS_INTERVAL_MS = settings.getInt("COMPASS_INTERVAL_MS",
+        SensorListenerImpl.COMPASS_INTERVAL_MS);
+    SensorListenerImpl.COMPASS_DEADBAND = settings.getFloat("COMPASS_DEADBAND", SensorListenerImpl.COMPASS_DEADBAND);
+    SensorListenerImpl.ORIENTATION_INTERVAL_MS = settings.getInt("ORIENTATION_INTERVAL_MS",
+        SensorListenerImpl.ORIENTATION_INTERVAL_MS);
+    SensorListenerImpl.ORIENTATION_DEADBAND = settings.getFloat("ORIENTATION_DEADBAND",
+        SensorListenerImpl.ORIENTATION_DEADBAND);
+    SensorListenerImpl.LIGHT_INTERVAL_MS = settings.getInt("LIGHT_INTERVAL_MS", SensorListenerImpl.LIGHT_INTERVAL_MS);
+    SensorListenerImpl.LIGHT_DEADBAND = settings.getFloat("LIGHT_DEADBAND", SensorListenerImpl.LIGHT_DEADBAND);
+    SensorListenerImpl.MAX_SILENCE_MS = settings.getInt("MAX_SILENCE_MS", SensorListenerImpl.MAX_SILENCE_MS);
+    SensorListenerImpl.FULL_REFRESH_MS = settings.getInt("FULL_REFRESH_MS", SensorListenerImpl.FULL_REFRESH_MS);
 
   }
 
@@ -213,7 +222,9 @@ public class MainActivity extends Activity implements Callback
   {
     Log.d(TAG, "startListening called");
 
-    convWorker = new ConversionWorker();
+    videoQuality = new VideoQualityController(jpegCompressionLevel);
+    uploadWorker = new UploadWorker();
+    convWorker = new ConversionWorker(uploadWorker);
 
     if (state == null)
     {
@@ -277,6 +288,7 @@ public class MainActivity extends Activity implements Callback
     Log.d(TAG, "stopListening called");
 
     convWorker.kill();
+    uploadWorker.kill();
 
     try
     {
@@ -380,20 +392,23 @@ public class MainActivity extends Activity implements Callback
     previewWidth = params.getPreviewSize().width;
     previewFormat = params.getPreviewFormat();
 
-    // Crop the edges of the picture to reduce the image size
-    r = new Rect(previewShrink, previewShrink, previewWidth - previewShrink, previewHeight - previewShrink);
-
-    mCallbackBuffer = new byte[497664];
+    // two buffers, so the camera fills one while the other is encoded
+    int frameBytes = previewWidth * previewHeight * ImageFormat.getBitsPerPixel(previewFormat) / 8;
 
     mCamera.setParameters(params);
     mCamera.setPreviewCallbackWithBuffer(new PreviewCallback()
     {
-      public void onPreviewFrame(byte[] imageData, Camera arg1)
+      public void onPreviewFrame(byte[] imageData, Camera camera)
       {
-        convWorker.nextFrame(imageData);
+        if (!convWorker.nextFrame(imageData))
+        {
+          // busy: drop it and let the camera have the buffer back
+          camera.addCallbackBuffer(imageData);
+        }
       }
     });
-    mCamera.addCallbackBuffer(mCallbackBuffer);
+    mCamera.addCallbackBuffer(new byte[frameBytes]);
+    mCamera.addCallbackBuffer(new byte[frameBytes]);
     mCamera.startPreview();
     setTorchMode(mTorchMode);
   }
@@ -416,146 +431,220 @@ public class MainActivity extends Activity implements Callback
     }
   }
 
+  /**
+   * Encode stage: compresses preview frames to JPEG at the quality and crop
+   * the VideoQualityController asks for and hands them to the UploadWorker.
+   * It holds at most one preview buffer; frames that arrive while it is busy
+   * go straight back to the camera.
+   */
   class ConversionWorker extends Thread
   {
+    private final UploadWorker          uploader;
 
-    // private HttpConnection mConnection;
+    private final ByteArrayOutputStream out   = new ByteArrayOutputStream();
 
-    HttpClient httpclient;
+    private final Rect                  crop  = new Rect();
 
-    boolean    alive;
+    // guarded by this
+    private byte[]                      frame;
 
-    volatile HttpPost   post;
+    private volatile boolean            alive = true;
 
-    volatile boolean    sending = false;
+    private int                         frameNumber;
 
-    public ConversionWorker()
+    public ConversionWorker(UploadWorker uploader)
     {
-      // setDaemon(true);
-
-      // this client should automatically reuse its connection
-      
-      httpclient = new DefaultHttpClient();
-      alive = true;
-
+      super("ConversionWorker");
+      this.uploader = uploader;
       start();
     }
 
-    public void kill()
+    public synchronized void kill()
     {
       alive = false;
       this.notify();
     }
 
+    /**
+     * @return false if a frame is still being encoded and this one was not
+     *         taken
+     */
+    synchronized boolean nextFrame(byte[] data)
+    {
+      if (!alive || !sendVideoFrames || frame != null)
+      {
+        return false;
+      }
+      frame = data;
+      this.notify();
+      return true;
+    }
+
+    private synchronized byte[] takeFrame() throws InterruptedException
+    {
+      while (alive && frame == null)
+      {
+        wait();
+      }
+      return frame;
+    }
+
     /*
      * (non-Javadoc)
      * 
      * @see java.lang.Thread#run()
      */
     @Override
-    public synchronized void run()
+    public void run()
     {
       try
       {
-        wait();// wait for initial frame
+        byte[] data;
+        while ((data = takeFrame()) != null && alive)
+        {
+          // the controller may change it while we encode
+          int quality = videoQuality.getQuality();
+          try
+          {
+            int cropPercent = videoQuality.getCropPercent();
+            // even offsets, so the chroma planes line up
+            int dx = previewWidth * cropPercent / 200 & ~1;
+            int dy = previewHeight * cropPercent / 200 & ~1;
+            crop.set(dx, dy, previewWidth - dx, previewHeight - dy);
+
+            YuvImage yuvImage = new YuvImage(data, previewFormat, previewWidth, previewHeight, null);
+            out.reset();
+            yuvImage.compressToJpeg(crop, quality, out);
+          }
+          finally
+          {
+            synchronized (this)
+            {
+              frame = null;
+            }
+            if (mCamera != null)
+            {
+              mCamera.addCallbackBuffer(data);
+            }
+          }
+
+          AudioVideoFrame.Builder avFrame = AudioVideoFrame.newBuilder();
+          avFrame.setData(ByteString.copyFrom(out.toByteArray()));
+          avFrame.setBotID(RobotStateHandler.ROBOT_ID);
+          avFrame.setTimestamp(System.currentTimeMillis());
+          avFrame.setFrameNumber(++frameNumber);
+          avFrame.setWidthPx(crop.width());
+          avFrame.setHeightPx(crop.height());
+          avFrame.setCompressionLevel(quality);
+          avFrame.setEncoding(AudioVideoFrame.Encoding.JPEG);
+
+          videoQuality.frameEncoded(SystemClock.elapsedRealtime());
+          uploader.offer(avFrame.build().toByteArray());
+        }
       }
       catch (InterruptedException e)
       {
       }
-      while (alive && sendVideoFrames)
-      {
-
-        try
-        {
-          httpclient = new DefaultHttpClient();
-          sending = true;
-          YuvImage yuvImage = new YuvImage(mCallbackBuffer, previewFormat, previewWidth, previewHeight, null);
-          yuvImage.compressToJpeg(r, jpegCompressionLevel, out); // Tweak the
-                                                                 // quality here
-
-          // state.setVideoFrame(ByteString.copyFrom(out.toByteArray()));
+    }
+  }
 
-          AudioVideoFrame.Builder avFrame = AudioVideoFrame.newBuilder();
+  /**
+   * Upload stage: posts the newest encoded frame over a keep-alive connection.
+   * A frame encoded while the last one is still going out replaces any frame
+   * already waiting, so the viewer always gets the latest, and the wait tells
+   * the VideoQualityController the uplink is behind.
+   */
+  class UploadWorker extends Thread
+  {
+    private final HttpClient httpclient = RobotStateHandler.newHttpClient();
 
-          avFrame.setData(ByteString.copyFrom(out.toByteArray()));
-          avFrame.setBotID(RobotStateHandler.ROBOT_ID);
-          avFrame.setCompressionLevel(jpegCompressionLevel);
-          
-          //FIXME:  need to be able to change url
-          post = new HttpPost("http://"+putUrl + "/video");
+    // the one frame waiting to go out; guarded by this
+    private byte[]           pending;
 
-          post.setEntity(new ByteArrayEntity(avFrame.build().toByteArray()));
+    private volatile boolean alive      = true;
 
-          // Log.i(TAG, "sending video");
-          
-          httpclient.execute(post);
-          
-          sending = false;
-          // Log.i(TAG, "sent video");
+    private volatile long    droppedFrames;
 
-          // InputStream resStream = resp.getEntity().getContent();
+    public UploadWorker()
+    {
+      super("UploadWorker");
+      start();
+    }
 
-          // ControllerState cs = ControllerState.parseFrom(resStream);
+    public synchronized void kill()
+    {
+      alive = false;
+      this.notify();
+    }
 
-          // mover.processControllerStateEvent(cs);
-        }
-        catch (UnsupportedEncodingException e)
-        {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
+    /**
+     * @return the number of encoded frames replaced by a newer one before
+     *         they were sent
+     */
+    public long getDroppedFrameCount()
+    {
+      return droppedFrames;
+    }
 
-        }
-        catch (IllegalStateException e)
-        {
-          e.printStackTrace();
-        }
-        catch (com.google.protobuf.InvalidProtocolBufferException e)
-        {
-          // e.printStackTrace();
-          // resetConnection();
-        }
-        catch (IOException e)
-        {
-          e.printStackTrace();
-        }
-        finally
-        {
-          out.reset();
-          if (mCamera != null)
-          {
-            mCamera.addCallbackBuffer(mCallbackBuffer);
-          }
-          sending = false;
-          // isUploading = false;
-        }
+    synchronized void offer(byte[] encoded)
+    {
+      if (pending != null)
+      {
+        droppedFrames++;
+      }
+      pending = encoded;
+      this.notify();
+    }
 
-        try
-        {
-          wait();// wait for next frame
-        }
-        catch (InterruptedException e)
-        {
-        }
+    private synchronized byte[] take() throws InterruptedException
+    {
+      while (alive && pending == null)
+      {
+        wait();
       }
+      byte[] next = pending;
+      pending = null;
+      return next;
+    }
+
+    private synchronized boolean hasPending()
+    {
+      return pending != null;
     }
 
-    synchronized boolean nextFrame(byte[] frame)
+    @Override
+    public void run()
     {
-      if (this.getState() == Thread.State.WAITING && !sending)
+      try
       {
-        // ok, we are ready for a new frame:
-        // curFrame = frame;
-        // do the work:
-        this.notify();
-        return true;
+        byte[] encoded;
+        while ((encoded = take()) != null && alive)
+        {
+          long start = SystemClock.elapsedRealtime();
+          HttpPost post = new HttpPost("http://" + putUrl + "/video");
+          post.setEntity(new ByteArrayEntity(encoded));
+          try
+          {
+            HttpResponse resp = httpclient.execute(post);
+            HttpEntity ent = resp.getEntity();
+            if (ent != null)
+            {
+              // so the connection can be reused
+              ent.consumeContent();
+            }
+            videoQuality.uploaded(encoded.length, SystemClock.elapsedRealtime() - start, hasPending());
+          }
+          catch (IOException e)
+          {
+            post.abort();
+            videoQuality.uploadFailed(SystemClock.elapsedRealtime() - start);
+            Log.w(TAG, "could not send video: " + e);
+          }
+        }
       }
-      else
+      catch (InterruptedException e)
       {
-        // ignore it
-        return false;
-
       }
-
     }
   }
 
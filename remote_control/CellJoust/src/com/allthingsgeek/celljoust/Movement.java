@@ -19,19 +19,47 @@ package com.allthingsgeek.celljoust;
 
 import com.cellbots.CellbotProtos.ControllerState;
 
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.KeyEvent;
 
 /**
- * Singleton class to control servos in response to key or console events
+ * Singleton class to control servos in response to key or console events.
+ *
+ * Events only update the desired drive: the two wheel servo positions and
+ * whether the pulses are on. A control thread applies it to the
+ * {@link PulseGenerator} once per tick, so a burst of events costs one update
+ * and any event is acted on within a tick, however the network delivers them.
  */
-public class Movement {
+public class Movement implements Runnable {
+	/** Control tick, one servo pulse period. */
+	public static final long TICK_MS = 20;
+
+	private static String TAG = "Movement";
+
 	private PulseGenerator noise;
 	private static Movement instance;
+
+	// guarded by this, like the desired drive they go into
 	private int speed = 20;
 	private int offset = 0;
 
+	// desired drive, guarded by this
+	private int leftPercent = 50;
+	private int rightPercent = 50;
+	private int counts = 1;
+	private boolean running = false;
+	private long version = 0;
+
+	// last applied, control thread only
+	private long appliedVersion = 0;
+
 	private Movement() {
 		noise = PulseGenerator.getInstance();
+		Thread tick = new Thread(this);
+		tick.setName("Movement tick");
+		tick.setDaemon(true);
+		tick.start();
 	}
 
 	public static Movement getInstance() {
@@ -44,14 +72,14 @@ public class Movement {
 	/**
 	 * @return the offset
 	 */
-	public int getOffset() {
+	public synchronized int getOffset() {
 		return offset;
 	}
 
 	/**
 	 * @param offset the offset to set
 	 */
-	public void setOffset(int o) {
+	public synchronized void setOffset(int o) {
 		this.offset = o;
 	}
 
@@ -63,69 +91,139 @@ public class Movement {
 		driveBackward(50);
 	}
 
-	public void driveFoward(int ms) {
+	public synchronized void driveFoward(int ms) {
 		int left = speed, right = speed;
 		if (offset < 0)
 			right += offset;
 		else if (offset > 0)
 			left -= offset;
-		noise.setServo(0, 50 + left, ms);
-		noise.setServo(2, 50 + right, ms);
-		noise.unpause();
+		setDesired(50 + left, 50 + right, ms, true);
 	}
 
-	public void driveBackward(int ms) {
+	public synchronized void driveBackward(int ms) {
 		int left = speed, right = speed;
 		if (offset < 0)
 			right += offset;
 		else if (offset > 0)
 			left -= offset;
-		noise.setServo(0, 50 - left, ms);
-		noise.setServo(2, 50 - right, ms);
-		noise.unpause();
+		setDesired(50 - left, 50 - right, ms, true);
 	}
 
 	public void stop() {
-	    
-		noise.setServo(0, 50, 1);
-		noise.setServo(2, 50, 1);
-	    noise.pause();
+		setDesired(50, 50, 1, false);
 	}
 
-	public void turnLeft() {
-		noise.setServo(0, 50 - speed, 25);
-		noise.setServo(2, 50 + speed, 25);
-		noise.unpause();
+	public synchronized void turnLeft() {
+		setDesired(50 - speed, 50 + speed, 25, true);
 	}
 
-	public void turnRight() {
-		noise.setServo(0, 50 + speed, 25);
-		noise.setServo(2, 50 - speed, 25);
-		noise.unpause();
+	public synchronized void turnRight() {
+		setDesired(50 + speed, 50 - speed, 25, true);
 	}
 
-	public void setSpeed(int s) {
+	public synchronized void setSpeed(int s) {
 		speed = s;
 	}
-	
+
+	private synchronized void setDesired(int left, int right, int c, boolean run) {
+		leftPercent = left;
+		rightPercent = right;
+		counts = c;
+		running = run;
+		version++;
+	}
+
+	/**
+	 * Applies the desired drive every {@link #TICK_MS}, if it changed. Ticks
+	 * missed while the thread was held up are skipped rather than caught up.
+	 */
+	public void run() {
+		long next = SystemClock.uptimeMillis();
+		try {
+			while (true) {
+				next += TICK_MS;
+				long delay = next - SystemClock.uptimeMillis();
+				if (delay > 0) {
+					Thread.sleep(delay);
+				} else {
+					next -= delay;
+				}
+				applyDesired();
+			}
+		} catch (InterruptedException e) {
+			Log.i(TAG, "Control tick exiting");
+		}
+	}
+
+	private void applyDesired() {
+		int left, right, c;
+		boolean run;
+		synchronized (this) {
+			if (version == appliedVersion)
+				return;
+			appliedVersion = version;
+			left = leftPercent;
+			right = rightPercent;
+			c = counts;
+			run = running;
+		}
+		noise.setDrive(left, right, c);
+		if (run)
+			noise.unpause();
+		else
+			noise.pause();
+	}
+
+	/**
+	 * Folds every key event in the batch, in order, into the desired drive.
+	 *
+	 * @return the commands for the robot's own controller: every speed step,
+	 *         then the last drive command, or null if there are none
+	 */
 	public String processControllerStateEvent(ControllerState cs)
 	{
+	  StringBuilder speedSteps = null;
+	  String drive = null;
 	  for (ControllerState.KeyEvent ev: cs.getKeyEventList())
       {
+         int keyCode;
+         try
+         {
+           keyCode = Integer.parseInt(ev.getKeyCode());
+         }
+         catch (NumberFormatException e)
+         {
+           Log.w(TAG, "bad key code " + ev.getKeyCode());
+           continue;
+         }
+
          if (ev.getKeyDown())
         {
-          return processKeyDownEvent(Integer.parseInt(ev.getKeyCode()));
+          String command = processKeyDownEvent(keyCode);
+          if (command == null)
+            continue;
+          if (keyCode == KeyEvent.KEYCODE_P || keyCode == KeyEvent.KEYCODE_M)
+          {
+            if (speedSteps == null)
+              speedSteps = new StringBuilder();
+            speedSteps.append(command);
+          }
+          else
+          {
+            drive = command;
+          }
         }
          
-         if (ev.getKeyUp())
+         if (ev.getKeyUp() && processKeyUpEvent(keyCode))
          {
-           processKeyUpEvent(Integer.parseInt(ev.getKeyCode()));
+           // the key up stopped the robot, so its controller must stop too
+           drive = "s\n";
          }
       }
-	  
-	  return "";
-	  
-	  
+
+	  if (speedSteps == null)
+	    return drive;
+	  return drive == null ? speedSteps.toString() : speedSteps.append(drive).toString();
 	}
 
 	public void processTextCommand(String string) {
@@ -142,10 +240,14 @@ public class Movement {
 			turnRight();
 		}
 		if (string.startsWith("-")) {
-			speed--;
+			synchronized (this) {
+				speed--;
+			}
 		}
 		if (string.startsWith("+")) {
-			speed++;
+			synchronized (this) {
+				speed++;
+			}
 		}
 		if (string.startsWith(" ")) {
 			stop();
@@ -172,12 +274,16 @@ public class Movement {
 			turnRight();
 			return "r\n";
 		case KeyEvent.KEYCODE_P:
-			if (speed < 50)
-				speed++;
+			synchronized (this) {
+				if (speed < 50)
+					speed++;
+			}
 			return "p\n";
 		case KeyEvent.KEYCODE_M:
-			if (speed > 0)
-				speed--;
+			synchronized (this) {
+				if (speed > 0)
+					speed--;
+			}
 			return "m\n";
 		case KeyEvent.KEYCODE_DPAD_CENTER:
 		case KeyEvent.KEYCODE_SPACE:
@@ -17,15 +17,16 @@
 
 package com.allthingsgeek.celljoust;
 
-import java.util.Arrays;
-
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
 import android.util.Log;
 
 /**
- * The Class PulseGenerator.
+ * The Class PulseGenerator. Plays the servo control signal rendered by a
+ * {@link ServoWaveform} through the audio output, one 20ms period per write,
+ * so a new setting reaches the servos after at most one period plus what the
+ * audio track has buffered.
  */
 public class PulseGenerator implements Runnable {
 
@@ -42,7 +43,7 @@ public class PulseGenerator implements Runnable {
 	public int MAX_PULSE_WIDTH;
 
 	/** The pulse widths, determines speed or position of each servo */
-	private int pulseWidthArray[];
+	private ServoWaveform waveform;
 
 	/** Number of pulses left to send for each servo */
 	private int pulseCountArray[];
@@ -53,20 +54,14 @@ public class PulseGenerator implements Runnable {
 	/** The pulse interval. Should be 20ms */
 	private int pulseInterval;
 
-	/** The buffer pulses. */
-	private int bufferPulses = 2;
-
 	/** The max volume */
 	private short volume = Short.MAX_VALUE;
 
 	/** Are we playing sound right now? */
-	private boolean playing = true;
+	private volatile boolean playing = true;
 
 	/** Are we paused right now? */
-	private boolean paused = true;
-
-	/** Do we need to update the buffer? */
-	private boolean bufferChanged = false;
+	private volatile boolean paused = true;
 
 	/** The noise audio track. */
 	private AudioTrack noiseAudioTrack;
@@ -74,15 +69,9 @@ public class PulseGenerator implements Runnable {
 	/** The bufferlength. */
 	private int systembufferlength; // 4800
 
-	/** The left channel buffer. */
-	private short[] leftChannelBuffer;
-
-	/** The right channel buffer. */
-	private short[] rightChannelBuffer;
-
 	private static String TAG = "Servo Pulse Generator";
 
-	private static int NUM_SERVOS = 4;
+	private static int NUM_SERVOS = ServoWaveform.NUM_SERVOS;
 
 	/**
 	 * Instantiates a new pulse generator.
@@ -99,12 +88,6 @@ public class PulseGenerator implements Runnable {
 
 		servoOffsetArray = new int[NUM_SERVOS];
 
-		pulseWidthArray = new int[NUM_SERVOS];
-
-		Arrays.fill(pulseWidthArray, ((MAX_PULSE_WIDTH - MIN_PULSE_WIDTH) / 2) + MIN_PULSE_WIDTH);
-
-		pulseInterval = sampleRate / 50;
-
 		systembufferlength = AudioTrack.getMinBufferSize(sampleRate,
 				AudioFormat.CHANNEL_CONFIGURATION_STEREO,
 				AudioFormat.ENCODING_PCM_16BIT);
@@ -119,19 +102,16 @@ public class PulseGenerator implements Runnable {
 		Log.i(TAG, "BufferLength = " + Integer.toString(systembufferlength));
 		Log.i(TAG, "Sample Rate = " + Integer.toString(sampleRate));
 
-		leftChannelBuffer = new short[systembufferlength / 2];
-		rightChannelBuffer = new short[systembufferlength / 2];
+		waveform = new ServoWaveform(sampleRate, MIN_PULSE_WIDTH,
+				MAX_PULSE_WIDTH, volume);
+
+		pulseInterval = waveform.getPeriod();
 
 		Thread noiseThread;
 
 		noiseThread = new Thread(this);
 		noiseThread.setName("noiseThread");
 
-		generatePCM(pulseWidthArray[0], pulseWidthArray[1], pulseInterval,
-				leftChannelBuffer, pulseInterval * bufferPulses, 1);
-		generatePCM(pulseWidthArray[2], pulseWidthArray[3], pulseInterval,
-				rightChannelBuffer, pulseInterval * bufferPulses, 3 );
-
 		noiseThread.start();
 
 	}
@@ -143,97 +123,27 @@ public class PulseGenerator implements Runnable {
 		return instance;
 	}
 
-	/**
-	 * Builds a PWM signal in the buffer
-	 * @param pulseWidth Pulse width for signal > 0
-	 * @param negPulseWidth Pulse width for signal < 0
-	 * @param pulseInterval Length of pulse
-	 * @param buffer Array to store the signal
-	 * @param bufferLength Length of buffer
-	 * @param lastChanged
-	 */
-	private void generatePCM(int pulseWidth, int negPulseWidth,
-			int pulseInterval, short buffer[], int bufferLength, int lastChanged) {
-
-		int i = 0;
-		int j = 0;
-    		
-		int pulseVolume = -volume;
-		if (lastChanged % 2 == 0)
-        {
-		  pulseVolume = volume;
-        }
-
-		while (i < bufferLength) {
-			j = 0;
-				while (j < pulseWidth && i < bufferLength) {
-					buffer[i] = (short) ((pulseVolume));
-					i++;
-					j++;
-				}
-
-				while (j < pulseInterval && i < bufferLength) {
-					buffer[i] = (short) ((-pulseVolume));
-					i++;
-					j++;
-				}
-		}
-		bufferChanged = true;
-	}
-
 	public void run() {
 
-		/** The stero audio buffer. */
-		short[] audioBuffer = new short[systembufferlength];
+		/** One period of stereo audio, rendered and written at a time. */
+		short[] audioBuffer = new short[pulseInterval * 2];
+
+		/** Silence, written while paused. */
+		short[] silence = new short[audioBuffer.length];
 
-		int sterobufferlength = pulseInterval * bufferPulses * 2;
 		noiseAudioTrack.play();
 
 		while (playing) {
 			if (paused) {
-				for (int i = 0; i < systembufferlength; i++) {
-					audioBuffer[i] = (short) (0);
-				}
-				noiseAudioTrack.write(audioBuffer, 0, systembufferlength);
-				bufferChanged = true;
+				noiseAudioTrack.write(silence, 0, silence.length);
 				continue;
 			}
-			/*
-			for (int i = 0; i < NUM_SERVOS; i += 1) {
-				if (pulseCountArray[i] <= bufferPulses
-						&& pulseCountArray[i] > 0) {
-					pulseWidthArray[i] = servoOffsetArray[i];
-					if (i < 2) {
-						generatePCM(pulseWidthArray[0], pulseWidthArray[1],
-								pulseInterval, leftChannelBuffer, pulseInterval
-										* bufferPulses, i);
-					} else {
-						generatePCM(pulseWidthArray[2], pulseWidthArray[3],
-								pulseInterval, rightChannelBuffer,
-								pulseInterval * bufferPulses, i);
-					}
-				}
-				if (pulseCountArray[i] > 0) {
-					pulseCountArray[i] -= bufferPulses;
-				}
-			}
-			*/
-
-			if (bufferChanged) {
-				for (int i = 0; i < sterobufferlength; i += 2) {
-				    //the pulses are staggerd by 1/2 pulseInterval
-					audioBuffer[i] = leftChannelBuffer[((i / 2)+(pulseInterval/2)) % (sterobufferlength/2)];
-					audioBuffer[i + 1] = rightChannelBuffer[i / 2];
-				}
-				bufferChanged = false;
-			}
-			noiseAudioTrack.write(audioBuffer, 0, sterobufferlength);
+			waveform.render(audioBuffer, 0);
+			noiseAudioTrack.write(audioBuffer, 0, audioBuffer.length);
 		}
 		// Cleanup
-		for (int i = 0; i < systembufferlength; i++) {
-			audioBuffer[i] = (short) (0);
-		}
-		noiseAudioTrack.write(audioBuffer, 0, systembufferlength);
+		short[] flush = new short[Math.max(systembufferlength, silence.length)];
+		noiseAudioTrack.write(flush, 0, flush.length);
 		noiseAudioTrack.stop();
 		noiseAudioTrack.release();
 	}
@@ -277,32 +187,53 @@ public class PulseGenerator implements Runnable {
 	 * 
 	 * @param percent the new left pulse percent
 	 */
-	public synchronized void setServo(int servoNum, int percent, int counts) {
+	public void setServo(int servoNum, int percent, int counts) {
 
-		if (servoNum < 0 || servoNum > 4) {
+		if (servoNum < 0 || servoNum >= NUM_SERVOS) {
 			Log.e(TAG, "Servo index out of bounds, should be between 0 and 3");
 			return;
 		}
 		
+		int width = toWidth(servoNum, percent);
+		if (width < 0)
+			return;
+
+		this.pulseCountArray[servoNum] = counts;
+		waveform.setWidth(servoNum, width);
+
+	}
+
+	/**
+	 * Sets both drive servos, 0 on the left and 2 on the right, at once, so
+	 * the audio thread never sends one side's new width with the other's old.
+	 * 
+	 * @param leftPercent the new left pulse percent
+	 * @param rightPercent the new right pulse percent
+	 */
+	public void setDrive(int leftPercent, int rightPercent, int counts) {
+		int left = toWidth(0, leftPercent);
+		int right = toWidth(2, rightPercent);
+		if (left < 0 || right < 0)
+			return;
+
+		this.pulseCountArray[0] = counts;
+		this.pulseCountArray[2] = counts;
+		waveform.setWidths(left, right);
+	}
+
+	/**
+	 * @return the pulse width in samples for a servo at percent, with its
+	 *         offset, or -1 if that is out of bounds
+	 */
+	private int toWidth(int servoNum, int percent) {
 		percent += servoOffsetArray[servoNum];
 
 		if (percent < 0 || percent > 100) {
 			Log.e(TAG,
 					"Servo Position out of bounds, should be between 0 and 100");
-			return;
+			return -1;
 		}
-
-		this.pulseWidthArray[servoNum] = (int)((MAX_PULSE_WIDTH - MIN_PULSE_WIDTH) * ((float)percent / 100) + MIN_PULSE_WIDTH);
-		this.pulseCountArray[servoNum] = counts;
-
-		if (servoNum < 2) {
-			generatePCM(pulseWidthArray[0], pulseWidthArray[1], pulseInterval,
-					leftChannelBuffer, pulseInterval * bufferPulses, servoNum);
-		} else {
-			generatePCM(pulseWidthArray[2], pulseWidthArray[3], pulseInterval,
-					rightChannelBuffer, pulseInterval * bufferPulses, servoNum);
-		}
-
+		return (int)((MAX_PULSE_WIDTH - MIN_PULSE_WIDTH) * ((float)percent / 100) + MIN_PULSE_WIDTH);
 	}
 
 	/**
@@ -329,7 +260,7 @@ public class PulseGenerator implements Runnable {
 	 * @return the pulse percent
 	 */
 	public int getPulsePercent(int i) {
-		return (int)(((float)(pulseWidthArray[i] - MIN_PULSE_WIDTH) / (MAX_PULSE_WIDTH - MIN_PULSE_WIDTH)) * 100);
+		return (int)(((float)(waveform.getWidth(i) - MIN_PULSE_WIDTH) / (MAX_PULSE_WIDTH - MIN_PULSE_WIDTH)) * 100);
 	}
 
 	/**
@@ -339,7 +270,7 @@ public class PulseGenerator implements Runnable {
 	 * @return the pulse ms
 	 */
 	public float getPulseMs(int i) {
-		return ((float) pulseWidthArray[i] / sampleRate) * 1000;
+		return ((float) waveform.getWidth(i) / sampleRate) * 1000;
 	}
 
 	/**
@@ -349,7 +280,7 @@ public class PulseGenerator implements Runnable {
 	 * @return the pulse samples
 	 */
 	public int getPulseSamples(int i) {
-		return pulseWidthArray[i];
+		return waveform.getWidth(i);
 	}
 
 }
\ No newline at end of file
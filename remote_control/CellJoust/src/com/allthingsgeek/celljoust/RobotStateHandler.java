@@ -4,14 +4,27 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 
 import com.cellbots.CellbotProtos;
 import com.cellbots.CellbotProtos.ControllerState;
@@ -19,16 +32,25 @@ import com.cellbots.CellbotProtos.PhoneState;
 import com.cellbots.CellbotProtos.PhoneState.Builder;
 import com.cellbots.sensors.SensorListenerImpl;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 
 import android.app.ProgressDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 /*
  * This is a class to store the state of the robot.
+ *
+ * Sensor samples arrive as messages on this thread's Looper and are handed to
+ * a separate poster thread, so the Looper never backs up behind a slow post.
+ * At most STATE_BATCH_SIZE samples wait to be sent; past that the two oldest
+ * are merged into one, later fields winning, so the server always gets the
+ * newest reading of every sensor and stale ones are dropped. Posts share one
+ * keep-alive HttpClient.
  */
 public class RobotStateHandler extends Thread
 {
@@ -48,7 +70,7 @@ public class RobotStateHandler extends Thread
 
   private Movement                              mover;
 
-  HttpClient                                    httpclient;
+  private final HttpClient                      httpclient;
 
   InetSocketAddress                             clientAddress           = null;
 
@@ -60,6 +82,39 @@ public class RobotStateHandler extends Thread
 
   public Handler                                handler;
 
+  /**
+   * Longest a sensor sample waits to be sent with the ones after it. Commands
+   * come back in the answers to these posts, so this is also added to how
+   * long a command can take; a sample that arrives after the poster has
+   * been idle this long is sent at once.
+   */
+  public static int                             STATE_BATCH_MS          = 250;
+
+  /** Most samples sent in one request. */
+  public static int                             STATE_BATCH_SIZE        = 16;
+
+  private static final int                      CONNECT_TIMEOUT_MS      = 5000;
+
+  private static final int                      READ_TIMEOUT_MS         = 10000;
+
+  // samples not yet sent, oldest first; guarded by itself
+  private final LinkedList<PhoneState>          pending                 = new LinkedList<PhoneState>();
+
+  // when the oldest pending sample arrived; guarded by pending
+  private long                                  pendingSince;
+
+  // when the poster last finished a post; guarded by pending
+  private long                                  lastPostDone;
+
+  private volatile long                         postedStates;
+
+  private volatile long                         droppedStates;
+
+  private volatile long                         failedPosts;
+
+  private volatile long                         lastRoundTripMs;
+
+  private volatile long                         meanRoundTripMs;
 
   public RobotStateHandler(Handler h)
   {
@@ -72,7 +127,68 @@ public class RobotStateHandler extends Thread
 
     mover = Movement.getInstance();
 
+    httpclient = newHttpClient();
+  }
+
+  /**
+   * One pooled client for all posts, so the connection to the server is kept
+   * open between them instead of being set up for every sample.
+   */
+  static HttpClient newHttpClient()
+  {
+    HttpParams params = new BasicHttpParams();
+    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+    HttpProtocolParams.setUseExpectContinue(params, false);
+    HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT_MS);
+    HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT_MS);
+    HttpConnectionParams.setTcpNoDelay(params, true);
+    ConnManagerParams.setMaxTotalConnections(params, 2);
+    ConnManagerParams.setTimeout(params, CONNECT_TIMEOUT_MS);
+
+    SchemeRegistry schemes = new SchemeRegistry();
+    schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    return new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemes), params);
+  }
+
+  /**
+   * @return the number of samples sent to the server
+   */
+  public long getPostedStateCount()
+  {
+    return postedStates;
+  }
+
+  /**
+   * @return the number of samples merged into a newer one because the server
+   *         could not keep up
+   */
+  public long getDroppedStateCount()
+  {
+    return droppedStates;
+  }
+
+  /**
+   * @return the number of posts that failed
+   */
+  public long getFailedPostCount()
+  {
+    return failedPosts;
+  }
 
+  /**
+   * @return the round trip time of the last post, in milliseconds
+   */
+  public long getLastRoundTripMs()
+  {
+    return lastRoundTripMs;
+  }
+
+  /**
+   * @return the moving average of the round trip time, in milliseconds
+   */
+  public long getMeanRoundTripMs()
+  {
+    return meanRoundTripMs;
   }
 
   public void onBtDataRecive(String data)
@@ -141,80 +257,24 @@ public class RobotStateHandler extends Thread
           if (msg.obj instanceof PhoneState)
           {
             state = (PhoneState) msg.obj;
-
-            try
-            {
-              
-              httpclient = new DefaultHttpClient();
-              
-              HttpPost post = new HttpPost("http://"+MainActivity.putUrl + "/robotState");
-              
-              post.setEntity(new ByteArrayEntity(state.toByteArray()));
-
-              HttpResponse resp = httpclient.execute(post);
-
-              HttpEntity ent = resp.getEntity();
-              
-              if(ent==null)
-                return;
-              
-              InputStream resStream = ent.getContent();
-
-              ControllerState cs = ControllerState.parseFrom(resStream);
-
-              String txt = mover.processControllerStateEvent(cs);
-
-              if (bTcomThread != null && cs != null && cs.getTimestamp() != lastControllerTimeStamp)
-              {
-                if (cs.hasTxtCommand())
-                {
-                  lastControllerTimeStamp = cs.getTimestamp();
-                  Message btMsg = bTcomThread.handler.obtainMessage();
-                  btMsg.obj = cs;
-                  btMsg.sendToTarget();
-                }
-                else if (txt != null)
-                {
-                  lastControllerTimeStamp = cs.getTimestamp();
-                  Message btMsg = bTcomThread.handler.obtainMessage();
-                  btMsg.obj = txt;
-                  btMsg.sendToTarget();
-                }
-
-              }
-
-            }
-            catch (UnsupportedEncodingException e)
-            {
-              // TODO Auto-generated catch block
-              e.printStackTrace();
-            }
-            catch (IllegalStateException e)
-            {
-              e.printStackTrace();
-            }
-            catch (com.google.protobuf.InvalidProtocolBufferException e)
-            {
-              // e.printStackTrace();
-              // resetConnection();
-            }
-            catch (IOException e)
-            {
-              e.printStackTrace();
-            }
-            catch (NullPointerException e)
-            {
-              Log.e(TAG,"npe",e);
-              e.printStackTrace();
-            }
-
-
+            offerState(state);
           }
         }
 
       };
 
       
+      Thread poster = new Thread("RobotStatePoster")
+      {
+        @Override
+        public void run()
+        {
+          postLoop();
+        }
+      };
+      poster.setDaemon(true);
+      poster.start();
+
       Log.i(TAG, "Robot State handler is bound to - " + handler.getLooper().getThread().getName());
       // After the following line the thread will start
       // running the message loop and will not normally
@@ -230,4 +290,201 @@ public class RobotStateHandler extends Thread
     }
   }
 
+  /**
+   * Queues a sample for the poster. If the poster has fallen behind, the two
+   * oldest samples are merged so the queue stays bounded.
+   */
+  private void offerState(PhoneState ps)
+  {
+    synchronized (pending)
+    {
+      if (pending.isEmpty())
+      {
+        pendingSince = System.currentTimeMillis();
+      }
+      pending.add(ps);
+      if (pending.size() > Math.max(STATE_BATCH_SIZE, 1))
+      {
+        PhoneState oldest = pending.removeFirst();
+        PhoneState next = pending.removeFirst();
+        pending.addFirst(oldest.toBuilder().mergeFrom(next).build());
+        droppedStates++;
+      }
+      pending.notifyAll();
+    }
+  }
+
+  /**
+   * Waits until the pending samples are due, that is a full batch, the
+   * oldest is STATE_BATCH_MS old, or the oldest came after the poster had
+   * been idle that long, and takes them all.
+   */
+  private List<PhoneState> takeDueStates() throws InterruptedException
+  {
+    synchronized (pending)
+    {
+      while (true)
+      {
+        long wait = pendingSince + STATE_BATCH_MS - System.currentTimeMillis();
+        boolean wasIdle = pendingSince - lastPostDone >= STATE_BATCH_MS;
+        if (!pending.isEmpty() && (pending.size() >= STATE_BATCH_SIZE || wait <= 0 || wasIdle))
+        {
+          List<PhoneState> due = new ArrayList<PhoneState>(pending);
+          pending.clear();
+          return due;
+        }
+        if (pending.isEmpty())
+          pending.wait();
+        else
+          pending.wait(wait);
+      }
+    }
+  }
+
+  private void postLoop()
+  {
+    try
+    {
+      while (true)
+      {
+        postStates(takeDueStates());
+        synchronized (pending)
+        {
+          lastPostDone = System.currentTimeMillis();
+        }
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Log.i(TAG, "State poster exiting");
+    }
+  }
+
+  /**
+   * Sends samples: a single one as a PhoneState, several as a PhoneStateBatch,
+   * oldest first. Then acts on any controller state the server answers with.
+   */
+  private void postStates(List<PhoneState> batch)
+  {
+    HttpPost post = null;
+    HttpEntity ent = null;
+    long start = SystemClock.elapsedRealtime();
+    try
+    {
+      if (batch.size() == 1)
+      {
+        post = new HttpPost("http://" + MainActivity.putUrl + "/robotState");
+        post.setEntity(new ByteArrayEntity(batch.get(0).toByteArray()));
+      }
+      else
+      {
+        post = new HttpPost("http://" + MainActivity.putUrl + "/robotState?BATCH=1");
+        post.setEntity(new ByteArrayEntity(encodeBatch(batch)));
+      }
+
+      HttpResponse resp = httpclient.execute(post);
+
+      // the samples are delivered whatever the answer holds
+      long rtt = SystemClock.elapsedRealtime() - start;
+      lastRoundTripMs = rtt;
+      meanRoundTripMs = postedStates == 0 ? rtt : (meanRoundTripMs * 7 + rtt) / 8;
+      postedStates += batch.size();
+
+      ent = resp.getEntity();
+
+      if (ent == null)
+        return;
+
+      InputStream resStream = ent.getContent();
+
+      ControllerState cs = ControllerState.parseFrom(resStream);
+
+      String txt = mover.processControllerStateEvent(cs);
+
+      if (bTcomThread != null && cs != null && cs.getTimestamp() != lastControllerTimeStamp)
+      {
+        if (cs.hasTxtCommand())
+        {
+          lastControllerTimeStamp = cs.getTimestamp();
+          Message btMsg = bTcomThread.handler.obtainMessage();
+          btMsg.obj = cs;
+          btMsg.sendToTarget();
+        }
+        else if (txt != null)
+        {
+          lastControllerTimeStamp = cs.getTimestamp();
+          Message btMsg = bTcomThread.handler.obtainMessage();
+          btMsg.obj = txt;
+          btMsg.sendToTarget();
+        }
+
+      }
+
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      // TODO Auto-generated catch block
+      e.printStackTrace();
+    }
+    catch (IllegalStateException e)
+    {
+      e.printStackTrace();
+    }
+    catch (com.google.protobuf.InvalidProtocolBufferException e)
+    {
+      // e.printStackTrace();
+      // resetConnection();
+    }
+    catch (IOException e)
+    {
+      failedPosts++;
+      // the connection may be half used; do not hand it back to the pool
+      if (post != null)
+        post.abort();
+      post = null;
+      Log.w(TAG, "could not post state: " + e);
+    }
+    catch (NullPointerException e)
+    {
+      Log.e(TAG, "npe", e);
+      e.printStackTrace();
+    }
+    finally
+    {
+      // read whatever is left of the answer so the connection can be reused
+      if (ent != null && post != null)
+      {
+        try
+        {
+          ent.consumeContent();
+        }
+        catch (IOException e)
+        {
+          post.abort();
+        }
+      }
+    }
+  }
+
+  /**
+   * Encodes samples as a PhoneStateBatch. CellbotProtos predates that message,
+   * so the repeated field is written by hand; it is field 1 of the batch.
+   */
+  static byte[] encodeBatch(List<PhoneState> states) throws IOException
+  {
+    int size = 0;
+    for (int i = 0; i < states.size(); i++)
+    {
+      size += CodedOutputStream.computeMessageSize(1, states.get(i));
+    }
+    byte[] bytes = new byte[size];
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    for (int i = 0; i < states.size(); i++)
+    {
+      out.writeMessage(1, states.get(i));
+    }
+    out.checkNoSpaceLeft();
+    return bytes;
+  }
+
 }
@@ -0,0 +1,135 @@
+package com.allthingsgeek.celljoust;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders the servo control signal, one 20 ms period at a time, into
+ * interleaved 16 bit stereo.
+ *
+ * Each channel carries a square wave that is high for the pulse width of its
+ * drive servo (0 on the left, 2 on the right) and low for the rest of the
+ * period, with the left channel half a period behind the right. Servos 1
+ * and 3 keep their widths for the setup screen but, as before, are not on the
+ * wire. The waveform for every possible width is built once up front, so a
+ * period is assembled by copying two templates, and nothing is allocated or
+ * rebuilt when a servo moves.
+ *
+ * The pulse widths of all four servos are packed into one long, 16 bits each,
+ * so setters publish a whole set at once and the audio thread reads it once
+ * per period: a change shows up in the next period rendered, and a period
+ * never mixes old and new widths.
+ */
+final class ServoWaveform
+{
+  static final int          NUM_SERVOS = 4;
+
+  private final int         period;
+
+  private final int         minWidth;
+
+  private final int         maxWidth;
+
+  /** templates[w - minWidth] is one period of a pulse w samples wide. */
+  private final short[][]   templates;
+
+  private final AtomicLong  widths     = new AtomicLong();
+
+  /**
+   * @param sampleRate samples per second of the output
+   * @param minWidth narrowest pulse, in samples
+   * @param maxWidth widest pulse, in samples
+   * @param volume amplitude of the square wave
+   */
+  ServoWaveform(int sampleRate, int minWidth, int maxWidth, short volume)
+  {
+    this.period = sampleRate / 50;
+    this.minWidth = minWidth;
+    this.maxWidth = maxWidth;
+    templates = new short[maxWidth - minWidth + 1][period];
+    for (int w = minWidth; w <= maxWidth; w++)
+    {
+      short[] t = templates[w - minWidth];
+      for (int i = 0; i < period; i++)
+      {
+        t[i] = i < w ? volume : (short) -volume;
+      }
+    }
+    int center = (minWidth + maxWidth) / 2;
+    for (int i = 0; i < NUM_SERVOS; i++)
+    {
+      setWidth(i, center);
+    }
+  }
+
+  /**
+   * @return samples per channel in one period
+   */
+  int getPeriod()
+  {
+    return period;
+  }
+
+  int getWidth(int servo)
+  {
+    return (int) (widths.get() >>> (servo * 16)) & 0xffff;
+  }
+
+  /**
+   * Sets one servo's pulse width, clamped to the supported range; it takes
+   * effect from the next period rendered.
+   */
+  void setWidth(int servo, int width)
+  {
+    int shift = servo * 16;
+    publish(0xffffL << shift, (long) clamp(width) << shift);
+  }
+
+  /**
+   * Sets the widths of both drive servos, 0 and 2, in one step, so no period
+   * is rendered with one side moved and the other not.
+   */
+  void setWidths(int left, int right)
+  {
+    publish(0xffffL | 0xffffL << 32, clamp(left) | (long) clamp(right) << 32);
+  }
+
+  private int clamp(int width)
+  {
+    return Math.max(minWidth, Math.min(maxWidth, width));
+  }
+
+  /**
+   * Replaces the bits of mask in the packed widths with those of bits.
+   */
+  private void publish(long mask, long bits)
+  {
+    while (true)
+    {
+      long current = widths.get();
+      long next = (current & ~mask) | bits;
+      if (current == next || widths.compareAndSet(current, next))
+      {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Writes one period of interleaved stereo, 2 * {@link #getPeriod()} shorts,
+   * into out from offset on.
+   */
+  void render(short[] out, int offset)
+  {
+    long snapshot = widths.get();
+    short[] left = templates[(int) (snapshot & 0xffff) - minWidth];
+    short[] right = templates[(int) (snapshot >>> 32 & 0xffff) - minWidth];
+    int half = period / 2;
+    int o = offset;
+    for (int i = 0; i < period; i++)
+    {
+      int l = i + half;
+      out[o++] = left[l < period ? l : l - period];
+      out[o++] = right[i];
+    }
+  }
+}
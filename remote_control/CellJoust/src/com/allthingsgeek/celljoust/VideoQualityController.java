@@ -0,0 +1,131 @@
+package com.allthingsgeek.celljoust;
+
+/**
+ * Picks the JPEG quality and crop of the next camera frame from how the
+ * uplink is coping, so video runs at as many frames per second as the camera
+ * and encoder give, at the best quality the uplink then has room for.
+ *
+ * After every upload the uploader says whether a newer frame was already
+ * waiting. If one was, the uplink is what limits the frame rate, so quality
+ * is cut back, and once it is at the minimum, the edges are cropped off. If
+ * the uploader had to wait for frames instead, and the measured throughput
+ * says a larger frame would still go out before the next one is ready, the
+ * crop is given back first and then the quality raised, a step at a time.
+ */
+final class VideoQualityController
+{
+  static final int           MIN_QUALITY      = 10;
+
+  static final int           MAX_QUALITY      = 80;
+
+  static final int           QUALITY_STEP     = 5;
+
+  static final int           MAX_CROP_PERCENT = 30;
+
+  static final int           CROP_STEP        = 5;
+
+  /** Idle uploads in a row before stepping up, so a lucky frame does not. */
+  static final int           RAISE_AFTER      = 5;
+
+  /** How much bigger a frame one step up is taken to be. */
+  private static final float STEP_GROWTH      = 1.15f;
+
+  private int                quality;
+
+  private int                cropPercent;
+
+  private int                idleUploads;
+
+  // moving averages; 0 until measured
+  private float              bytesPerMs;
+
+  private float              frameIntervalMs;
+
+  private long               lastFrameAt;
+
+  VideoQualityController(int initialQuality)
+  {
+    quality = Math.max(MIN_QUALITY, Math.min(MAX_QUALITY, initialQuality));
+  }
+
+  synchronized int getQuality()
+  {
+    return quality;
+  }
+
+  /**
+   * @return how much of each edge to crop off, in percent of the frame size
+   */
+  synchronized int getCropPercent()
+  {
+    return cropPercent;
+  }
+
+  /**
+   * @return the measured upload throughput, in bytes per second
+   */
+  synchronized int getThroughput()
+  {
+    return (int) (bytesPerMs * 1000);
+  }
+
+  /**
+   * Notes that the encoder finished a frame, to learn the frame interval.
+   */
+  synchronized void frameEncoded(long now)
+  {
+    if (lastFrameAt != 0)
+    {
+      float interval = now - lastFrameAt;
+      frameIntervalMs = frameIntervalMs == 0 ? interval : frameIntervalMs * 0.8f + interval * 0.2f;
+    }
+    lastFrameAt = now;
+  }
+
+  /**
+   * @param bytes size of the frame sent
+   * @param uploadMs how long the upload took
+   * @param backlogged true if a newer frame was waiting when it finished
+   */
+  synchronized void uploaded(int bytes, long uploadMs, boolean backlogged)
+  {
+    float rate = bytes / (float) Math.max(uploadMs, 1);
+    bytesPerMs = bytesPerMs == 0 ? rate : bytesPerMs * 0.8f + rate * 0.2f;
+
+    if (backlogged)
+    {
+      idleUploads = 0;
+      if (quality > MIN_QUALITY)
+        quality = Math.max(MIN_QUALITY, quality - QUALITY_STEP);
+      else
+        cropPercent = Math.min(MAX_CROP_PERCENT, cropPercent + CROP_STEP);
+      return;
+    }
+
+    if (++idleUploads < RAISE_AFTER || (cropPercent == 0 && quality == MAX_QUALITY))
+    {
+      return;
+    }
+    // would a step up still go out before the next frame is ready?
+    if (frameIntervalMs > 0 && bytes * STEP_GROWTH / bytesPerMs > frameIntervalMs)
+    {
+      return;
+    }
+    idleUploads = 0;
+    if (cropPercent > 0)
+      cropPercent = Math.max(0, cropPercent - CROP_STEP);
+    else
+      quality = Math.min(MAX_QUALITY, quality + QUALITY_STEP);
+  }
+
+  /**
+   * Counts a failed upload as one that moved nothing, so an uplink that keeps
+   * failing lowers the quality like a slow one.
+   *
+   * @param uploadMs how long the attempt took
+   */
+  synchronized void uploadFailed(long uploadMs)
+  {
+    uploaded(0, uploadMs, true);
+  }
+}
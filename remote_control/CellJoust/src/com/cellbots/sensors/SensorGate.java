@@ -0,0 +1,75 @@
+package com.cellbots.sensors;
+
+/**
+ * Decides whether a new reading of one sensor is worth sending: not more
+ * often than once per minIntervalMs, and only if some axis moved further than
+ * deadband from what was last sent, unless nothing was sent for maxSilenceMs.
+ * Nothing is allocated, since this runs on every sensor callback and most
+ * readings are turned away.
+ */
+final class SensorGate
+{
+  private final float[] sent = new float[3];
+
+  private final boolean degrees;
+
+  private boolean       hasSent;
+
+  private long          sentAt;
+
+  /**
+   * @param degrees if the axes are angles in degrees, so 359 and 1 are two
+   *          apart
+   */
+  SensorGate(boolean degrees)
+  {
+    this.degrees = degrees;
+  }
+
+  /**
+   * @param maxSilenceMs longest time without a send, after which a reading
+   *          goes out even if it is within the dead band, or 0 for no limit
+   * @return true if the reading should be sent; it is then remembered as the
+   *         last one sent
+   */
+  boolean accept(long now, int minIntervalMs, int maxSilenceMs, float deadband, float a, float b, float c)
+  {
+    if (hasSent)
+    {
+      if (now - sentAt < minIntervalMs)
+      {
+        return false;
+      }
+      boolean overdue = maxSilenceMs > 0 && now - sentAt >= maxSilenceMs;
+      if (!overdue && distance(a, sent[0]) <= deadband && distance(b, sent[1]) <= deadband && distance(c, sent[2]) <= deadband)
+      {
+        return false;
+      }
+    }
+    hasSent = true;
+    sentAt = now;
+    sent[0] = a;
+    sent[1] = b;
+    sent[2] = c;
+    return true;
+  }
+
+  /**
+   * Forgets the last reading, so the next one is sent whatever it is.
+   */
+  void reset()
+  {
+    hasSent = false;
+  }
+
+  private float distance(float x, float y)
+  {
+    float d = Math.abs(x - y);
+    if (degrees)
+    {
+      d %= 360;
+      d = Math.min(d, 360 - d);
+    }
+    return d;
+  }
+}
@@ -1,14 +1,8 @@
 package com.cellbots.sensors;
 
-import java.net.InetAddress;
-import java.net.NetworkInterface;
-import java.net.SocketException;
-import java.util.Enumeration;
-
 import com.allthingsgeek.celljoust.RobotStateHandler;
 import com.cellbots.CellbotProtos;
 import com.cellbots.CellbotProtos.PhoneState;
-import com.cellbots.CellbotProtos.PhoneState.WIFI.Builder;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -17,25 +11,77 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Handler;
 
+/**
+ * Turns sensor callbacks into PhoneState updates for the RobotStateHandler.
+ *
+ * Each sensor is rate limited and has a dead band (see the static settings,
+ * loaded from preferences by MainActivity), so a phone lying still sends
+ * almost nothing. Commands come back in the answers to state posts, though, so
+ * the accelerometer is still sent at least every MAX_SILENCE_MS to keep a
+ * parked robot listening. Every FULL_REFRESH_MS all readings go out once
+ * whatever they are, so a server that lost the bot's state gets it back. An
+ * update carries only the sub message that changed; the server merges it into
+ * what it already has. Readings that are turned away
+ * cost no allocation. Protobuf builders can not be reused once built, so the
+ * few that are sent get fresh ones.
+ */
 public class SensorListenerImpl implements SensorListener
 {
-  private CellbotProtos.PhoneState.Builder state;
+  /** Shortest time between accelerometer updates, in milliseconds. */
+  public static int          ACCEL_INTERVAL_MS       = 100;
+
+  /** Smallest accelerometer change sent, in m/s^2 on any axis. */
+  public static float        ACCEL_DEADBAND          = 0.2f;
+
+  public static int          COMPASS_INTERVAL_MS     = 200;
+
+  /** In microtesla. */
+  public static float        COMPASS_DEADBAND        = 1f;
+
+  public static int          ORIENTATION_INTERVAL_MS = 100;
+
+  /** In degrees. */
+  public static float        ORIENTATION_DEADBAND    = 1f;
+
+  public static int          LIGHT_INTERVAL_MS       = 500;
+
+  /** In lux. */
+  public static float        LIGHT_DEADBAND          = 5f;
+
+  /** Longest time without an accelerometer update, in milliseconds. */
+  public static int          MAX_SILENCE_MS          = 1000;
+
+  /** How often every reading is sent whatever it is, in milliseconds. */
+  public static int          FULL_REFRESH_MS         = 60000;
+
+  private final SensorGate   accelGate               = new SensorGate(false);
+
+  private final SensorGate   compassGate             = new SensorGate(false);
+
+  private final SensorGate   orientationGate         = new SensorGate(true);
 
-  private WifiManager                      wifi;
+  private final SensorGate   lightGate               = new SensorGate(false);
 
-  private long                             lastTimetamp  = 0;
+  private WifiManager        wifi;
 
-  private int                              maxUpdateRate = 100;
+  private Handler            stateReciver;
 
-  private Handler                          stateReciver;
+  // last battery and wifi values sent; guarded by this
+  private int                batteryLevel            = -1;
+
+  private int                batteryTemp             = Integer.MIN_VALUE;
+
+  private PhoneState.WIFI    wifiState;
+
+  // guarded by this
+  private long               lastFullRefresh         = System.currentTimeMillis();
 
   // public SensorManager getSensorManager();
 
   public SensorListenerImpl(Handler h, WifiManager w)
   {
     stateReciver = h;
-    state = CellbotProtos.PhoneState.newBuilder();
-    wifi =w;
+    wifi = w;
   }
 
   public void onBottomUp()
@@ -69,53 +115,86 @@ public class SensorListenerImpl implements SensorListener
   /**
    * onAccelerationChanged callback
    */
-  public void onAccelerationChanged(float x, float y, float z)
+  public synchronized void onAccelerationChanged(float x, float y, float z)
   {
-
-    CellbotProtos.PhoneState.Accelerometer.Builder b = CellbotProtos.PhoneState.Accelerometer.newBuilder();
-
-    b.setX(x);
-    b.setY(y);
-    b.setZ(z);
-    state.setAccelerometer(b);
-
-    sendPhoneState();
+    long now = System.currentTimeMillis();
+    refreshIfDue(now);
+    if (!accelGate.accept(now, ACCEL_INTERVAL_MS, MAX_SILENCE_MS, ACCEL_DEADBAND, x, y, z))
+    {
+      return;
+    }
+    sendPhoneState(newPhoneState(now).setAccelerometer(
+        PhoneState.Accelerometer.newBuilder().setX(x).setY(y).setZ(z)));
   }
 
   /**
    * onCompassChanged callback
    */
-  public void onCompassChanged(float x, float y, float z)
+  public synchronized void onCompassChanged(float x, float y, float z)
   {
-    CellbotProtos.PhoneState.Compass.Builder b = CellbotProtos.PhoneState.Compass.newBuilder();
-
-    b.setX(x);
-    b.setY(y);
-    b.setZ(z);
-    state.setCompass(b);
-    sendPhoneState();
+    long now = System.currentTimeMillis();
+    refreshIfDue(now);
+    if (!compassGate.accept(now, COMPASS_INTERVAL_MS, 0, COMPASS_DEADBAND, x, y, z))
+    {
+      return;
+    }
+    sendPhoneState(newPhoneState(now).setCompass(PhoneState.Compass.newBuilder().setX(x).setY(y).setZ(z)));
   }
 
-  public void onOrientationChanged(float azimuth, float pitch, float roll)
+  public synchronized void onOrientationChanged(float azimuth, float pitch, float roll)
   {
-    CellbotProtos.PhoneState.Orientation.Builder b = CellbotProtos.PhoneState.Orientation.newBuilder();
+    long now = System.currentTimeMillis();
+    refreshIfDue(now);
+    if (!orientationGate.accept(now, ORIENTATION_INTERVAL_MS, 0, ORIENTATION_DEADBAND, azimuth, pitch, roll))
+    {
+      return;
+    }
+    sendPhoneState(newPhoneState(now).setOrientation(
+        PhoneState.Orientation.newBuilder().setAzimuth(azimuth).setPitch(pitch).setRoll(roll)));
+  }
 
-    b.setAzimuth(azimuth);
-    b.setPitch(pitch);
-    b.setRoll(roll);
+  public synchronized void onLightLevelChanged(float level)
+  {
+    long now = System.currentTimeMillis();
+    refreshIfDue(now);
+    if (!lightGate.accept(now, LIGHT_INTERVAL_MS, 0, LIGHT_DEADBAND, level, 0, 0))
+    {
+      return;
+    }
+    sendPhoneState(newPhoneState(now).setLightLevel(level));
+  }
 
-    state.setOrientation(b);
-    sendPhoneState();
+  private void refreshIfDue(long now)
+  {
+    if (now - lastFullRefresh >= FULL_REFRESH_MS)
+    {
+      resendAll();
+    }
+  }
 
+  /**
+   * Makes the next reading of every sensor go out whatever it is, such as
+   * after the server lost the bot's state. Battery and wifi go out at their
+   * next broadcast.
+   */
+  public synchronized void resendAll()
+  {
+    lastFullRefresh = System.currentTimeMillis();
+    accelGate.reset();
+    compassGate.reset();
+    orientationGate.reset();
+    lightGate.reset();
+    batteryLevel = -1;
+    batteryTemp = Integer.MIN_VALUE;
+    wifiState = null;
   }
 
   public BroadcastReceiver mBatInfoReceiver  = new BroadcastReceiver()
                                              {
                                                public void onReceive(Context arg0, Intent intent)
                                                {
-                                                 state.setPhoneBatteryLevel(intent.getIntExtra("level", 0));
-                                                 state.setPhoneBatteryTemp(intent.getIntExtra("temperature", 0));
-                                                 sendPhoneState();
+                                                 onBatteryChanged(intent.getIntExtra("level", 0), intent
+                                                     .getIntExtra("temperature", 0));
                                                }
                                              };
 
@@ -126,7 +205,8 @@ public class SensorListenerImpl implements SensorListener
                                                public void onReceive(Context context, Intent intent)
                                                {
                                                  WifiInfo info = wifi.getConnectionInfo();
-                                                 Builder ws = CellbotProtos.PhoneState.WIFI.newBuilder();
+                                                 PhoneState.WIFI.Builder ws = CellbotProtos.PhoneState.WIFI
+                                                     .newBuilder();
 
                                                  ws.setStrength(info.getRssi());
                                                  ws.setKbps(info.getLinkSpeed());
@@ -134,36 +214,41 @@ public class SensorListenerImpl implements SensorListener
                                                  ws.setIp(info.getIpAddress());
                                                  // ws.setSsid(info.getBSSID());
 
-                                                 // state.setWifiStrength();
-
-                                                 // state.setWifiSpeed(info.getLinkSpeed());
-
-                                                 sendPhoneState();
+                                                 onWifiChanged(ws.build());
                                                }
 
                                              };
 
-  public void onLightLevelChanged(float level)
+  private synchronized void onBatteryChanged(int level, int temp)
   {
-    state.setLightLevel(level);
-    sendPhoneState();
+    if (level == batteryLevel && temp == batteryTemp)
+    {
+      return;
+    }
+    batteryLevel = level;
+    batteryTemp = temp;
+    sendPhoneState(newPhoneState(System.currentTimeMillis()).setPhoneBatteryLevel(level)
+        .setPhoneBatteryTemp(temp));
   }
 
-  private synchronized void sendPhoneState()
+  private synchronized void onWifiChanged(PhoneState.WIFI ws)
   {
-
-    long now = System.currentTimeMillis();
-    if (now - lastTimetamp > maxUpdateRate)
+    if (ws.equals(wifiState))
     {
-      lastTimetamp = now;
+      return;
     }
-    state.setTimestamp(now);
-    state.setBotID(RobotStateHandler.ROBOT_ID);
-    PhoneState ps = state.build();
+    wifiState = ws;
+    sendPhoneState(newPhoneState(System.currentTimeMillis()).setWifi(ws));
+  }
 
-    stateReciver.obtainMessage(0, ps).sendToTarget();
-    state = CellbotProtos.PhoneState.newBuilder(ps);
+  private static PhoneState.Builder newPhoneState(long now)
+  {
+    return PhoneState.newBuilder().setTimestamp(now).setBotID(RobotStateHandler.ROBOT_ID);
+  }
 
+  private void sendPhoneState(PhoneState.Builder update)
+  {
+    stateReciver.obtainMessage(0, update.build()).sendToTarget();
   }
 
 }
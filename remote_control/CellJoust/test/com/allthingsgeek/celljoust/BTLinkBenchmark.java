@@ -0,0 +1,84 @@
+package com.allthingsgeek.celljoust;
+
+import java.io.IOException;
+
+/**
+ * Command round trips over a {@link LoopbackStream} standing in for the
+ * Bluetooth link: each command is echoed back as a line, so this measures
+ * what BTLink's queueing, batching and line splitting cost on top of the
+ * radio. Run with: java com.allthingsgeek.celljoust.BTLinkBenchmark [commands]
+ */
+public class BTLinkBenchmark
+{
+  public static void main(String[] args) throws Exception
+  {
+    int commands = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+    // warm up
+    run(commands / 4, 1, false);
+    for (int inFlight = 1; inFlight <= 16; inFlight *= 4)
+    {
+      run(inFlight == 1 ? Math.max(commands / 10, 1) : commands, inFlight, true);
+    }
+  }
+
+  private static void run(int commands, int inFlight, boolean report) throws Exception
+  {
+    // roughly what an RFCOMM socket buffers
+    LoopbackStream radio = new LoopbackStream(1024);
+    Counter counter = new Counter();
+    BTLink link = new BTLink(radio.getInputStream(), radio.getOutputStream(), counter);
+    link.start();
+    // text commands, so none are coalesced
+    byte[] command = "p1\n".getBytes("US-ASCII");
+
+    long latencyNanos = 0;
+    long start = System.nanoTime();
+    for (int sent = 0; sent < commands;)
+    {
+      long t = System.nanoTime();
+      int batch = Math.min(inFlight, commands - sent);
+      for (int i = 0; i < batch; i++)
+      {
+        link.send(command);
+      }
+      sent += batch;
+      counter.await(sent);
+      latencyNanos += System.nanoTime() - t;
+    }
+    long elapsed = System.nanoTime() - start;
+    link.close();
+    radio.close();
+    if (!report)
+    {
+      return;
+    }
+
+    System.out.println(String.format("in flight %2d: %9.0f commands/s, mean round trip %6.1f us, %d dropped",
+        inFlight, commands * 1e9 / elapsed, latencyNanos / 1e3 / Math.ceil((double) commands / inFlight),
+        link.getDroppedCommandCount()));
+  }
+
+  private static final class Counter implements BTLink.Listener
+  {
+    private long lines;
+
+    public synchronized void onLine(String line)
+    {
+      lines++;
+      notifyAll();
+    }
+
+    public void onError(IOException e)
+    {
+    }
+
+    synchronized void await(long n) throws InterruptedException
+    {
+      while (lines < n)
+      {
+        wait();
+      }
+    }
+  }
+}
@@ -0,0 +1,232 @@
+package com.allthingsgeek.celljoust;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class BTLinkTest extends TestCase
+{
+  public void testLinesSplitAcrossReads() throws Exception
+  {
+    // one byte per read, so every line straddles reads
+    InputStream in = new ByteArrayInputStream("12 0 3\r\nL ok\n\nlast".getBytes("US-ASCII"))
+    {
+      public synchronized int read(byte[] b, int off, int len)
+      {
+        return super.read(b, off, Math.min(len, 1));
+      }
+    };
+    Lines lines = new Lines();
+    BTLink link = new BTLink(in, new ByteArrayOutputStream(), lines);
+    link.start();
+
+    assertTrue(lines.awaitError(2000));
+    assertEquals(3, lines.lines.size());
+    assertEquals("12 0 3", lines.lines.get(0));
+    assertEquals("L ok", lines.lines.get(1));
+    assertEquals("", lines.lines.get(2));
+    assertEquals(3, link.getLinesRead());
+  }
+
+  public void testOverlongLineIsPassedOn() throws Exception
+  {
+    byte[] data = new byte[BTLink.MAX_LINE + 3];
+    java.util.Arrays.fill(data, (byte) 'x');
+    data[data.length - 1] = '\n';
+    Lines lines = new Lines();
+    BTLink link = new BTLink(new ByteArrayInputStream(data), new ByteArrayOutputStream(), lines);
+    link.start();
+
+    assertTrue(lines.awaitError(2000));
+    assertEquals(2, lines.lines.size());
+    assertEquals(BTLink.MAX_LINE, lines.lines.get(0).length());
+    assertEquals("xx", lines.lines.get(1));
+  }
+
+  public void testQueuedDriveCommandsCoalesce() throws Exception
+  {
+    GatedOutputStream out = new GatedOutputStream();
+    Lines lines = new Lines();
+    BTLink link = new BTLink(new LoopbackStream(16).getInputStream(), out, lines);
+    link.start();
+
+    // the first write blocks in the stream, the rest queue up behind it
+    link.send(ascii("f\n"));
+    out.awaitWriter();
+    link.send(ascii("l\n"));
+    link.send(ascii("r\n"));
+    link.send(ascii("p\n"));
+    link.send(ascii("b\n"));
+    link.send(ascii("s\n"));
+    out.open();
+
+    assertTrue(out.awaitBytes(8, 2000));
+    assertEquals("f\nr\np\ns\n", new String(out.toByteArray(), "US-ASCII"));
+    assertEquals(2, link.getCoalescedCommandCount());
+    assertEquals(0, link.getDroppedCommandCount());
+    link.close();
+  }
+
+  public void testFullQueueDropsOldest() throws Exception
+  {
+    GatedOutputStream out = new GatedOutputStream();
+    BTLink link = new BTLink(new LoopbackStream(16).getInputStream(), out, new Lines());
+    link.start();
+
+    link.send(ascii("x\n"));
+    out.awaitWriter();
+    for (int i = 0; i < BTLink.QUEUE_CAPACITY + 2; i++)
+    {
+      link.send(ascii((char) ('A' + i % 26) + "\n"));
+    }
+    assertEquals(2, link.getDroppedCommandCount());
+    link.close();
+  }
+
+  public void testEchoOverLoopback() throws Exception
+  {
+    LoopbackStream radio = new LoopbackStream(64);
+    Lines lines = new Lines();
+    BTLink link = new BTLink(radio.getInputStream(), radio.getOutputStream(), lines);
+    link.start();
+
+    link.send(ascii("hello\n"));
+    link.send(ascii("p\n"));
+    assertTrue(lines.awaitLines(2, 2000));
+    assertEquals("hello", lines.lines.get(0));
+    assertEquals("p", lines.lines.get(1));
+
+    radio.close();
+    assertTrue(lines.awaitError(2000));
+    link.close();
+  }
+
+  public void testIsDriveCommand()
+  {
+    assertTrue(BTLink.isDriveCommand(ascii("f\n")));
+    assertTrue(BTLink.isDriveCommand(ascii("s\n")));
+    assertFalse(BTLink.isDriveCommand(ascii("p\n")));
+    assertFalse(BTLink.isDriveCommand(ascii("f")));
+    assertFalse(BTLink.isDriveCommand(ascii("fire\n")));
+  }
+
+  static byte[] ascii(String s)
+  {
+    try
+    {
+      return s.getBytes("US-ASCII");
+    }
+    catch (IOException e)
+    {
+      throw new AssertionError(e);
+    }
+  }
+
+  static final class Lines implements BTLink.Listener
+  {
+    final List<String> lines = new ArrayList<String>();
+
+    private boolean    failed;
+
+    public synchronized void onLine(String line)
+    {
+      lines.add(line);
+      notifyAll();
+    }
+
+    public synchronized void onError(IOException e)
+    {
+      failed = true;
+      notifyAll();
+    }
+
+    synchronized boolean awaitLines(int n, long timeoutMs) throws InterruptedException
+    {
+      long deadline = System.currentTimeMillis() + timeoutMs;
+      while (lines.size() < n && System.currentTimeMillis() < deadline)
+      {
+        wait(Math.max(deadline - System.currentTimeMillis(), 1));
+      }
+      return lines.size() >= n;
+    }
+
+    synchronized boolean awaitError(long timeoutMs) throws InterruptedException
+    {
+      long deadline = System.currentTimeMillis() + timeoutMs;
+      while (!failed && System.currentTimeMillis() < deadline)
+      {
+        wait(Math.max(deadline - System.currentTimeMillis(), 1));
+      }
+      return failed;
+    }
+  }
+
+  /** Holds the first write until opened, like a radio that is not ready. */
+  static final class GatedOutputStream extends OutputStream
+  {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    private boolean                     writing;
+
+    private boolean                     open;
+
+    public void write(int b) throws IOException
+    {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public synchronized void write(byte[] b, int off, int len) throws IOException
+    {
+      writing = true;
+      notifyAll();
+      try
+      {
+        while (!open)
+        {
+          wait();
+        }
+      }
+      catch (InterruptedException e)
+      {
+        throw new IOException("interrupted");
+      }
+      bytes.write(b, off, len);
+      notifyAll();
+    }
+
+    synchronized void awaitWriter() throws InterruptedException
+    {
+      while (!writing)
+      {
+        wait();
+      }
+    }
+
+    synchronized void open()
+    {
+      open = true;
+      notifyAll();
+    }
+
+    synchronized boolean awaitBytes(int n, long timeoutMs) throws InterruptedException
+    {
+      long deadline = System.currentTimeMillis() + timeoutMs;
+      while (bytes.size() < n && System.currentTimeMillis() < deadline)
+      {
+        wait(Math.max(deadline - System.currentTimeMillis(), 1));
+      }
+      return bytes.size() >= n;
+    }
+
+    synchronized byte[] toByteArray()
+    {
+      return bytes.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package com.allthingsgeek.celljoust;
+
+import junit.framework.TestCase;
+
+public class ServoWaveformTest extends TestCase
+{
+  private static final int RATE = 44100;
+
+  private static final int MIN  = RATE / 1200;
+
+  private static final int MAX  = RATE / 456;
+
+  private ServoWaveform    waveform;
+
+  private short[]          out;
+
+  protected void setUp()
+  {
+    waveform = new ServoWaveform(RATE, MIN, MAX, Short.MAX_VALUE);
+    out = new short[waveform.getPeriod() * 2];
+  }
+
+  public void testStartsCentered()
+  {
+    waveform.render(out, 0);
+    assertEquals((MIN + MAX) / 2, pulseWidth(out, 0));
+    assertEquals((MIN + MAX) / 2, pulseWidth(out, 1));
+  }
+
+  public void testDriveServosMoveTogether()
+  {
+    waveform.setWidth(1, MIN + 3);
+    waveform.setWidths(MIN + 1, MAX + 10);
+    assertEquals(MIN + 1, waveform.getWidth(0));
+    assertEquals(MIN + 3, waveform.getWidth(1));
+    assertEquals(MAX, waveform.getWidth(2));
+    waveform.render(out, 0);
+    assertEquals(MIN + 1, pulseWidth(out, 0));
+    assertEquals(MAX, pulseWidth(out, 1));
+  }
+
+  public void testPulseWidthsFollowTheDriveServos()
+  {
+    waveform.setWidth(0, MIN + 3);
+    waveform.setWidth(2, MAX - 1);
+    waveform.setWidth(1, MAX);
+    waveform.render(out, 0);
+    assertEquals(MIN + 3, pulseWidth(out, 0));
+    assertEquals(MAX - 1, pulseWidth(out, 1));
+    assertEquals(MAX, waveform.getWidth(1));
+    assertEquals(MIN + 3, waveform.getWidth(0));
+  }
+
+  public void testRightPulseStartsThePeriodAndLeftIsHalfAPeriodLater()
+  {
+    int period = waveform.getPeriod();
+    waveform.render(out, 0);
+    assertTrue(out[1] > 0);
+    assertTrue(out[2 * (period - 1) + 1] < 0);
+    assertTrue(out[2 * (period - period / 2)] > 0);
+    assertTrue(out[2 * (period - period / 2 - 1)] < 0);
+  }
+
+  public void testWidthsAreClamped()
+  {
+    waveform.setWidth(0, 0);
+    waveform.setWidth(2, 10000);
+    waveform.render(out, 0);
+    assertEquals(MIN, pulseWidth(out, 0));
+    assertEquals(MAX, pulseWidth(out, 1));
+  }
+
+  public void testRendersAtOffset()
+  {
+    short[] two = new short[out.length * 2];
+    waveform.setWidth(0, MIN);
+    waveform.render(two, 0);
+    waveform.setWidth(0, MAX);
+    waveform.render(two, out.length);
+    System.arraycopy(two, out.length, out, 0, out.length);
+    assertEquals(MAX, pulseWidth(out, 0));
+  }
+
+  public void testConcurrentUpdatesNeverTearAPeriod() throws Exception
+  {
+    final int a = MIN + 5;
+    final int b = MAX - 5;
+    waveform.setWidth(0, a);
+    waveform.setWidth(2, a);
+    Thread setter = new Thread()
+    {
+      public void run()
+      {
+        for (int i = 0; !isInterrupted(); i++)
+        {
+          int w = (i & 1) == 0 ? a : b;
+          waveform.setWidth(0, w);
+          waveform.setWidth(2, w);
+          waveform.setWidth(1, w);
+        }
+      }
+    };
+    setter.start();
+    try
+    {
+      for (int i = 0; i < 20000; i++)
+      {
+        waveform.render(out, 0);
+        int left = pulseWidth(out, 0);
+        int right = pulseWidth(out, 1);
+        assertTrue(left == a || left == b);
+        assertTrue(right == a || right == b);
+      }
+    }
+    finally
+    {
+      setter.interrupt();
+      setter.join();
+    }
+  }
+
+  /**
+   * @return the length of the single high run in one channel of a rendered
+   *         period, taken as circular, failing if there is more than one
+   */
+  private int pulseWidth(short[] stereo, int channel)
+  {
+    int period = stereo.length / 2;
+    int high = 0;
+    int rises = 0;
+    for (int i = 0; i < period; i++)
+    {
+      short s = stereo[2 * i + channel];
+      short prev = stereo[2 * ((i + period - 1) % period) + channel];
+      if (s > 0)
+      {
+        high++;
+        if (prev <= 0)
+        {
+          rises++;
+        }
+      }
+      else
+      {
+        assertEquals(-Short.MAX_VALUE, s);
+      }
+    }
+    assertEquals(1, rises);
+    return high;
+  }
+}
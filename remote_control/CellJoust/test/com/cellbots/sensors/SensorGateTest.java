@@ -0,0 +1,33 @@
+package com.cellbots.sensors;
+
+import junit.framework.TestCase;
+
+public class SensorGateTest extends TestCase
+{
+  public void testSmallChangesAreTurnedAway()
+  {
+    SensorGate gate = new SensorGate(false);
+    assertTrue(gate.accept(0, 100, 0, 1f, 0, 0, 0));
+    assertFalse(gate.accept(50, 100, 0, 1f, 5, 0, 0));
+    assertFalse(gate.accept(200, 100, 0, 1f, 0.5f, 0, 0));
+    assertTrue(gate.accept(300, 100, 0, 1f, 2, 0, 0));
+  }
+
+  public void testSilenceIsBrokenWithinTheDeadBand()
+  {
+    SensorGate gate = new SensorGate(false);
+    assertTrue(gate.accept(0, 100, 1000, 1f, 0, 0, 0));
+    assertFalse(gate.accept(999, 100, 1000, 1f, 0, 0, 0));
+    assertTrue(gate.accept(1000, 100, 1000, 1f, 0, 0, 0));
+    assertFalse(gate.accept(1500, 100, 1000, 1f, 0, 0, 0));
+  }
+
+  public void testAnglesWrapAround()
+  {
+    SensorGate gate = new SensorGate(true);
+    assertTrue(gate.accept(0, 0, 0, 1f, 359, 0, 0));
+    assertFalse(gate.accept(100, 0, 0, 1f, 0, 0, 0));
+    gate.reset();
+    assertTrue(gate.accept(200, 0, 0, 1f, 0.5f, 0, 0));
+  }
+}
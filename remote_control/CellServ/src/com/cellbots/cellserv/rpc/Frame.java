@@ -0,0 +1,61 @@
+package com.cellbots.cellserv.rpc;
+
+import java.io.IOException;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+
+/**
+ * One RPC frame as read off a connection; see {@link FrameWriter} for the
+ * format. The payload is kept as bytes so it can be parsed off the reader
+ * thread, once the message type is known.
+ */
+final class Frame
+{
+  long       id;
+
+  String     method;
+
+  ByteString payload;
+
+  String     error;
+
+  /**
+   * @return the next frame, or null if the peer closed the connection
+   */
+  static Frame read(CodedInputStream in) throws IOException
+  {
+    // the stream lives as long as the connection; count each frame on its own
+    // against the size limit
+    in.resetSizeCounter();
+    if (in.isAtEnd())
+    {
+      return null;
+    }
+    int length = in.readRawVarint32();
+    int oldLimit = in.pushLimit(length);
+    Frame frame = new Frame();
+    for (int tag; (tag = in.readTag()) != 0;)
+    {
+      switch (tag >>> 3)
+      {
+        case FrameWriter.ID:
+          frame.id = in.readUInt64();
+          break;
+        case FrameWriter.METHOD:
+          frame.method = in.readString();
+          break;
+        case FrameWriter.PAYLOAD:
+          frame.payload = in.readBytes();
+          break;
+        case FrameWriter.ERROR:
+          frame.error = in.readString();
+          break;
+        default:
+          in.skipField(tag);
+      }
+    }
+    in.popLimit(oldLimit);
+    return frame;
+  }
+}
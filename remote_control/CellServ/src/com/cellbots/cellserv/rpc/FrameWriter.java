@@ -0,0 +1,100 @@
+package com.cellbots.cellserv.rpc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+/**
+ * Writes RPC frames to one connection for any number of threads.
+ *
+ * A frame is a varint length followed by an envelope:
+ *
+ * <pre>
+ * message Envelope {
+ *   optional uint64 id = 1;      // matches a response to its request
+ *   optional string method = 2;  // requests only: "Service.method"
+ *   optional bytes payload = 3;  // the request or response message
+ *   optional string error = 4;   // failed responses only
+ * }
+ * </pre>
+ *
+ * The payload is written straight from the message, without encoding it to a
+ * byte array first. Writers queue up behind one lock, and only the last in a
+ * burst flushes the socket, so many small calls in flight share packets.
+ */
+final class FrameWriter
+{
+  static final int                ID      = 1;
+
+  static final int                METHOD  = 2;
+
+  static final int                PAYLOAD = 3;
+
+  static final int                ERROR   = 4;
+
+  private final CodedOutputStream out;
+
+  private final OutputStream      stream;
+
+  private final AtomicInteger     waiting = new AtomicInteger();
+
+  FrameWriter(OutputStream stream)
+  {
+    this.stream = stream;
+    this.out = CodedOutputStream.newInstance(stream, 8192);
+  }
+
+  void writeRequest(long id, String method, MessageLite request) throws IOException
+  {
+    write(id, method, request, null);
+  }
+
+  void writeResponse(long id, MessageLite response) throws IOException
+  {
+    write(id, null, response, null);
+  }
+
+  void writeError(long id, String error) throws IOException
+  {
+    write(id, null, null, error);
+  }
+
+  private void write(long id, String method, MessageLite payload, String error) throws IOException
+  {
+    int size = CodedOutputStream.computeUInt64Size(ID, id);
+    if (method != null)
+      size += CodedOutputStream.computeStringSize(METHOD, method);
+    if (payload != null)
+      size += CodedOutputStream.computeMessageSize(PAYLOAD, payload);
+    if (error != null)
+      size += CodedOutputStream.computeStringSize(ERROR, error);
+
+    waiting.incrementAndGet();
+    synchronized (this)
+    {
+      try
+      {
+        out.writeRawVarint32(size);
+        out.writeUInt64(ID, id);
+        if (method != null)
+          out.writeString(METHOD, method);
+        if (payload != null)
+          out.writeMessage(PAYLOAD, payload);
+        if (error != null)
+          out.writeString(ERROR, error);
+      }
+      finally
+      {
+        // whoever is queued behind us will flush
+        if (waiting.decrementAndGet() == 0)
+        {
+          out.flush();
+          stream.flush();
+        }
+      }
+    }
+  }
+}
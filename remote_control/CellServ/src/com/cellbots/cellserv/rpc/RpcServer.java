@@ -0,0 +1,394 @@
+package com.cellbots.cellserv.rpc;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.protobuf.BlockingService;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Descriptors.ServiceDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.Service;
+import com.google.protobuf.ServiceException;
+import com.google.protobuf.UninitializedMessageException;
+
+/**
+ * Serves protobuf Services, such as the CellbotProtos HALService,
+ * MasterControlService and HIDService, over TCP.
+ *
+ * Each connection has a reader thread that only reads frames; calls are parsed
+ * and run on the executor, so a client can keep many calls in flight on one
+ * connection and slow calls do not hold up fast ones. Responses go back in
+ * the order they complete, matched to their requests by ID. A service may
+ * answer from any thread, at any later time.
+ *
+ * A connection may have at most maxCallsPerConnection calls queued or running;
+ * past that its reader stops reading until one is answered, so a client that
+ * pipelines faster than the services keep up is held back by TCP flow control
+ * instead of growing the executor's queue. A call the executor rejects is
+ * answered with an error.
+ *
+ * If accepting fails while the server is open, such as when the process is
+ * out of file descriptors, the acceptor logs it and waits before trying
+ * again, twice as long each time up to MAX_ACCEPT_BACKOFF_MS.
+ */
+public class RpcServer
+{
+  private final Map<String, Service> services    = new ConcurrentHashMap<String, Service>();
+
+  /** Calls a connection may have queued or running if not told otherwise. */
+  public static final int            DEFAULT_MAX_CALLS_PER_CONNECTION = 256;
+
+  private final ExecutorService      executor;
+
+  private final int                  maxCallsPerConnection;
+
+  private final Set<Socket>          connections = Collections.synchronizedSet(new HashSet<Socket>());
+
+  private ServerSocket               serverSocket;
+
+  private static final long          MIN_ACCEPT_BACKOFF_MS = 10;
+
+  private static final long          MAX_ACCEPT_BACKOFF_MS = 1000;
+
+  private static final Logger        log         = Logger.getLogger(RpcServer.class.getName());
+
+  /**
+   * @param executor runs the calls; its threads should not be needed elsewhere
+   *          while calls are blocked
+   */
+  public RpcServer(ExecutorService executor)
+  {
+    this(executor, DEFAULT_MAX_CALLS_PER_CONNECTION);
+  }
+
+  /**
+   * @param executor runs the calls; its threads should not be needed elsewhere
+   *          while calls are blocked
+   * @param maxCallsPerConnection most calls of one connection queued or running
+   *          at a time
+   */
+  public RpcServer(ExecutorService executor, int maxCallsPerConnection)
+  {
+    this.executor = executor;
+    this.maxCallsPerConnection = maxCallsPerConnection;
+  }
+
+  public void addService(Service service)
+  {
+    services.put(service.getDescriptorForType().getFullName(), service);
+  }
+
+  /**
+   * Adds a service written against the generated BlockingInterface. Its calls
+   * hold an executor thread until they return.
+   */
+  public void addService(final BlockingService service)
+  {
+    addService(new Service()
+    {
+      public ServiceDescriptor getDescriptorForType()
+      {
+        return service.getDescriptorForType();
+      }
+
+      public void callMethod(MethodDescriptor method, RpcController controller, Message request,
+          RpcCallback<Message> done)
+      {
+        Message response;
+        try
+        {
+          response = service.callBlockingMethod(method, controller, request);
+        }
+        catch (ServiceException e)
+        {
+          controller.setFailed(e.getMessage());
+          response = null;
+        }
+        done.run(response);
+      }
+
+      public Message getRequestPrototype(MethodDescriptor method)
+      {
+        return service.getRequestPrototype(method);
+      }
+
+      public Message getResponsePrototype(MethodDescriptor method)
+      {
+        return service.getResponsePrototype(method);
+      }
+    });
+  }
+
+  /**
+   * Starts accepting connections.
+   *
+   * @param port the port to listen on, or 0 for any free port
+   */
+  public void start(int port) throws IOException
+  {
+    serverSocket = new ServerSocket();
+    serverSocket.setReuseAddress(true);
+    serverSocket.bind(new InetSocketAddress(port));
+    Thread acceptor = new Thread("rpc-accept-" + getPort())
+    {
+      public void run()
+      {
+        accept();
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public int getPort()
+  {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Closes the listening socket and every open connection. Calls still running
+   * finish, but their responses are dropped.
+   */
+  public void stop() throws IOException
+  {
+    serverSocket.close();
+    synchronized (connections)
+    {
+      for (Socket socket : connections)
+      {
+        socket.close();
+      }
+      connections.clear();
+    }
+  }
+
+  private void accept()
+  {
+    long backoffMs = 0;
+    while (!serverSocket.isClosed())
+    {
+      final Socket socket;
+      try
+      {
+        socket = serverSocket.accept();
+      }
+      catch (IOException e)
+      {
+        if (serverSocket.isClosed())
+        {
+          return;
+        }
+        backoffMs = Math.min(Math.max(backoffMs * 2, MIN_ACCEPT_BACKOFF_MS), MAX_ACCEPT_BACKOFF_MS);
+        log.log(Level.WARNING, "accept failed; trying again in " + backoffMs + " ms", e);
+        try
+        {
+          Thread.sleep(backoffMs);
+        }
+        catch (InterruptedException ie)
+        {
+          return;
+        }
+        continue;
+      }
+      backoffMs = 0;
+      try
+      {
+        socket.setTcpNoDelay(true);
+      }
+      catch (IOException e)
+      {
+        // the connection is gone already
+        close(socket);
+        continue;
+      }
+      connections.add(socket);
+      Thread reader = new Thread("rpc-conn-" + socket.getRemoteSocketAddress())
+      {
+        public void run()
+        {
+          serve(socket);
+        }
+      };
+      reader.setDaemon(true);
+      reader.start();
+    }
+  }
+
+  private void serve(Socket socket)
+  {
+    try
+    {
+      CodedInputStream in = CodedInputStream.newInstance(new BufferedInputStream(socket.getInputStream(), 8192));
+      FrameWriter out = new FrameWriter(socket.getOutputStream());
+      Semaphore calls = new Semaphore(maxCallsPerConnection);
+      for (Frame frame; (frame = Frame.read(in)) != null;)
+      {
+        // stop reading while the connection is at its limit
+        calls.acquire();
+        Call call = new Call(frame, out, socket, calls);
+        try
+        {
+          executor.execute(call);
+        }
+        catch (RejectedExecutionException e)
+        {
+          call.fail("server busy");
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      // the client went away or sent garbage; either way the connection is done
+    }
+    catch (InterruptedException e)
+    {
+      // shutting down
+    }
+    finally
+    {
+      close(socket);
+    }
+  }
+
+  private void close(Socket socket)
+  {
+    connections.remove(socket);
+    try
+    {
+      socket.close();
+    }
+    catch (IOException e)
+    {
+      // already closed
+    }
+  }
+
+  private final class Call implements Runnable
+  {
+    private final Frame         frame;
+
+    private final FrameWriter   out;
+
+    private final Socket        socket;
+
+    private final Semaphore     calls;
+
+    private final AtomicBoolean answered = new AtomicBoolean();
+
+    Call(Frame frame, FrameWriter out, Socket socket, Semaphore calls)
+    {
+      this.frame = frame;
+      this.out = out;
+      this.socket = socket;
+      this.calls = calls;
+    }
+
+    public void run()
+    {
+      String name = frame.method == null ? "" : frame.method;
+      int dot = name.lastIndexOf('.');
+      Service service = dot < 0 ? null : services.get(name.substring(0, dot));
+      MethodDescriptor method = service == null ? null : service.getDescriptorForType().findMethodByName(
+          name.substring(dot + 1));
+      if (method == null)
+      {
+        fail("unknown method " + name);
+        return;
+      }
+
+      Message request;
+      try
+      {
+        Message.Builder builder = service.getRequestPrototype(method).newBuilderForType();
+        if (frame.payload != null)
+        {
+          builder.mergeFrom(frame.payload);
+        }
+        request = builder.build();
+      }
+      catch (InvalidProtocolBufferException e)
+      {
+        fail("bad request for " + name + ": " + e.getMessage());
+        return;
+      }
+      catch (UninitializedMessageException e)
+      {
+        fail("bad request for " + name + ": " + e.getMessage());
+        return;
+      }
+
+      final SimpleRpcController controller = new SimpleRpcController();
+      try
+      {
+        service.callMethod(method, controller, request, new RpcCallback<Message>()
+        {
+          public void run(Message response)
+          {
+            if (controller.failed())
+              fail(controller.errorText());
+            else if (response == null)
+              fail("no response");
+            else
+              respond(response);
+          }
+        });
+      }
+      catch (RuntimeException e)
+      {
+        fail(String.valueOf(e));
+      }
+    }
+
+    private void respond(Message response)
+    {
+      if (!answered.compareAndSet(false, true))
+      {
+        return;
+      }
+      calls.release();
+      try
+      {
+        out.writeResponse(frame.id, response);
+      }
+      catch (IOException e)
+      {
+        close(socket);
+      }
+    }
+
+    private void fail(String error)
+    {
+      if (!answered.compareAndSet(false, true))
+      {
+        return;
+      }
+      calls.release();
+      try
+      {
+        out.writeError(frame.id, error);
+      }
+      catch (IOException e)
+      {
+        close(socket);
+      }
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package com.cellbots.cellserv.rpc;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+
+/**
+ * RpcController for calls over {@link SocketRpcChannel} and {@link RpcServer}.
+ * Use one per call. Cancelling is local only: the server still runs the call,
+ * but a cancelled call's callback is not run.
+ */
+public class SimpleRpcController implements RpcController
+{
+  private volatile String  error;
+
+  private volatile boolean canceled;
+
+  public void reset()
+  {
+    error = null;
+    canceled = false;
+  }
+
+  public boolean failed()
+  {
+    return error != null;
+  }
+
+  public String errorText()
+  {
+    return error;
+  }
+
+  public void startCancel()
+  {
+    canceled = true;
+  }
+
+  public void setFailed(String reason)
+  {
+    error = reason == null ? "failed" : reason;
+  }
+
+  public boolean isCanceled()
+  {
+    return canceled;
+  }
+
+  public void notifyOnCancel(RpcCallback<Object> callback)
+  {
+    // calls are never cancelled on the server side
+  }
+}
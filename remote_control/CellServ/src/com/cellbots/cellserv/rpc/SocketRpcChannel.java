@@ -0,0 +1,263 @@
+package com.cellbots.cellserv.rpc;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import com.google.protobuf.UninitializedMessageException;
+
+/**
+ * Client end of an {@link RpcServer} connection, for the generated service
+ * stubs:
+ *
+ * <pre>
+ * SocketRpcChannel channel = SocketRpcChannel.connect(host, port);
+ * HALService hal = HALService.newStub(channel);
+ * hal.execute(new SimpleRpcController(), command, callback);
+ * </pre>
+ *
+ * Any number of threads may call at once and calls do not wait for each
+ * other: each gets a request ID and the answers are matched up as they come
+ * back. Callbacks run on the channel's reader thread, so they should hand off
+ * anything slow. If the connection drops, every pending call fails.
+ */
+public class SocketRpcChannel implements RpcChannel, BlockingRpcChannel
+{
+  private final Socket                 socket;
+
+  private final FrameWriter            out;
+
+  private final AtomicLong             nextId  = new AtomicLong();
+
+  private final Map<Long, PendingCall> pending = new ConcurrentHashMap<Long, PendingCall>();
+
+  private volatile String              closedReason;
+
+  private SocketRpcChannel(Socket socket) throws IOException
+  {
+    this.socket = socket;
+    this.out = new FrameWriter(socket.getOutputStream());
+    final CodedInputStream in = CodedInputStream.newInstance(new BufferedInputStream(socket.getInputStream(), 8192));
+    Thread reader = new Thread("rpc-client-" + socket.getRemoteSocketAddress())
+    {
+      public void run()
+      {
+        read(in);
+      }
+    };
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  public static SocketRpcChannel connect(String host, int port) throws IOException
+  {
+    Socket socket = new Socket();
+    socket.setTcpNoDelay(true);
+    socket.connect(new InetSocketAddress(host, port), 10000);
+    return new SocketRpcChannel(socket);
+  }
+
+  public void callMethod(MethodDescriptor method, RpcController controller, Message request,
+      Message responsePrototype, RpcCallback<Message> done)
+  {
+    send(method, controller, request, responsePrototype, done);
+  }
+
+  /**
+   * @return the ID the call was registered under
+   */
+  private Long send(MethodDescriptor method, RpcController controller, Message request,
+      Message responsePrototype, RpcCallback<Message> done)
+  {
+    Long id = Long.valueOf(nextId.incrementAndGet());
+    PendingCall call = new PendingCall(controller, responsePrototype, done);
+    pending.put(id, call);
+    // the reader may have failed everything pending just before we registered
+    String reason = closedReason;
+    if (reason != null)
+    {
+      fail(id, reason);
+      return id;
+    }
+    try
+    {
+      out.writeRequest(id.longValue(), method.getFullName(), request);
+    }
+    catch (IOException e)
+    {
+      close(String.valueOf(e));
+    }
+    return id;
+  }
+
+  public Message callBlockingMethod(MethodDescriptor method, RpcController controller, Message request,
+      Message responsePrototype) throws ServiceException
+  {
+    final Message[] result = new Message[1];
+    final CountDownLatch done = new CountDownLatch(1);
+    Long id = send(method, controller, request, responsePrototype, new RpcCallback<Message>()
+    {
+      public void run(Message response)
+      {
+        result[0] = response;
+        done.countDown();
+      }
+    });
+    try
+    {
+      done.await();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      controller.startCancel();
+      throw new ServiceException("interrupted");
+    }
+    finally
+    {
+      // an answer that comes after we gave up has nowhere to go
+      pending.remove(id);
+    }
+    if (controller.failed())
+    {
+      throw new ServiceException(controller.errorText());
+    }
+    return result[0];
+  }
+
+  /**
+   * @return the number of calls sent and not yet answered
+   */
+  public int getPendingCount()
+  {
+    return pending.size();
+  }
+
+  public void close()
+  {
+    close("channel closed");
+  }
+
+  private void close(String reason)
+  {
+    if (closedReason == null)
+    {
+      closedReason = reason;
+    }
+    try
+    {
+      socket.close();
+    }
+    catch (IOException e)
+    {
+      // already closed
+    }
+    for (Iterator<Long> it = pending.keySet().iterator(); it.hasNext();)
+    {
+      fail(it.next(), closedReason);
+    }
+  }
+
+  private void read(CodedInputStream in)
+  {
+    try
+    {
+      for (Frame frame; (frame = Frame.read(in)) != null;)
+      {
+        PendingCall call = pending.remove(Long.valueOf(frame.id));
+        if (call == null)
+        {
+          continue;
+        }
+        if (frame.error != null)
+        {
+          call.fail(frame.error);
+          continue;
+        }
+        Message response;
+        try
+        {
+          Message.Builder builder = call.responsePrototype.newBuilderForType();
+          if (frame.payload != null)
+          {
+            builder.mergeFrom(frame.payload);
+          }
+          response = builder.build();
+        }
+        catch (InvalidProtocolBufferException e)
+        {
+          call.fail("bad response: " + e.getMessage());
+          continue;
+        }
+        catch (UninitializedMessageException e)
+        {
+          call.fail("bad response: " + e.getMessage());
+          continue;
+        }
+        call.complete(response);
+      }
+      close("connection closed by server");
+    }
+    catch (IOException e)
+    {
+      close(String.valueOf(e));
+    }
+  }
+
+  private void fail(Long id, String reason)
+  {
+    PendingCall call = pending.remove(id);
+    if (call != null)
+    {
+      call.fail(reason);
+    }
+  }
+
+  private static final class PendingCall
+  {
+    final RpcController        controller;
+
+    final Message              responsePrototype;
+
+    final RpcCallback<Message> done;
+
+    PendingCall(RpcController controller, Message responsePrototype, RpcCallback<Message> done)
+    {
+      this.controller = controller;
+      this.responsePrototype = responsePrototype;
+      this.done = done;
+    }
+
+    void complete(Message response)
+    {
+      if (!controller.isCanceled())
+      {
+        done.run(response);
+      }
+    }
+
+    void fail(String reason)
+    {
+      controller.setFailed(reason);
+      if (!controller.isCanceled())
+      {
+        done.run(null);
+      }
+    }
+  }
+}
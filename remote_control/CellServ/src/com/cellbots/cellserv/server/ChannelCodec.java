@@ -0,0 +1,89 @@
+package com.cellbots.cellserv.server;
+
+import java.io.IOException;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+
+/**
+ * Wire format of the /channel stream: a sequence of CellbotProtos messages,
+ * each preceded by a type tag and its length. The tag is the protobuf field
+ * key, so a whole stream is exactly the encoding of
+ *
+ * <pre>
+ * message Channel {
+ *   repeated PhoneState phone_state = 1;
+ *   repeated AudioVideoFrame video_frame = 2;
+ *   repeated ControllerState controller_state = 3;
+ * }
+ * </pre>
+ *
+ * and any protobuf library can read or write it without generated code.
+ * Readers skip types they do not know.
+ */
+final class ChannelCodec
+{
+  static final int           PHONE_STATE               = 1;
+
+  static final int           VIDEO_FRAME               = 2;
+
+  static final int           CONTROLLER_STATE          = 3;
+
+  static final String        CONTENT_TYPE              = "application/x-cellbots-channel";
+
+  // protobuf wire type of embedded messages
+  private static final int   WIRETYPE_LENGTH_DELIMITED = 2;
+
+  private ChannelCodec()
+  {
+  }
+
+  static void write(CodedOutputStream out, int type, MessageLite message) throws IOException
+  {
+    out.writeMessage(type, message);
+  }
+
+  /**
+   * Writes a message that is already encoded, such as a cached snapshot.
+   */
+  static void write(CodedOutputStream out, int type, byte[] encoded) throws IOException
+  {
+    out.writeTag(type, WIRETYPE_LENGTH_DELIMITED);
+    out.writeRawVarint32(encoded.length);
+    out.writeRawBytes(encoded);
+  }
+
+  /**
+   * @return the tag of the next message, or 0 at the end of the stream
+   */
+  static int readTag(CodedInputStream in) throws IOException
+  {
+    return in.readTag();
+  }
+
+  static int typeOf(int tag)
+  {
+    return tag >>> 3;
+  }
+
+  /**
+   * Reads the next message into builder, rejecting it, as parseFrom would, if
+   * required fields are missing.
+   */
+  static void readMessage(CodedInputStream in, MessageLite.Builder builder) throws IOException
+  {
+    in.readMessage(builder, ExtensionRegistryLite.getEmptyRegistry());
+    if (!builder.isInitialized())
+    {
+      throw new InvalidProtocolBufferException("Message missing required fields");
+    }
+  }
+
+  static void skip(CodedInputStream in, int tag) throws IOException
+  {
+    in.skipField(tag);
+  }
+}
@@ -0,0 +1,279 @@
+package com.cellbots.cellserv.server;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.cellbots.CellbotProtos;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * One endpoint for everything a robot or viewer exchanges with CellServ, in the
+ * tagged binary format of {@link ChannelCodec}. /robotState, /video and the
+ * WiimoteService keep working alongside it.
+ *
+ * POST /channel?BOTID=id carries any mix of PhoneState, AudioVideoFrame and
+ * ControllerState messages, applied in order. A POST without ControllerState
+ * comes from the robot: the response carries its pending controller input,
+ * waiting up to WAIT ms for some, or is 204 if there is none. So a robot sends
+ * its sensors and frame and picks up its commands in a single round trip.
+ *
+ * GET /channel?BOTID=id returns the latest PhoneState and frame. With STREAM
+ * the response stays open and each new PhoneState and frame is written as it
+ * arrives; a slow viewer skips to the latest rather than queueing. The stream
+ * ends when the robot has been quiet for streamIdleTimeoutMs.
+ */
+public class ChannelServlet extends HttpServlet
+{
+
+  private static final long serialVersionUID               = -3290617245812270117L;
+
+  /** Default cap on how long a robot's POST may be held waiting for commands. */
+  private static final long DEFAULT_LONG_POLL_TIMEOUT_MS   = 25000;
+
+  private long              longPollTimeoutMs              = DEFAULT_LONG_POLL_TIMEOUT_MS;
+
+  /** Default time a stream stays open without the robot posting anything. */
+  private static final long DEFAULT_STREAM_IDLE_TIMEOUT_MS = 30000;
+
+  private long              streamIdleTimeoutMs            = DEFAULT_STREAM_IDLE_TIMEOUT_MS;
+
+  /** Default cap on the size of one POST. */
+  private static final int  DEFAULT_MAX_REQUEST_BYTES      = 2 << 20;
+
+  private int               maxRequestBytes                = DEFAULT_MAX_REQUEST_BYTES;
+
+  public String getServletInfo()
+  {
+    return "Servlet for multiplexed robot and viewer communication";
+  }
+
+  public void init() throws ServletException
+  {
+    String param = null;
+    try
+    {
+      param = getInitParameter("longPollTimeoutMs");
+      if (param != null)
+      {
+        longPollTimeoutMs = Long.parseLong(param.trim());
+      }
+      param = getInitParameter("streamIdleTimeoutMs");
+      if (param != null)
+      {
+        streamIdleTimeoutMs = Long.parseLong(param.trim());
+      }
+      param = getInitParameter("maxRequestBytes");
+      if (param != null)
+      {
+        maxRequestBytes = Integer.parseInt(param.trim());
+      }
+    }
+    catch (NumberFormatException e)
+    {
+      throw new ServletException("bad init parameter: " + param, e);
+    }
+  }
+
+  public void doPost(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException
+  {
+    Metrics.channelPosts.increment();
+    if (req.getContentLength() > maxRequestBytes)
+    {
+      res.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+
+    String botID = req.getParameter("BOTID");
+    StateHolder holder = null;
+    boolean fromController = false;
+    try
+    {
+      CodedInputStream in = CodedInputStream.newInstance(req.getInputStream());
+      in.setSizeLimit(maxRequestBytes);
+      for (int tag; (tag = ChannelCodec.readTag(in)) != 0;)
+      {
+        switch (ChannelCodec.typeOf(tag))
+        {
+          case ChannelCodec.PHONE_STATE:
+          {
+            long start = System.nanoTime();
+            CellbotProtos.PhoneState.Builder state = CellbotProtos.PhoneState.newBuilder();
+            ChannelCodec.readMessage(in, state);
+            Metrics.phoneStateParseNanos.record(System.nanoTime() - start);
+            holder = holderFor(botID, state.getBotID());
+            CellbotProtos.PhoneState ps = state.build();
+            Metrics.phoneStateBytes.record(ps.getSerializedSize());
+            holder.setPhoneState(ps);
+            break;
+          }
+          case ChannelCodec.VIDEO_FRAME:
+          {
+            long start = System.nanoTime();
+            CellbotProtos.AudioVideoFrame.Builder frame = CellbotProtos.AudioVideoFrame.newBuilder();
+            ChannelCodec.readMessage(in, frame);
+            Metrics.frameParseNanos.record(System.nanoTime() - start);
+            holder = holderFor(botID, frame.getBotID());
+            CellbotProtos.AudioVideoFrame av = frame.build();
+            Metrics.frameBytes.record(av.getData().size());
+            holder.setVideoFrame(av);
+            break;
+          }
+          case ChannelCodec.CONTROLLER_STATE:
+          {
+            CellbotProtos.ControllerState.Builder cs = CellbotProtos.ControllerState.newBuilder();
+            ChannelCodec.readMessage(in, cs);
+            holder = holderFor(botID, cs.getBotID());
+            fromController = true;
+            for (int i = 0; i < cs.getKeyEventCount(); i++)
+            {
+              holder.addKeyEvent(CellbotProtos.ControllerState.KeyEvent.newBuilder(cs.getKeyEvent(i)));
+            }
+            if (cs.hasTxtCommand())
+            {
+              holder.addKeyTxtCommand(cs.getTxtCommand());
+            }
+            break;
+          }
+          default:
+            ChannelCodec.skip(in, tag);
+        }
+      }
+    }
+    catch (InvalidProtocolBufferException e)
+    {
+      res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+      return;
+    }
+
+    if (fromController)
+    {
+      res.setStatus(HttpServletResponse.SC_NO_CONTENT);
+      return;
+    }
+
+    // a robot that sent nothing is only polling for commands
+    if (holder == null)
+    {
+      holder = holderFor(botID, "");
+    }
+    CellbotProtos.ControllerState cs;
+    try
+    {
+      long waitMs = getWaitMs(req);
+      cs = waitMs > 0 ? holder.awaitControllerState(waitMs) : holder.getControllerState();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      cs = null;
+    }
+    if (cs == null)
+    {
+      res.setStatus(HttpServletResponse.SC_NO_CONTENT);
+      return;
+    }
+    res.setContentType(ChannelCodec.CONTENT_TYPE);
+    CodedOutputStream out = CodedOutputStream.newInstance(res.getOutputStream());
+    ChannelCodec.write(out, ChannelCodec.CONTROLLER_STATE, cs);
+    out.flush();
+  }
+
+  public void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException
+  {
+    StateHolder holder = holderFor(req.getParameter("BOTID"), "");
+    res.setContentType(ChannelCodec.CONTENT_TYPE);
+    res.setHeader("Cache-Control", "no-cache");
+    CodedOutputStream out = CodedOutputStream.newInstance(res.getOutputStream(), 8192);
+
+    if (req.getParameter("STREAM") == null)
+    {
+      Metrics.channelGets.increment();
+      PhoneStateSnapshot snapshot = holder.getPhoneStateSnapshot();
+      VideoFrame frame = holder.getLatestFrame();
+      if (snapshot == null && frame == null)
+      {
+        res.setStatus(HttpServletResponse.SC_NO_CONTENT);
+        return;
+      }
+      if (snapshot != null)
+      {
+        ChannelCodec.write(out, ChannelCodec.PHONE_STATE, snapshot.getBinary());
+      }
+      if (frame != null)
+      {
+        ChannelCodec.write(out, ChannelCodec.VIDEO_FRAME, frame.frame);
+      }
+      out.flush();
+      return;
+    }
+
+    Metrics.channelStreams.increment();
+    long lastVersion = 0;
+    long lastSequence = 0;
+    try
+    {
+      while (holder.awaitUpdate(lastSequence, lastVersion, streamIdleTimeoutMs))
+      {
+        PhoneStateSnapshot snapshot = holder.getPhoneStateSnapshot();
+        if (snapshot != null && snapshot.version > lastVersion)
+        {
+          // encoded once per version, however many viewers are streaming
+          ChannelCodec.write(out, ChannelCodec.PHONE_STATE, snapshot.getBinary());
+          lastVersion = snapshot.version;
+        }
+        VideoFrame frame = holder.getLatestFrame();
+        if (frame != null && frame.sequence > lastSequence)
+        {
+          ChannelCodec.write(out, ChannelCodec.VIDEO_FRAME, frame.frame);
+          lastSequence = frame.sequence;
+        }
+        out.flush();
+        res.flushBuffer();
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch (IOException e)
+    {
+      // viewer went away, nothing to clean up
+    }
+  }
+
+  /**
+   * The BOTID parameter wins; without it, messages are filed under the bot
+   * they name, as on /robotState and /video.
+   */
+  private static StateHolder holderFor(String param, String messageBotID)
+  {
+    return StateHolder.getInstance(param != null ? param : messageBotID);
+  }
+
+  /**
+   * Reads the optional WAIT parameter (milliseconds to hold the request open
+   * for controller state), capped at the configured long-poll timeout.
+   */
+  private long getWaitMs(HttpServletRequest req)
+  {
+    String wait = req.getParameter("WAIT");
+    if (wait == null)
+    {
+      return 0;
+    }
+    try
+    {
+      return Math.min(Math.max(Long.parseLong(wait), 0), longPollTimeoutMs);
+    }
+    catch (NumberFormatException e)
+    {
+      return 0;
+    }
+  }
+}
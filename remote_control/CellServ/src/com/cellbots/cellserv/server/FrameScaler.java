@@ -0,0 +1,124 @@
+package com.cellbots.cellserv.server;
+
+/**
+ * Re-encodes uploaded JPEG frames at a smaller width or lower quality for
+ * viewers on slow links.
+ *
+ * The work is done by {@link ImageIOScaler} with javax.imageio and java.awt,
+ * which the development server and plain JVMs have but App Engine does not
+ * allow. This class touches neither, so it loads anywhere: it looks for them
+ * once, and where they are missing or forbidden, scaling is off for good and
+ * viewers get the frame as uploaded.
+ */
+final class FrameScaler
+{
+  /** Widths a requested size is rounded up to, so renditions get shared. */
+  private static final int[]      WIDTHS    = { 80, 160, 320, 640 };
+
+  private static volatile boolean available = probe();
+
+  private FrameScaler()
+  {
+  }
+
+  private static boolean probe()
+  {
+    try
+    {
+      ClassLoader loader = FrameScaler.class.getClassLoader();
+      Class.forName("javax.imageio.ImageIO", false, loader);
+      Class.forName("java.awt.image.BufferedImage", false, loader);
+      return true;
+    }
+    catch (ClassNotFoundException e)
+    {
+      return false;
+    }
+    catch (LinkageError e)
+    {
+      return false;
+    }
+    catch (SecurityException e)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * @return whether frames can be scaled here at all
+   */
+  static boolean isAvailable()
+  {
+    return available;
+  }
+
+  /**
+   * Turns scaling on or off, as if the image classes were there or not.
+   */
+  static void setAvailable(boolean on)
+  {
+    available = on;
+  }
+
+  /**
+   * @return the rendition width to use for a requested width, or 0 for the
+   *         full frame
+   */
+  static int snapWidth(int requested)
+  {
+    if (requested <= 0)
+    {
+      return 0;
+    }
+    for (int i = 0; i < WIDTHS.length; i++)
+    {
+      if (requested <= WIDTHS[i])
+      {
+        return WIDTHS[i];
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return the rendition quality to use for a requested JPEG quality in
+   *         percent, rounded up to a multiple of ten, or 0 to keep the source
+   *         quality
+   */
+  static int snapQuality(int requested)
+  {
+    if (requested <= 0 || requested >= 100)
+    {
+      return 0;
+    }
+    return Math.max((requested + 9) / 10 * 10, 10);
+  }
+
+  /**
+   * @param width largest width to scale to, or 0 to keep the source size
+   * @param quality JPEG quality in percent, or 0 for the encoder default
+   * @return the re-encoded frame, or null if it can not be scaled and the
+   *         source should be served instead
+   */
+  static byte[] scale(byte[] jpeg, int width, int quality)
+  {
+    if (!available)
+    {
+      return null;
+    }
+    try
+    {
+      return ImageIOScaler.scale(jpeg, width, quality);
+    }
+    catch (LinkageError e)
+    {
+      available = false;
+      return null;
+    }
+    catch (SecurityException e)
+    {
+      available = false;
+      return null;
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package com.cellbots.cellserv.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram with power-of-two buckets: bucket i counts values in
+ * [2^(i-1), 2^i). Like {@link StripedCounter}, each thread records into its own
+ * stripe, so recording is a single uncontended atomic add plus a sum update.
+ * Quantiles are reported as the upper bound of the bucket they fall in.
+ */
+final class Histogram
+{
+  private static final int      BUCKETS = 64;
+
+  // per stripe: BUCKETS counts followed by the running sum
+  private static final int      WIDTH   = BUCKETS + 1;
+
+  private final AtomicLongArray cells   = new AtomicLongArray(StripedCounter.STRIPES * WIDTH);
+
+  void record(long value)
+  {
+    if (value < 0)
+    {
+      value = 0;
+    }
+    int base = StripedCounter.stripe() * WIDTH;
+    cells.incrementAndGet(base + (64 - Long.numberOfLeadingZeros(value)));
+    cells.addAndGet(base + BUCKETS, value);
+  }
+
+  /**
+   * @return a consistent-enough copy of the bucket counts, with the sum of all
+   *         recorded values in the last slot
+   */
+  long[] snapshot()
+  {
+    long[] totals = new long[WIDTH];
+    for (int s = 0; s < StripedCounter.STRIPES; s++)
+    {
+      for (int i = 0; i < WIDTH; i++)
+      {
+        totals[i] += cells.get(s * WIDTH + i);
+      }
+    }
+    return totals;
+  }
+
+  static long count(long[] snapshot)
+  {
+    long n = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      n += snapshot[i];
+    }
+    return n;
+  }
+
+  static long sum(long[] snapshot)
+  {
+    return snapshot[BUCKETS];
+  }
+
+  /**
+   * @param q quantile between 0 and 1
+   * @return upper bound of the bucket holding the q-th value, or 0 if empty
+   */
+  static long quantile(long[] snapshot, double q)
+  {
+    long n = count(snapshot);
+    if (n == 0)
+    {
+      return 0;
+    }
+    long rank = (long) Math.ceil(q * n);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      seen += snapshot[i];
+      if (seen >= rank)
+      {
+        return i == 0 ? 0 : (1L << i) - 1;
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+}
@@ -0,0 +1,91 @@
+package com.cellbots.cellserv.server;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * The part of {@link FrameScaler} that needs javax.imageio and java.awt. It is
+ * only loaded once FrameScaler has found them, so servers without them never
+ * see it.
+ */
+final class ImageIOScaler
+{
+  private ImageIOScaler()
+  {
+  }
+
+  /**
+   * @see FrameScaler#scale
+   */
+  static byte[] scale(byte[] jpeg, int width, int quality)
+  {
+    try
+    {
+      BufferedImage source = ImageIO.read(new ByteArrayInputStream(jpeg));
+      if (source == null)
+      {
+        return null;
+      }
+      BufferedImage target = source;
+      if (width > 0 && width < source.getWidth())
+      {
+        int height = Math.max(source.getHeight() * width / source.getWidth(), 1);
+        target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = target.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(source, 0, 0, width, height, null);
+        g.dispose();
+      }
+      else if (quality == 0)
+      {
+        return null;
+      }
+      return encode(target, quality);
+    }
+    catch (IOException e)
+    {
+      // not a JPEG we can read; send it as it is
+      return null;
+    }
+  }
+
+  private static byte[] encode(BufferedImage image, int quality) throws IOException
+  {
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+    if (!writers.hasNext())
+    {
+      return null;
+    }
+    ImageWriter writer = writers.next();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ImageOutputStream out = ImageIO.createImageOutputStream(bytes);
+    try
+    {
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      if (quality > 0)
+      {
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+      }
+      writer.setOutput(out);
+      writer.write(null, new IIOImage(image, null, null), param);
+    }
+    finally
+    {
+      writer.dispose();
+      out.close();
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,194 @@
+package com.cellbots.cellserv.server;
+
+import com.cellbots.CellbotProtos;
+import com.cellbots.CellbotProtos.ControllerState.KeyEvent;
+
+/**
+ * Bounded queue of the controller input waiting to be picked up by one robot.
+ * Any number of controller threads may add events; the robot drains them all
+ * at once into a single ControllerState.
+ *
+ * Events that do not change what the robot will end up doing are coalesced:
+ * a repeat of the last pending event for a key code is dropped, and a new
+ * keyDown replaces a pending keyDown/keyUp pair for the same key. If the robot
+ * stops polling, the oldest events are dropped once the queue is full, so a
+ * stuck robot costs at most {@code capacity} events of memory.
+ */
+final class KeyEventQueue
+{
+  static final int         DEFAULT_CAPACITY = 64;
+
+  private final KeyEvent[] events;
+
+  // ring buffer state, guarded by this
+  private int              head;
+
+  private int              size;
+
+  private String           txtCommand;
+
+  private long             overflowCount;
+
+  private long             coalescedCount;
+
+  KeyEventQueue()
+  {
+    this(DEFAULT_CAPACITY);
+  }
+
+  KeyEventQueue(int capacity)
+  {
+    events = new KeyEvent[capacity];
+  }
+
+  /**
+   * @return the number of key events pending after adding this one
+   */
+  synchronized int offer(KeyEvent key)
+  {
+    int last = lastIndexOf(key.getKeyCode(), size - 1);
+    if (last >= 0)
+    {
+      KeyEvent prev = get(last);
+      if (prev.getKeyDown() == key.getKeyDown() && prev.getKeyUp() == key.getKeyUp())
+      {
+        // same key, same direction: nothing new for the robot
+        coalescedCount++;
+        return size;
+      }
+      int before = lastIndexOf(key.getKeyCode(), last - 1);
+      if (key.getKeyDown() && prev.getKeyUp() && before >= 0 && get(before).getKeyDown())
+      {
+        // down, up, down: the first press and release are superseded
+        remove(last);
+        remove(before);
+        coalescedCount += 2;
+      }
+    }
+
+    if (size == events.length)
+    {
+      head = (head + 1) % events.length;
+      size--;
+      overflowCount++;
+    }
+    events[(head + size) % events.length] = key;
+    size++;
+    notifyAll();
+    return size;
+  }
+
+  synchronized void setTxtCommand(String command)
+  {
+    txtCommand = command;
+    notifyAll();
+  }
+
+  synchronized boolean hasPending()
+  {
+    return size > 0 || txtCommand != null;
+  }
+
+  /**
+   * Takes everything pending as one ControllerState.
+   *
+   * @return the pending state, or null if nothing is queued
+   */
+  CellbotProtos.ControllerState drain()
+  {
+    KeyEvent[] taken;
+    String command;
+    synchronized (this)
+    {
+      if (size == 0 && txtCommand == null)
+      {
+        return null;
+      }
+      taken = new KeyEvent[size];
+      for (int i = 0; i < size; i++)
+      {
+        taken[i] = get(i);
+        events[(head + i) % events.length] = null;
+      }
+      head = 0;
+      size = 0;
+      command = txtCommand;
+      txtCommand = null;
+    }
+
+    CellbotProtos.ControllerState.Builder cs = CellbotProtos.ControllerState.newBuilder();
+    cs.setTimestamp(System.currentTimeMillis());
+    for (int i = 0; i < taken.length; i++)
+    {
+      cs.addKeyEvent(taken[i]);
+    }
+    if (command != null)
+    {
+      cs.setTxtCommand(command);
+    }
+    return cs.build();
+  }
+
+  /**
+   * Waits until something is queued or the timeout passes, then drains.
+   *
+   * @return the pending state, or null if nothing arrived in time
+   */
+  CellbotProtos.ControllerState await(long timeoutMs) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    synchronized (this)
+    {
+      long remaining = timeoutMs;
+      while (size == 0 && txtCommand == null && remaining > 0)
+      {
+        wait(remaining);
+        remaining = deadline - System.currentTimeMillis();
+      }
+    }
+    return drain();
+  }
+
+  /**
+   * @return how many events were dropped because the queue was full
+   */
+  synchronized long getOverflowCount()
+  {
+    return overflowCount;
+  }
+
+  /**
+   * @return how many events were dropped as redundant
+   */
+  synchronized long getCoalescedCount()
+  {
+    return coalescedCount;
+  }
+
+  private KeyEvent get(int i)
+  {
+    return events[(head + i) % events.length];
+  }
+
+  private int lastIndexOf(String keyCode, int from)
+  {
+    for (int i = from; i >= 0; i--)
+    {
+      if (get(i).getKeyCode().equals(keyCode))
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void remove(int index)
+  {
+    for (int i = index; i < size - 1; i++)
+    {
+      events[(head + i) % events.length] = get(i + 1);
+    }
+    events[(head + size - 1) % events.length] = null;
+    size--;
+  }
+}
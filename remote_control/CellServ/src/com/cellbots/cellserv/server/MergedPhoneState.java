@@ -0,0 +1,319 @@
+package com.cellbots.cellserv.server;
+
+import java.util.List;
+
+import com.cellbots.CellbotProtos;
+import com.cellbots.CellbotProtos.PhoneState;
+
+/**
+ * The merged phone state of one bot, kept field by field.
+ *
+ * Merging a PhoneState with newBuilder(old).mergeFrom(update) copies every
+ * nested message of the old state, even when the robot only sent its compass.
+ * Here an update copies this small object and touches only the fields present
+ * in the update; untouched sub messages are shared by reference, since protobuf
+ * messages are immutable. The PhoneState itself is built only when a reader asks
+ * for it, and then cached.
+ */
+final class MergedPhoneState
+{
+  private static final int                      BOT_ID                   = 1 << 0;
+
+  private static final int                      DBG_MSG                  = 1 << 1;
+
+  private static final int                      PHONE_BATTERY_LEVEL      = 1 << 2;
+
+  private static final int                      PHONE_BATTERY_TEMP       = 1 << 3;
+
+  private static final int                      LIGHT_LEVEL              = 1 << 4;
+
+  private static final int                      VIBRATING                = 1 << 5;
+
+  private static final int                      NOTIFICATION_LIGHT_ON    = 1 << 6;
+
+  private static final int                      NOTIFICATION_LIGHT_FREQ  = 1 << 7;
+
+  private static final int                      NOTIFICATION_LIGHT_COLOR = 1 << 8;
+
+  private static final int                      PROXIMITY                = 1 << 9;
+
+  private static final int                      SCREEN_BRIGHTNESS        = 1 << 10;
+
+  private static final int                      GPS_ENABLED              = 1 << 11;
+
+  private int                                   has;
+
+  private long                                  timestamp;
+
+  private String                                botID;
+
+  private String                                dbgMsg;
+
+  private PhoneState.Compass                    compass;
+
+  private PhoneState.Accelerometer              accelerometer;
+
+  private PhoneState.Orientation                orientation;
+
+  private float                                 phoneBatteryLevel;
+
+  private int                                   phoneBatteryTemp;
+
+  private float                                 lightLevel;
+
+  private boolean                               vibrating;
+
+  private boolean                               notificationLightOn;
+
+  private int                                   notificationLightFreq;
+
+  private int                                   notificationLightColor;
+
+  private int                                   proximity;
+
+  private int                                   screenBrightness;
+
+  private PhoneState.WIFI                       wifi;
+
+  private PhoneState.Cellular                   cellular;
+
+  private PhoneState.Location                   location;
+
+  private boolean                               gpsEnabled;
+
+  private CellbotProtos.HALConnection           halConnection;
+
+  private volatile PhoneState                   materialized;
+
+  private MergedPhoneState()
+  {
+  }
+
+  /**
+   * Starts a merged state from a bot's first post. The post is served as is
+   * until the next update.
+   */
+  static MergedPhoneState of(PhoneState ps)
+  {
+    MergedPhoneState merged = new MergedPhoneState().apply(ps);
+    merged.materialized = ps;
+    return merged;
+  }
+
+  /**
+   * @return a new merged state with the fields present in update applied
+   */
+  MergedPhoneState merge(PhoneState update)
+  {
+    return copy().apply(update);
+  }
+
+  /**
+   * @return a new merged state with the updates applied in order, copied only
+   *         once however many there are
+   */
+  MergedPhoneState merge(List<PhoneState> updates)
+  {
+    MergedPhoneState next = copy();
+    for (int i = 0; i < updates.size(); i++)
+    {
+      next.apply(updates.get(i));
+    }
+    return next;
+  }
+
+  private MergedPhoneState copy()
+  {
+    MergedPhoneState next = new MergedPhoneState();
+    next.has = has;
+    next.timestamp = timestamp;
+    next.botID = botID;
+    next.dbgMsg = dbgMsg;
+    next.compass = compass;
+    next.accelerometer = accelerometer;
+    next.orientation = orientation;
+    next.phoneBatteryLevel = phoneBatteryLevel;
+    next.phoneBatteryTemp = phoneBatteryTemp;
+    next.lightLevel = lightLevel;
+    next.vibrating = vibrating;
+    next.notificationLightOn = notificationLightOn;
+    next.notificationLightFreq = notificationLightFreq;
+    next.notificationLightColor = notificationLightColor;
+    next.proximity = proximity;
+    next.screenBrightness = screenBrightness;
+    next.wifi = wifi;
+    next.cellular = cellular;
+    next.location = location;
+    next.gpsEnabled = gpsEnabled;
+    next.halConnection = halConnection;
+    return next;
+  }
+
+  private MergedPhoneState apply(PhoneState ps)
+  {
+    if (ps.hasTimestamp())
+      timestamp = ps.getTimestamp();
+    if (ps.hasBotID())
+    {
+      botID = ps.getBotID();
+      has |= BOT_ID;
+    }
+    if (ps.hasDbgMsg())
+    {
+      dbgMsg = ps.getDbgMsg();
+      has |= DBG_MSG;
+    }
+    if (ps.hasCompass())
+    {
+      PhoneState.Compass c = ps.getCompass();
+      if (compass == null || (c.hasX() && c.hasY() && c.hasZ()))
+        compass = c;
+      else
+        compass = PhoneState.Compass.newBuilder(compass).mergeFrom(c).build();
+    }
+    if (ps.hasAccelerometer())
+    {
+      PhoneState.Accelerometer a = ps.getAccelerometer();
+      if (accelerometer == null || (a.hasX() && a.hasY() && a.hasZ()))
+        accelerometer = a;
+      else
+        accelerometer = PhoneState.Accelerometer.newBuilder(accelerometer).mergeFrom(a).build();
+    }
+    if (ps.hasOrientation())
+    {
+      PhoneState.Orientation o = ps.getOrientation();
+      if (orientation == null || (o.hasAzimuth() && o.hasPitch() && o.hasRoll()))
+        orientation = o;
+      else
+        orientation = PhoneState.Orientation.newBuilder(orientation).mergeFrom(o).build();
+    }
+    if (ps.hasPhoneBatteryLevel())
+    {
+      phoneBatteryLevel = ps.getPhoneBatteryLevel();
+      has |= PHONE_BATTERY_LEVEL;
+    }
+    if (ps.hasPhoneBatteryTemp())
+    {
+      phoneBatteryTemp = ps.getPhoneBatteryTemp();
+      has |= PHONE_BATTERY_TEMP;
+    }
+    if (ps.hasLightLevel())
+    {
+      lightLevel = ps.getLightLevel();
+      has |= LIGHT_LEVEL;
+    }
+    if (ps.hasVibrating())
+    {
+      vibrating = ps.getVibrating();
+      has |= VIBRATING;
+    }
+    if (ps.hasNotificationLightOn())
+    {
+      notificationLightOn = ps.getNotificationLightOn();
+      has |= NOTIFICATION_LIGHT_ON;
+    }
+    if (ps.hasNotificationLightFreq())
+    {
+      notificationLightFreq = ps.getNotificationLightFreq();
+      has |= NOTIFICATION_LIGHT_FREQ;
+    }
+    if (ps.hasNotificationLightColor())
+    {
+      notificationLightColor = ps.getNotificationLightColor();
+      has |= NOTIFICATION_LIGHT_COLOR;
+    }
+    if (ps.hasProximity())
+    {
+      proximity = ps.getProximity();
+      has |= PROXIMITY;
+    }
+    if (ps.hasScreenBrightness())
+    {
+      screenBrightness = ps.getScreenBrightness();
+      has |= SCREEN_BRIGHTNESS;
+    }
+    if (ps.hasWifi())
+    {
+      wifi = wifi == null ? ps.getWifi() : PhoneState.WIFI.newBuilder(wifi).mergeFrom(ps.getWifi()).build();
+    }
+    if (ps.hasCellular())
+    {
+      cellular = cellular == null ? ps.getCellular() : PhoneState.Cellular.newBuilder(cellular)
+          .mergeFrom(ps.getCellular()).build();
+    }
+    if (ps.hasLocation())
+    {
+      location = location == null ? ps.getLocation() : PhoneState.Location.newBuilder(location)
+          .mergeFrom(ps.getLocation()).build();
+    }
+    if (ps.hasGpsEnabled())
+    {
+      gpsEnabled = ps.getGpsEnabled();
+      has |= GPS_ENABLED;
+    }
+    if (ps.hasHALConnection())
+    {
+      halConnection = halConnection == null ? ps.getHALConnection() : CellbotProtos.HALConnection
+          .newBuilder(halConnection).mergeFrom(ps.getHALConnection()).build();
+    }
+    return this;
+  }
+
+  /**
+   * @return the merged state as a PhoneState, built on first call
+   */
+  PhoneState toPhoneState()
+  {
+    PhoneState ps = materialized;
+    if (ps == null)
+    {
+      ps = build();
+      materialized = ps;
+    }
+    return ps;
+  }
+
+  private PhoneState build()
+  {
+    PhoneState.Builder b = PhoneState.newBuilder().setTimestamp(timestamp);
+    if ((has & BOT_ID) != 0)
+      b.setBotID(botID);
+    if ((has & DBG_MSG) != 0)
+      b.setDbgMsg(dbgMsg);
+    if (compass != null)
+      b.setCompass(compass);
+    if (accelerometer != null)
+      b.setAccelerometer(accelerometer);
+    if (orientation != null)
+      b.setOrientation(orientation);
+    if ((has & PHONE_BATTERY_LEVEL) != 0)
+      b.setPhoneBatteryLevel(phoneBatteryLevel);
+    if ((has & PHONE_BATTERY_TEMP) != 0)
+      b.setPhoneBatteryTemp(phoneBatteryTemp);
+    if ((has & LIGHT_LEVEL) != 0)
+      b.setLightLevel(lightLevel);
+    if ((has & VIBRATING) != 0)
+      b.setVibrating(vibrating);
+    if ((has & NOTIFICATION_LIGHT_ON) != 0)
+      b.setNotificationLightOn(notificationLightOn);
+    if ((has & NOTIFICATION_LIGHT_FREQ) != 0)
+      b.setNotificationLightFreq(notificationLightFreq);
+    if ((has & NOTIFICATION_LIGHT_COLOR) != 0)
+      b.setNotificationLightColor(notificationLightColor);
+    if ((has & PROXIMITY) != 0)
+      b.setProximity(proximity);
+    if ((has & SCREEN_BRIGHTNESS) != 0)
+      b.setScreenBrightness(screenBrightness);
+    if (wifi != null)
+      b.setWifi(wifi);
+    if (cellular != null)
+      b.setCellular(cellular);
+    if (location != null)
+      b.setLocation(location);
+    if ((has & GPS_ENABLED) != 0)
+      b.setGpsEnabled(gpsEnabled);
+    if (halConnection != null)
+      b.setHALConnection(halConnection);
+    return b.build();
+  }
+}
@@ -0,0 +1,60 @@
+package com.cellbots.cellserv.server;
+
+/**
+ * Counters and histograms recorded on the CellServ servlet paths and reported
+ * by {@link MetricsServlet}. Everything here is cheap to record from many
+ * request threads at once.
+ */
+final class Metrics
+{
+  static final long           START_TIME             = System.currentTimeMillis();
+
+  static final StripedCounter robotStateGets         = new StripedCounter();
+
+  static final StripedCounter robotStatePosts        = new StripedCounter();
+
+  static final StripedCounter robotStateNotModified  = new StripedCounter();
+
+  static final StripedCounter robotStateProtobufGets = new StripedCounter();
+
+  static final StripedCounter robotStateGzipGets     = new StripedCounter();
+
+  static final StripedCounter robotStateHistoryGets  = new StripedCounter();
+
+  static final StripedCounter videoGets              = new StripedCounter();
+
+  static final StripedCounter videoPosts             = new StripedCounter();
+
+  static final StripedCounter videoStreams           = new StripedCounter();
+
+  static final StripedCounter wiimoteCalls           = new StripedCounter();
+
+  static final StripedCounter channelPosts           = new StripedCounter();
+
+  static final StripedCounter channelGets            = new StripedCounter();
+
+  static final StripedCounter channelStreams         = new StripedCounter();
+
+  /** size of each uploaded image, in bytes */
+  static final Histogram      frameBytes             = new Histogram();
+
+  /** size of each posted PhoneState, in bytes */
+  static final Histogram      phoneStateBytes        = new Histogram();
+
+  static final Histogram      phoneStateParseNanos   = new Histogram();
+
+  /** samples in each PhoneStateBatch posted */
+  static final Histogram      phoneStateBatchSize    = new Histogram();
+
+  static final Histogram      frameParseNanos        = new Histogram();
+
+  /** time to make a scaled rendition of a frame, once per frame and size */
+  static final Histogram      renditionNanos         = new Histogram();
+
+  /** time to encode a PhoneState snapshot, recorded only when not cached */
+  static final Histogram      serializeNanos         = new Histogram();
+
+  private Metrics()
+  {
+  }
+}
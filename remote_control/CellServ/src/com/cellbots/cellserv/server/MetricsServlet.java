@@ -0,0 +1,143 @@
+package com.cellbots.cellserv.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reports CellServ load as plain text, one "name value" pair per line. Request
+ * rates are per second since the previous scrape; histograms give count, mean
+ * and bucketed p50/p99/max; per-bot lines give update counts and the age of
+ * the latest frame.
+ *
+ * A bot ID is all it takes to drive a robot or watch its video, so bots are
+ * listed by a hash of their ID, and web.xml limits the page to admins. Only
+ * what this server holds is reported; a scrape never reads the shared store.
+ */
+public class MetricsServlet extends HttpServlet
+{
+
+  private static final long       serialVersionUID = 2847502983476615011L;
+
+  // totals at the previous scrape, for rates
+  private final Map<String, Long> lastTotals       = new LinkedHashMap<String, Long>();
+
+  private long                    lastScrape       = Metrics.START_TIME;
+
+  public String getServletInfo()
+  {
+    return "Servlet for reporting server metrics";
+  }
+
+  public void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException
+  {
+    res.setContentType("text/plain");
+    res.setHeader("Cache-Control", "no-cache");
+    PrintWriter out = res.getWriter();
+    long now = System.currentTimeMillis();
+
+    out.println("uptime_ms " + (now - Metrics.START_TIME));
+    synchronized (lastTotals)
+    {
+      double seconds = Math.max(now - lastScrape, 1) / 1000.0;
+      counter(out, "robot_state_get", Metrics.robotStateGets.get(), seconds);
+      counter(out, "robot_state_get_not_modified", Metrics.robotStateNotModified.get(), seconds);
+      counter(out, "robot_state_get_protobuf", Metrics.robotStateProtobufGets.get(), seconds);
+      counter(out, "robot_state_get_gzip", Metrics.robotStateGzipGets.get(), seconds);
+      counter(out, "robot_state_history_get", Metrics.robotStateHistoryGets.get(), seconds);
+      counter(out, "robot_state_post", Metrics.robotStatePosts.get(), seconds);
+      counter(out, "video_get", Metrics.videoGets.get(), seconds);
+      counter(out, "video_stream", Metrics.videoStreams.get(), seconds);
+      counter(out, "video_post", Metrics.videoPosts.get(), seconds);
+      counter(out, "wiimote_call", Metrics.wiimoteCalls.get(), seconds);
+      counter(out, "channel_post", Metrics.channelPosts.get(), seconds);
+      counter(out, "channel_get", Metrics.channelGets.get(), seconds);
+      counter(out, "channel_stream", Metrics.channelStreams.get(), seconds);
+      lastScrape = now;
+    }
+
+    histogram(out, "frame_bytes", Metrics.frameBytes);
+    histogram(out, "phone_state_bytes", Metrics.phoneStateBytes);
+    histogram(out, "phone_state_parse_ns", Metrics.phoneStateParseNanos);
+    histogram(out, "phone_state_batch_size", Metrics.phoneStateBatchSize);
+    histogram(out, "frame_parse_ns", Metrics.frameParseNanos);
+    histogram(out, "rendition_ns", Metrics.renditionNanos);
+    histogram(out, "serialize_ns", Metrics.serializeNanos);
+
+    out.println("bots_live " + StateHolder.getLiveBotCount());
+    out.println("bots_evicted " + StateHolder.getEvictedBotCount());
+    out.println("frames_evicted " + StateHolder.getEvictedFrameCount());
+    out.println("frames_retained_bytes " + StateHolder.getRetainedFrameBytes());
+    out.println("histories_evicted " + StateHolder.getEvictedHistoryCount());
+    out.println("histories_retained_bytes " + StateHolder.getRetainedHistoryBytes());
+
+    for (Map.Entry<String, StateHolder> bot : StateHolder.getInstances().entrySet())
+    {
+      StateHolder holder = bot.getValue();
+      String prefix = "bot{" + hashBotID(bot.getKey()) + "}.";
+      PhoneStateSnapshot snapshot = holder.peekPhoneStateSnapshot();
+      VideoFrame frame = holder.peekLatestFrame();
+      out.println(prefix + "phone_state_updates " + (snapshot == null ? 0 : snapshot.version));
+      out.println(prefix + "frames " + (frame == null ? 0 : frame.sequence));
+      out.println(prefix + "frame_age_ms " + (frame == null ? -1 : now - frame.receivedAt));
+      out.println(prefix + "key_event_overflow " + holder.getKeyEventOverflowCount());
+    }
+    out.flush();
+  }
+
+  /**
+   * @return the first 48 bits of the SHA-1 of a bot ID, in hex: enough to tell
+   *         bots apart across scrapes, not enough to take one over
+   */
+  static String hashBotID(String botID)
+  {
+    try
+    {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(botID.getBytes("UTF-8"));
+      StringBuilder hex = new StringBuilder(12);
+      for (int i = 0; i < 6; i++)
+      {
+        hex.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+      }
+      return hex.toString();
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      // every JVM has SHA-1
+      throw new IllegalStateException(e);
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // must hold lastTotals
+  private void counter(PrintWriter out, String name, long total, double seconds)
+  {
+    Long last = lastTotals.put(name, Long.valueOf(total));
+    long delta = total - (last == null ? 0 : last.longValue());
+    out.println(name + "_total " + total);
+    out.println(name + "_per_sec " + (delta / seconds));
+  }
+
+  private static void histogram(PrintWriter out, String name, Histogram histogram)
+  {
+    long[] snapshot = histogram.snapshot();
+    long count = Histogram.count(snapshot);
+    out.println(name + "_count " + count);
+    out.println(name + "_mean " + (count == 0 ? 0 : Histogram.sum(snapshot) / count));
+    out.println(name + "_p50 " + Histogram.quantile(snapshot, 0.5));
+    out.println(name + "_p99 " + Histogram.quantile(snapshot, 0.99));
+    out.println(name + "_max " + Histogram.quantile(snapshot, 1.0));
+  }
+}
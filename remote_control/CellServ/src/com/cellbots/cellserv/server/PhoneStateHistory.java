@@ -0,0 +1,304 @@
+package com.cellbots.cellserv.server;
+
+import java.util.Arrays;
+
+import com.cellbots.CellbotProtos.PhoneState;
+
+/**
+ * The last few minutes of one bot's sensor readings, for charting.
+ *
+ * Readings are kept in a fixed-size ring of primitive columns, one row per
+ * sample interval, rather than as retained PhoneState objects, so a bot costs
+ * the same memory however long it runs and however often it posts. Updates
+ * that land in the same interval are folded into one row; a field that no
+ * update in the interval carried is NaN. Row times come from the server clock
+ * and never go backwards, since robot clocks are not to be trusted.
+ *
+ * The columns are allocated BLOCK_ROWS rows at a time, as rows are first
+ * written, so a bot costs memory in proportion to how much history it has
+ * actually posted, up to the capacity. {@link #record} reports what it
+ * allocated so StateHolder can hold all histories under one budget, and
+ * {@link #clear} gives it all back.
+ */
+final class PhoneStateHistory
+{
+  /** Names of the recorded fields, in column order. */
+  static final String[]     FIELDS              = { "accelerometer.x", "accelerometer.y", "accelerometer.z",
+      "compass.x", "compass.y", "compass.z", "orientation.azimuth", "orientation.pitch", "orientation.roll",
+      "phoneBatteryLevel", "phoneBatteryTemp", "lightLevel", "location.accuracy", "location.latitude",
+      "location.longitude" };
+
+  /** Columns from here on need double precision; the rest are floats. */
+  static final int          FIRST_DOUBLE        = 13;
+
+  static final int          DEFAULT_CAPACITY    = Integer.getInteger("cellserv.historySamples", 3000).intValue();
+
+  static final long         DEFAULT_INTERVAL_MS = Long.getLong("cellserv.historyIntervalMs", 100).longValue();
+
+  /** Rows allocated at a time. */
+  static final int          BLOCK_ROWS          = 256;
+
+  /** Bytes one row takes in the columns. */
+  static final int          ROW_BYTES           = 8 + FIRST_DOUBLE * 4 + (FIELDS.length - FIRST_DOUBLE) * 8;
+
+  private final int         capacity;
+
+  private final long        intervalMs;
+
+  // all guarded by this; slot s lives in blocks[s / BLOCK_ROWS], allocated
+  // when first written
+  private Block[]           blocks;
+
+  // rows ever started; row n lives in slot n % capacity until overwritten
+  private long              count;
+
+  // rows before this were dropped by clear()
+  private long              cleared;
+
+  private long              allocatedBytes;
+
+  PhoneStateHistory()
+  {
+    this(DEFAULT_CAPACITY, DEFAULT_INTERVAL_MS);
+  }
+
+  PhoneStateHistory(int capacity, long intervalMs)
+  {
+    this.capacity = capacity;
+    this.intervalMs = intervalMs;
+  }
+
+  /**
+   * @return the column of the named field, or -1 if it is not recorded
+   */
+  static int fieldIndex(String name)
+  {
+    for (int i = 0; i < FIELDS.length; i++)
+    {
+      if (FIELDS[i].equals(name))
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Records the fields present in one PhoneState update.
+   *
+   * @param now server time of the update, in milliseconds
+   * @return the bytes allocated to hold it, usually 0
+   */
+  synchronized long record(long now, PhoneState ps)
+  {
+    long allocated = 0;
+    if (blocks == null)
+    {
+      blocks = new Block[(capacity + BLOCK_ROWS - 1) / BLOCK_ROWS];
+    }
+
+    Block block;
+    int row;
+    long last = count == cleared ? Long.MIN_VALUE : time(count - 1);
+    if (count > cleared && now - last < intervalMs)
+    {
+      int slot = (int) ((count - 1) % capacity);
+      block = blocks[slot / BLOCK_ROWS];
+      row = slot % BLOCK_ROWS;
+    }
+    else
+    {
+      int slot = (int) (count % capacity);
+      block = blocks[slot / BLOCK_ROWS];
+      if (block == null)
+      {
+        int rows = Math.min(BLOCK_ROWS, capacity - slot / BLOCK_ROWS * BLOCK_ROWS);
+        block = blocks[slot / BLOCK_ROWS] = new Block(rows);
+        allocated = (long) rows * ROW_BYTES;
+        allocatedBytes += allocated;
+      }
+      row = slot % BLOCK_ROWS;
+      block.times[row] = Math.max(now, last);
+      for (int c = 0; c < block.floats.length; c++)
+        block.floats[c][row] = Float.NaN;
+      for (int c = 0; c < block.doubles.length; c++)
+        block.doubles[c][row] = Double.NaN;
+      count++;
+    }
+    float[][] floats = block.floats;
+    double[][] doubles = block.doubles;
+
+    if (ps.hasAccelerometer())
+    {
+      PhoneState.Accelerometer a = ps.getAccelerometer();
+      if (a.hasX())
+        floats[0][row] = a.getX();
+      if (a.hasY())
+        floats[1][row] = a.getY();
+      if (a.hasZ())
+        floats[2][row] = a.getZ();
+    }
+    if (ps.hasCompass())
+    {
+      PhoneState.Compass c = ps.getCompass();
+      if (c.hasX())
+        floats[3][row] = c.getX();
+      if (c.hasY())
+        floats[4][row] = c.getY();
+      if (c.hasZ())
+        floats[5][row] = c.getZ();
+    }
+    if (ps.hasOrientation())
+    {
+      PhoneState.Orientation o = ps.getOrientation();
+      if (o.hasAzimuth())
+        floats[6][row] = o.getAzimuth();
+      if (o.hasPitch())
+        floats[7][row] = o.getPitch();
+      if (o.hasRoll())
+        floats[8][row] = o.getRoll();
+    }
+    if (ps.hasPhoneBatteryLevel())
+      floats[9][row] = ps.getPhoneBatteryLevel();
+    if (ps.hasPhoneBatteryTemp())
+      floats[10][row] = ps.getPhoneBatteryTemp();
+    if (ps.hasLightLevel())
+      floats[11][row] = ps.getLightLevel();
+    if (ps.hasLocation())
+    {
+      PhoneState.Location l = ps.getLocation();
+      if (l.hasAccuracy())
+        floats[12][row] = l.getAccuracy();
+      doubles[0][row] = l.getLatitude();
+      doubles[1][row] = l.getLongitude();
+    }
+    return allocated;
+  }
+
+  /**
+   * Drops every row and the memory holding them. Row numbers carry on, so
+   * readers part way through a range just find it gone.
+   *
+   * @return the bytes released
+   */
+  synchronized long clear()
+  {
+    long released = allocatedBytes;
+    blocks = null;
+    allocatedBytes = 0;
+    cleared = count;
+    return released;
+  }
+
+  /**
+   * @return the bytes currently allocated to this history
+   */
+  synchronized long getAllocatedBytes()
+  {
+    return allocatedBytes;
+  }
+
+  // must hold this
+  private long firstRetained()
+  {
+    return Math.max(count - capacity, cleared);
+  }
+
+  // must hold this; row must be retained
+  private long time(long row)
+  {
+    int slot = (int) (row % capacity);
+    return blocks[slot / BLOCK_ROWS].times[slot % BLOCK_ROWS];
+  }
+
+  /**
+   * @return the number of the oldest retained row whose time is after since,
+   *         or the next row to be written if there is none
+   */
+  synchronized long firstAfter(long since)
+  {
+    long lo = firstRetained();
+    long hi = count;
+    while (lo < hi)
+    {
+      long mid = (lo + hi) >>> 1;
+      if (time(mid) > since)
+        hi = mid;
+      else
+        lo = mid + 1;
+    }
+    return lo;
+  }
+
+  /**
+   * Copies the rows from row number from on into chunk, as many as fit. Rows
+   * overwritten since the caller last looked are skipped. The lock is only
+   * held for the copy, so callers can stream a long range without holding up
+   * the robot posting into it.
+   *
+   * @return the number of the row after the last one copied
+   */
+  synchronized long read(long from, Chunk chunk)
+  {
+    long start = Math.max(from, firstRetained());
+    int n = (int) Math.min(count - start, chunk.times.length);
+    chunk.size = Math.max(n, 0);
+    for (int i = 0; i < n; i++)
+    {
+      int slot = (int) ((start + i) % capacity);
+      Block block = blocks[slot / BLOCK_ROWS];
+      int row = slot % BLOCK_ROWS;
+      chunk.times[i] = block.times[row];
+      for (int f = 0; f < chunk.fields.length; f++)
+      {
+        int c = chunk.fields[f];
+        chunk.values[f][i] = c < FIRST_DOUBLE ? block.floats[c][row] : block.doubles[c - FIRST_DOUBLE][row];
+      }
+    }
+    return start + chunk.size;
+  }
+
+  /**
+   * Columns for BLOCK_ROWS consecutive slots, or fewer at the end of the ring.
+   */
+  private static final class Block
+  {
+    final long[]     times;
+
+    final float[][]  floats;
+
+    final double[][] doubles;
+
+    Block(int rows)
+    {
+      times = new long[rows];
+      floats = new float[FIRST_DOUBLE][rows];
+      doubles = new double[FIELDS.length - FIRST_DOUBLE][rows];
+    }
+  }
+
+  /**
+   * A reusable window of rows for a chosen set of fields.
+   */
+  static final class Chunk
+  {
+    final int[]      fields;
+
+    final long[]     times;
+
+    final double[][] values;
+
+    int              size;
+
+    /**
+     * @param fields column indexes to copy, see {@link #FIELDS}
+     * @param rows most rows copied per read
+     */
+    Chunk(int[] fields, int rows)
+    {
+      this.fields = Arrays.copyOf(fields, fields.length);
+      this.times = new long[rows];
+      this.values = new double[fields.length][rows];
+    }
+  }
+}
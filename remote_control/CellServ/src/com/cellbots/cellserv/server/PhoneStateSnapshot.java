@@ -0,0 +1,169 @@
+package com.cellbots.cellserv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import com.cellbots.CellbotProtos;
+import com.cellbots.SchemaCellbotProtos;
+import com.dyuproject.protostuff.JsonIOUtil;
+
+/**
+ * One version of a bot's merged phone state. Snapshots are immutable; each
+ * update to the state publishes a new snapshot with the next version number.
+ * The PhoneState and its encodings are computed on first use and then shared
+ * by every reader of the same version.
+ *
+ * The entity tag is made from this server's epoch and version, except for
+ * state taken from a shared store, which is tagged with the store's version
+ * so that every server hands out the same tag for it.
+ */
+final class PhoneStateSnapshot
+{
+  final MergedPhoneState         merged;
+
+  final long                     version;
+
+  private final String           etag;
+
+  private volatile byte[]        json;
+
+  private volatile byte[]        numericJson;
+
+  private volatile byte[]        binary;
+
+  private volatile byte[]        gzipJson;
+
+  private volatile byte[]        gzipNumericJson;
+
+  PhoneStateSnapshot(MergedPhoneState merged, long version, String epoch)
+  {
+    this(merged, version, epoch, null);
+  }
+
+  /**
+   * @param binary the state already encoded as a PhoneState, such as the
+   *          bytes written to or read from a store, or null
+   */
+  PhoneStateSnapshot(MergedPhoneState merged, long version, String epoch, byte[] binary)
+  {
+    this.merged = merged;
+    this.version = version;
+    this.etag = "\"" + epoch + "-" + version + "\"";
+    this.binary = binary;
+  }
+
+  private PhoneStateSnapshot(PhoneStateSnapshot other, String etag)
+  {
+    this.merged = other.merged;
+    this.version = other.version;
+    this.etag = etag;
+    this.json = other.json;
+    this.numericJson = other.numericJson;
+    this.binary = other.binary;
+    this.gzipJson = other.gzipJson;
+    this.gzipNumericJson = other.gzipNumericJson;
+  }
+
+  /**
+   * @return this version tagged with the version a shared store gave it, as
+   *         every server reading the store will tag it
+   */
+  PhoneStateSnapshot withStoreVersion(long storeVersion)
+  {
+    return new PhoneStateSnapshot(this, storeETag(storeVersion));
+  }
+
+  static String storeETag(long storeVersion)
+  {
+    return "\"s" + Long.toHexString(storeVersion) + "\"";
+  }
+
+  CellbotProtos.PhoneState getState()
+  {
+    return merged.toPhoneState();
+  }
+
+  /**
+   * @return the quoted entity tag identifying this version
+   */
+  String getETag()
+  {
+    return etag;
+  }
+
+  /**
+   * @return the entity tag for another encoding of this version, so caches
+   *         never answer a request for one encoding with another
+   */
+  String getETag(String encoding)
+  {
+    return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+  }
+
+  byte[] getJson(boolean numeric)
+  {
+    // racing readers may both encode; the results are identical, so either
+    // copy may win.
+    byte[] bytes = numeric ? numericJson : json;
+    if (bytes == null)
+    {
+      long start = System.nanoTime();
+      bytes = JsonIOUtil.toByteArray(getState(), SchemaCellbotProtos.PhoneState.WRITE, numeric);
+      Metrics.serializeNanos.record(System.nanoTime() - start);
+      if (numeric)
+        numericJson = bytes;
+      else
+        json = bytes;
+    }
+    return bytes;
+  }
+
+  byte[] getBinary()
+  {
+    byte[] bytes = binary;
+    if (bytes == null)
+    {
+      long start = System.nanoTime();
+      bytes = getState().toByteArray();
+      Metrics.serializeNanos.record(System.nanoTime() - start);
+      binary = bytes;
+    }
+    return bytes;
+  }
+
+  /**
+   * @return the JSON encoding, gzipped; compressed once per version however
+   *         many viewers poll it
+   */
+  byte[] getGzipJson(boolean numeric)
+  {
+    byte[] bytes = numeric ? gzipNumericJson : gzipJson;
+    if (bytes == null)
+    {
+      bytes = gzip(getJson(numeric));
+      if (numeric)
+        gzipNumericJson = bytes;
+      else
+        gzipJson = bytes;
+    }
+    return bytes;
+  }
+
+  private static byte[] gzip(byte[] bytes)
+  {
+    try
+    {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 32);
+      GZIPOutputStream gzip = new GZIPOutputStream(out);
+      gzip.write(bytes);
+      gzip.close();
+      return out.toByteArray();
+    }
+    catch (IOException e)
+    {
+      // a ByteArrayOutputStream does not throw
+      throw new IllegalStateException(e);
+    }
+  }
+}
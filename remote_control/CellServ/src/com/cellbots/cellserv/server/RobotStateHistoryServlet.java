@@ -0,0 +1,150 @@
+package com.cellbots.cellserv.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves a bot's recent sensor readings from its {@link PhoneStateHistory}:
+ *
+ * <pre>
+ * GET /robotState/history?BOTID=..&amp;since=..&amp;fields=accelerometer.x,compass.x
+ * </pre>
+ *
+ * since is a server time in milliseconds, or if negative, that many
+ * milliseconds before now; it defaults to everything still held. fields
+ * defaults to all of them. The answer is JSON, one array per row starting
+ * with the row time, with null for fields not reported in that interval or
+ * not finite:
+ *
+ * <pre>
+ * {"fields":["time","accelerometer.x"],"rows":[
+ * [1287512345600,0.12],
+ * [1287512345700,null]]}
+ * </pre>
+ *
+ * Rows are copied out and written a chunk at a time, so a long range is
+ * streamed rather than built up in memory, and the robot posting into the
+ * history is never held up by a slow reader.
+ */
+public class RobotStateHistoryServlet extends HttpServlet
+{
+
+  private static final long serialVersionUID = 4412039716264880155L;
+
+  private static final int  CHUNK_ROWS       = 256;
+
+  public String getServletInfo()
+  {
+    return "Servlet for charting recent phone sensor data";
+  }
+
+  public void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException
+  {
+    String botID = "";
+    if (req.getParameter("BOTID") != null)
+    {
+      botID = req.getParameter("BOTID");
+    }
+    Metrics.robotStateHistoryGets.increment();
+
+    long since = Long.MIN_VALUE;
+    String sinceParam = req.getParameter("since");
+    if (sinceParam != null)
+    {
+      try
+      {
+        since = Long.parseLong(sinceParam.trim());
+      }
+      catch (NumberFormatException e)
+      {
+        res.sendError(HttpServletResponse.SC_BAD_REQUEST, "bad since: " + sinceParam);
+        return;
+      }
+      if (since < 0)
+      {
+        since += System.currentTimeMillis();
+      }
+    }
+
+    int[] fields;
+    String fieldsParam = req.getParameter("fields");
+    if (fieldsParam == null || fieldsParam.trim().length() == 0)
+    {
+      fields = new int[PhoneStateHistory.FIELDS.length];
+      for (int i = 0; i < fields.length; i++)
+      {
+        fields[i] = i;
+      }
+    }
+    else
+    {
+      String[] names = fieldsParam.split(",");
+      fields = new int[names.length];
+      for (int i = 0; i < names.length; i++)
+      {
+        fields[i] = PhoneStateHistory.fieldIndex(names[i].trim());
+        if (fields[i] < 0)
+        {
+          res.sendError(HttpServletResponse.SC_BAD_REQUEST, "unknown field " + names[i].trim());
+          return;
+        }
+      }
+    }
+
+    res.setContentType("application/json; charset=UTF-8");
+    res.setHeader("Cache-Control", "no-cache");
+    PrintWriter out = res.getWriter();
+    out.print("{\"fields\":[\"time\"");
+    for (int i = 0; i < fields.length; i++)
+    {
+      out.print(",\"");
+      out.print(PhoneStateHistory.FIELDS[fields[i]]);
+      out.print('"');
+    }
+    out.print("],\"rows\":[");
+
+    PhoneStateHistory history = StateHolder.getInstance(botID).getHistory();
+    PhoneStateHistory.Chunk chunk = new PhoneStateHistory.Chunk(fields, CHUNK_ROWS);
+    boolean first = true;
+    for (long row = history.firstAfter(since);;)
+    {
+      row = history.read(row, chunk);
+      if (chunk.size == 0)
+      {
+        break;
+      }
+      for (int i = 0; i < chunk.size; i++)
+      {
+        out.print(first ? "\n[" : ",\n[");
+        first = false;
+        out.print(chunk.times[i]);
+        for (int f = 0; f < fields.length; f++)
+        {
+          out.print(',');
+          printValue(out, chunk.values[f][i], fields[f] < PhoneStateHistory.FIRST_DOUBLE);
+        }
+        out.print(']');
+      }
+      out.flush();
+    }
+    out.print("]}");
+    out.flush();
+  }
+
+  private static void printValue(PrintWriter out, double value, boolean isFloat)
+  {
+    // JSON has no NaN or Infinity; not reported and not finite look the same
+    if (Double.isNaN(value) || Double.isInfinite(value))
+      out.print("null");
+    else if (isFloat)
+      // the shortest text that reads back as the same float
+      out.print((float) value);
+    else
+      out.print(value);
+  }
+}
@@ -1,6 +1,9 @@
 package com.cellbots.cellserv.server;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -9,10 +12,8 @@ import javax.servlet.http.HttpServletResponse;
 
 import com.cellbots.CellbotProtos;
 import com.cellbots.CellbotProtos.ControllerState;
-import com.cellbots.CellbotProtos.PhoneState;
-import com.cellbots.SchemaCellbotProtos;
-import com.dyuproject.protostuff.JsonIOUtil;
-import com.dyuproject.protostuff.Schema;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 public class RobotStateServlet extends HttpServlet
 {
@@ -24,6 +25,33 @@ public class RobotStateServlet extends HttpServlet
   
   private static boolean useNumericFormat = false;
 
+  /** Media type of the binary CellbotProtos encoding. */
+  static final String PROTOBUF_TYPE = "application/x-protobuf";
+
+  /** JSON smaller than this goes out uncompressed; gzip would barely help. */
+  private static final int MIN_GZIP_BYTES = 256;
+
+  /** Default cap on how long a robot's POST may be held waiting for commands. */
+  private static final long DEFAULT_LONG_POLL_TIMEOUT_MS = 25000;
+
+  private long longPollTimeoutMs = DEFAULT_LONG_POLL_TIMEOUT_MS;
+
+  public void init() throws ServletException
+  {
+    String timeout = getInitParameter("longPollTimeoutMs");
+    if (timeout != null)
+    {
+      try
+      {
+        longPollTimeoutMs = Long.parseLong(timeout.trim());
+      }
+      catch (NumberFormatException e)
+      {
+        throw new ServletException("bad longPollTimeoutMs: " + timeout, e);
+      }
+    }
+  }
+
   public String getServletInfo()
   {
     return "Servlet for handeling communication with phone and sensor data";
@@ -36,18 +64,84 @@ public class RobotStateServlet extends HttpServlet
     {
       botID = req.getParameter("BOTID");
     }
+    Metrics.robotStateGets.increment();
     
-    Schema<com.cellbots.CellbotProtos.PhoneState> schema = new SchemaCellbotProtos.PhoneState.MessageSchema();
-
-    PhoneState ps = StateHolder.getInstance(botID).getPhoneState();
+    PhoneStateSnapshot snapshot = StateHolder.getInstance(botID).getPhoneStateSnapshot();
+    if (snapshot == null)
+    {
+      return;
+    }
 
+    // native clients that link CellbotProtos ask for the binary encoding,
+    // which is several times smaller than JSON and cheaper to parse
+    boolean binary = accepts(req.getHeader("Accept"), PROTOBUF_TYPE);
+    String type;
+    String encoding = null;
+    String etag;
     byte[] bytes;
-    if (ps != null)
+    boolean gzip = false;
+    if (binary)
+    {
+      type = PROTOBUF_TYPE;
+      etag = snapshot.getETag("pb");
+    }
+    else
+    {
+      type = "application/json";
+      etag = snapshot.getETag();
+      gzip = accepts(req.getHeader("Accept-Encoding"), "gzip");
+    }
+
+    // unchanged state costs neither a serialization nor a body. Whether a
+    // JSON answer is gzipped depends on its length, so a client that takes
+    // gzip may hold either tag for this version.
+    res.setHeader("Cache-Control", "no-cache");
+    res.setHeader("Vary", "Accept, Accept-Encoding");
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (gzip && matches(ifNoneMatch, snapshot.getETag("gzip")))
+    {
+      etag = snapshot.getETag("gzip");
+    }
+    if (matches(ifNoneMatch, etag))
     {
-      bytes =   JsonIOUtil.toByteArray(ps, schema, useNumericFormat);
-      res.getOutputStream().write(bytes);
+      Metrics.robotStateNotModified.increment();
+      res.setHeader("ETag", etag);
+      res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
     }
 
+    if (!binary)
+    {
+      if (gzip && snapshot.getJson(useNumericFormat).length >= MIN_GZIP_BYTES)
+      {
+        encoding = "gzip";
+        etag = snapshot.getETag(encoding);
+      }
+      else
+      {
+        etag = snapshot.getETag();
+      }
+    }
+    res.setHeader("ETag", etag);
+
+    if (binary)
+    {
+      Metrics.robotStateProtobufGets.increment();
+      bytes = snapshot.getBinary();
+    }
+    else if (encoding != null)
+    {
+      Metrics.robotStateGzipGets.increment();
+      bytes = snapshot.getGzipJson(useNumericFormat);
+      res.setHeader("Content-Encoding", encoding);
+    }
+    else
+    {
+      bytes = snapshot.getJson(useNumericFormat);
+    }
+    res.setContentType(type);
+    res.setContentLength(bytes.length);
+    res.getOutputStream().write(bytes);
   }
 
   /**
@@ -59,23 +153,64 @@ public class RobotStateServlet extends HttpServlet
     // first, set the "content type" header of the response
     // res.setContentType("text/html");
 
+    Metrics.robotStatePosts.increment();
     try
     {
-      CellbotProtos.PhoneState state = CellbotProtos.PhoneState.parseFrom(req.getInputStream());
-      
-      
-      String botID = "";
-      if(state.hasBotID())
+      long start = System.nanoTime();
+      List<CellbotProtos.PhoneState> states;
+      if (isBatch(req))
+      {
+        states = readBatch(req);
+        Metrics.phoneStateBatchSize.record(states.size());
+      }
+      else
+      {
+        states = Collections.singletonList(CellbotProtos.PhoneState.parseFrom(req.getInputStream()));
+      }
+      Metrics.phoneStateParseNanos.record(System.nanoTime() - start);
+
+      // a batch is one robot's backlog; states for another bot would be
+      // filed under the wrong one, so such a batch is refused whole
+      String botID = null;
+      for (int i = 0; i < states.size(); i++)
       {
-        botID = state.getBotID();
+        CellbotProtos.PhoneState state = states.get(i);
+        Metrics.phoneStateBytes.record(state.getSerializedSize());
+        if (state.hasBotID())
+        {
+          if (botID != null && !botID.equals(state.getBotID()))
+          {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, "batch mixes bots " + botID + " and "
+                + state.getBotID());
+            return;
+          }
+          botID = state.getBotID();
+        }
+      }
+      if (botID == null)
+      {
+        botID = "";
       }
-      
-      StateHolder.getInstance(botID).setPhoneState(state);
 
-      if (StateHolder.getInstance(botID).newControllerStateAvailble())
+      StateHolder holder = StateHolder.getInstance(botID);
+      holder.setPhoneStates(states);
+
+      // take the pending events in one step so a key event added between a
+      // check and the take can not be dropped. A robot that passes WAIT is
+      // held until a command is queued instead of polling for it.
+      ControllerState cs;
+      long waitMs = getWaitMs(req);
+      if (waitMs > 0)
+      {
+        cs = holder.awaitControllerState(waitMs);
+      }
+      else
+      {
+        cs = holder.getControllerState();
+      }
+      if (cs != null)
       {
         System.out.println("writing new controller msg");
-        ControllerState cs = StateHolder.getInstance(botID).getControllerState();
        
         res.setStatus(HttpServletResponse.SC_OK);
         res.getOutputStream().write(cs.toByteArray());
@@ -86,6 +221,15 @@ public class RobotStateServlet extends HttpServlet
       }
 
     }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+    catch (InvalidProtocolBufferException e)
+    {
+      res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+    }
     catch (IOException e)
     {
       e.printStackTrace();
@@ -95,4 +239,136 @@ public class RobotStateServlet extends HttpServlet
 
   }
 
+  /**
+   * Looks for BATCH in the query string only: getParameter would read a body
+   * sent as a form, before we get to parse it.
+   */
+  private static boolean isBatch(HttpServletRequest req)
+  {
+    String query = req.getQueryString();
+    if (query == null)
+    {
+      return false;
+    }
+    String[] params = query.split("&");
+    for (int i = 0; i < params.length; i++)
+    {
+      if (params[i].equals("BATCH") || params[i].startsWith("BATCH="))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads a PhoneStateBatch: the samples, oldest first, each one length
+   * delimited and tagged as field 1, which is how ChannelCodec frames phone
+   * states.
+   */
+  private static List<CellbotProtos.PhoneState> readBatch(HttpServletRequest req) throws IOException
+  {
+    List<CellbotProtos.PhoneState> states = new ArrayList<CellbotProtos.PhoneState>();
+    CodedInputStream in = CodedInputStream.newInstance(req.getInputStream());
+    for (int tag; (tag = ChannelCodec.readTag(in)) != 0;)
+    {
+      if (ChannelCodec.typeOf(tag) != ChannelCodec.PHONE_STATE)
+      {
+        ChannelCodec.skip(in, tag);
+        continue;
+      }
+      CellbotProtos.PhoneState.Builder state = CellbotProtos.PhoneState.newBuilder();
+      ChannelCodec.readMessage(in, state);
+      states.add(state.build());
+    }
+    return states;
+  }
+
+  /**
+   * @return whether an Accept or Accept-Encoding header lists the value with a
+   *         nonzero quality. Wildcards do not count: a client has to ask for
+   *         the binary encoding or gzip by name.
+   */
+  static boolean accepts(String header, String value)
+  {
+    if (header == null)
+    {
+      return false;
+    }
+    String[] entries = header.split(",");
+    for (int i = 0; i < entries.length; i++)
+    {
+      String[] parts = entries[i].split(";");
+      if (!parts[0].trim().equalsIgnoreCase(value))
+      {
+        continue;
+      }
+      for (int p = 1; p < parts.length; p++)
+      {
+        String param = parts[p].trim();
+        if (param.startsWith("q="))
+        {
+          try
+          {
+            return Double.parseDouble(param.substring(2)) > 0;
+          }
+          catch (NumberFormatException e)
+          {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return whether an If-None-Match header lists the entity tag, or is *.
+   *         Comparison is weak, as RFC 2616 asks for If-None-Match on a GET:
+   *         a W/ prefix is ignored.
+   */
+  static boolean matches(String ifNoneMatch, String etag)
+  {
+    if (ifNoneMatch == null)
+    {
+      return false;
+    }
+    String[] tags = ifNoneMatch.split(",");
+    for (int i = 0; i < tags.length; i++)
+    {
+      String tag = tags[i].trim();
+      if (tag.startsWith("W/"))
+      {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(etag))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the optional WAIT parameter (milliseconds to hold the request open
+   * for controller state), capped at the configured long-poll timeout.
+   */
+  private long getWaitMs(HttpServletRequest req)
+  {
+    String wait = req.getParameter("WAIT");
+    if (wait == null)
+    {
+      return 0;
+    }
+    try
+    {
+      return Math.min(Math.max(Long.parseLong(wait), 0), longPollTimeoutMs);
+    }
+    catch (NumberFormatException e)
+    {
+      return 0;
+    }
+  }
+
 }
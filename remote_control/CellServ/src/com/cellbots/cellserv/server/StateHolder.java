@@ -1,107 +1,1126 @@
 package com.cellbots.cellserv.server;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.cellbots.CellbotProtos;
+import com.cellbots.cellserv.store.StateStore;
+import com.cellbots.cellserv.store.StateStores;
+import com.google.protobuf.InvalidProtocolBufferException;
 
+/**
+ * Latest known state of every bot, keyed by bot ID.
+ *
+ * The registry is a ConcurrentHashMap, so lookups never block and creation of
+ * a new bot only contends with other writers hashing to the same segment.
+ * Phone state and video frame live in per-bot atomic slots that servlet
+ * threads read without locking; pending controller input sits in a bounded
+ * per-bot KeyEventQueue, which long-polling robots also wait on.
+ *
+ * Bot IDs change whenever a robot app restarts, so bots nobody has touched for
+ * cellserv.botIdleTtlMs are dropped, and the frames kept across all bots are
+ * held under cellserv.frameBudgetBytes by dropping the least recently used
+ * ones. Sensor histories are held under cellserv.historyBudgetBytes the same
+ * way, dropping the histories of the bots that posted least recently. These
+ * are system properties (see appengine-web.xml), as is the size of the
+ * per-bot {@link PhoneStateHistory}. There is no background thread;
+ * request threads sweep at most once per sweep interval.
+ *
+ * If cellserv.stateStore names a {@link StateStore}, several servers can share
+ * the bots: phone state, the latest frame and pending controller input are
+ * also written to the store, and reads take up whatever another server wrote
+ * there. The slots above then act as this server's copy, refreshed from the
+ * store's near cache on each read, and waiting threads look at the store
+ * every STORE_POLL_MS for posts that went to another server. Every write of
+ * a state, frame or input also rewrites a small mark key, whose version
+ * readers compare with the one they last saw before fetching the value
+ * itself, so the polls of an idle bot move a few bytes. Histories stay per
+ * server. When the store can not be reached, a bot falls back to what
+ * this server holds.
+ */
 public class StateHolder
 {
 
-  private CellbotProtos.PhoneState              phoneState;
+  private final AtomicReference<PhoneStateSnapshot>       phoneState        = new AtomicReference<PhoneStateSnapshot>();
 
-  private CellbotProtos.ControllerState         controllerState;
+  // distinguishes versions of a bot that was dropped and seen again
+  private final String                                    epoch             = Long.toHexString(System.nanoTime());
 
-  private CellbotProtos.AudioVideoFrame         avFrame;
-  
-  private static boolean MERGE_PHONE_STATE     = true;
+  private volatile VideoFrame                             avFrame;
 
-  private CellbotProtos.ControllerState.Builder csBuilder = CellbotProtos.ControllerState.newBuilder();
-  
-  private static HashMap<String, StateHolder> instances = new HashMap<String, StateHolder>();
+  // guarded by frameLock
+  private long                                            frameSequence;
 
-  // private MemcacheService phoneStates =
-  // MemcacheServiceFactory.getMemcacheService();
+  // notified on every new frame and phone state
+  private final Object                                    frameLock         = new Object();
 
-  private StateHolder()
+  private static boolean                                  MERGE_PHONE_STATE = true;
+
+  private static final int                                REGISTRY_STRIPES  = 32;
+
+  private final KeyEventQueue                             keyEvents         = new KeyEventQueue();
+
+  private final PhoneStateHistory                         history           = new PhoneStateHistory();
+
+  private static final ConcurrentMap<String, StateHolder> instances         = new ConcurrentHashMap<String, StateHolder>(64,
+                                                                                0.75f, REGISTRY_STRIPES);
+
+  private static final long                               BOT_IDLE_TTL_MS   = Long.getLong("cellserv.botIdleTtlMs",
+                                                                                10 * 60 * 1000L).longValue();
+
+  private static final long                               FRAME_BUDGET_BYTES = Long.getLong("cellserv.frameBudgetBytes",
+                                                                                64L << 20).longValue();
+
+  private static final long                               HISTORY_BUDGET_BYTES = Long.getLong(
+                                                                                "cellserv.historyBudgetBytes", 32L << 20)
+                                                                                .longValue();
+
+  private static final long                               SWEEP_INTERVAL_MS = 10000;
+
+  private static final AtomicLong                         lastSweep         = new AtomicLong(System.currentTimeMillis());
+
+  private static final AtomicLong                         retainedFrameBytes = new AtomicLong();
+
+  private static final AtomicLong                         evictedBots       = new AtomicLong();
+
+  private static final AtomicLong                         evictedFrames     = new AtomicLong();
+
+  private static final AtomicLong                         retainedHistoryBytes = new AtomicLong();
+
+  private static final AtomicLong                         evictedHistories  = new AtomicLong();
+
+  private static final Object                             budgetLock        = new Object();
+
+  private static final Logger                             log               = Logger.getLogger(StateHolder.class
+                                                                                .getName());
+
+  // null keeps every bot in this JVM only
+  private static volatile StateStore                      store             = createStore();
+
+  private static final long                               STORE_POLL_MS     = 100;
+
+  private static final String                             STATE_KEY         = "state/";
+
+  private static final String                             FRAME_KEY         = "frame/";
+
+  private static final String                             INPUT_KEY         = "input/";
+
+  private static final byte[]                             NO_INPUT          = new byte[0];
+
+  // rewritten after each write under the matching key, so readers can tell
+  // from the mark's version whether there is anything new to fetch
+  private static final String                             STATE_MARK_KEY    = "stateMark/";
+
+  private static final String                             FRAME_MARK_KEY    = "frameMark/";
+
+  private static final String                             INPUT_MARK_KEY    = "inputMark/";
+
+  private static final byte[]                             MARK              = new byte[0];
+
+  private final String                                    botID;
+
+  // what was last written to or taken from the store, so a server does not
+  // take its own writes for new ones; guarded by storeLock
+  private final Object                                    storeLock         = new Object();
+
+  private long                                            storedStateVersion = -1;
+
+  private byte[]                                          storedState;
+
+  // storedState already merged, so our own write need not be parsed again
+  private MergedPhoneState                                storedMerged;
+
+  // mark versions of the value last fetched, or of input found empty
+  private long                                            seenStateMark     = -1;
+
+  private long                                            seenFrameMark     = -1;
+
+  private long                                            emptyInputMark    = -1;
+
+  private long                                            storedFrameVersion = -1;
+
+  private byte[]                                          storedFrame;
+
+  // notified when input for this bot is stored from this server
+  private final Object                                    inputSignal       = new Object();
+
+  private volatile long                                   lastActive        = System.currentTimeMillis();
+
+  // when the bot last posted phone state, for the history budget
+  private volatile long                                   lastPost;
+
+  private StateHolder(String botID)
+  {
+    this.botID = botID;
+  }
+
+  private static StateStore createStore()
+  {
+    String spec = System.getProperty("cellserv.stateStore", "").trim();
+    if (spec.length() == 0)
+    {
+      return null;
+    }
+    return StateStores.create(spec, BOT_IDLE_TTL_MS, Long.getLong("cellserv.stateStoreNearCacheMs", 100)
+        .longValue());
+  }
+
+  /**
+   * Switches to another store, or to none, and forgets every bot held here as
+   * a restart would.
+   */
+  static void useStore(StateStore newStore)
   {
+    store = newStore;
+    for (Iterator<StateHolder> it = instances.values().iterator(); it.hasNext();)
+    {
+      StateHolder holder = it.next();
+      it.remove();
+      holder.dropFrame();
+      holder.dropHistory();
+    }
   }
 
   public static StateHolder getInstance(String botID)
   {
+    long now = System.currentTimeMillis();
+    sweepIfDue(now);
 
-    if (! instances.containsKey(botID))
+    StateHolder holder = instances.get(botID);
+    if (holder == null)
     {
-      instances.put(botID, new StateHolder());
+      StateHolder created = new StateHolder(botID);
+      holder = instances.putIfAbsent(botID, created);
+      if (holder == null)
+      {
+        holder = created;
+      }
     }
-    return instances.get(botID);
+    holder.lastActive = now;
+    return holder;
+  }
+
+  /**
+   * Drops idle bots if the last sweep was long enough ago. Only the thread that
+   * wins the race on lastSweep does the work.
+   */
+  private static void sweepIfDue(long now)
+  {
+    long last = lastSweep.get();
+    if (now - last < SWEEP_INTERVAL_MS || !lastSweep.compareAndSet(last, now))
+    {
+      return;
+    }
+    evictIdle(now - BOT_IDLE_TTL_MS);
+  }
+
+  static void evictIdle(long idleSince)
+  {
+    for (Iterator<Map.Entry<String, StateHolder>> it = instances.entrySet().iterator(); it.hasNext();)
+    {
+      Map.Entry<String, StateHolder> entry = it.next();
+      StateHolder holder = entry.getValue();
+      if (holder.lastActive < idleSince && instances.remove(entry.getKey(), holder))
+      {
+        holder.dropFrame();
+        holder.dropHistory();
+        evictedBots.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Drops the least recently used frames of other bots until the retained
+   * frames fit the budget again.
+   */
+  private static void enforceFrameBudget(StateHolder keep)
+  {
+    synchronized (budgetLock)
+    {
+      if (retainedFrameBytes.get() <= FRAME_BUDGET_BYTES)
+      {
+        return;
+      }
+      List<StateHolder> withFrames = new ArrayList<StateHolder>();
+      for (StateHolder holder : instances.values())
+      {
+        if (holder != keep && holder.avFrame != null)
+        {
+          withFrames.add(holder);
+        }
+      }
+      Collections.sort(withFrames, new Comparator<StateHolder>()
+      {
+        public int compare(StateHolder a, StateHolder b)
+        {
+          long x = lastUse(a);
+          long y = lastUse(b);
+          return x < y ? -1 : (x == y ? 0 : 1);
+        }
+      });
+      for (int i = 0; i < withFrames.size() && retainedFrameBytes.get() > FRAME_BUDGET_BYTES; i++)
+      {
+        if (withFrames.get(i).dropFrame())
+        {
+          evictedFrames.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops the histories of the bots that posted least recently, other than
+   * keep, until the retained histories fit the budget again.
+   */
+  private static void enforceHistoryBudget(StateHolder keep)
+  {
+    synchronized (budgetLock)
+    {
+      if (retainedHistoryBytes.get() <= HISTORY_BUDGET_BYTES)
+      {
+        return;
+      }
+      List<StateHolder> withHistory = new ArrayList<StateHolder>();
+      for (StateHolder holder : instances.values())
+      {
+        if (holder != keep && holder.history.getAllocatedBytes() > 0)
+        {
+          withHistory.add(holder);
+        }
+      }
+      Collections.sort(withHistory, new Comparator<StateHolder>()
+      {
+        public int compare(StateHolder a, StateHolder b)
+        {
+          long x = a.lastPost;
+          long y = b.lastPost;
+          return x < y ? -1 : (x == y ? 0 : 1);
+        }
+      });
+      for (int i = 0; i < withHistory.size() && retainedHistoryBytes.get() > HISTORY_BUDGET_BYTES; i++)
+      {
+        if (withHistory.get(i).dropHistory())
+        {
+          evictedHistories.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if there was any history to drop
+   */
+  private boolean dropHistory()
+  {
+    long released = history.clear();
+    retainedHistoryBytes.addAndGet(-released);
+    return released > 0;
+  }
+
+  private static long lastUse(StateHolder holder)
+  {
+    VideoFrame frame = holder.avFrame;
+    return frame == null ? 0 : frame.lastAccess;
+  }
+
+  /**
+   * @return true if there was a frame to drop
+   */
+  private boolean dropFrame()
+  {
+    synchronized (frameLock)
+    {
+      VideoFrame frame = avFrame;
+      if (frame == null)
+      {
+        return false;
+      }
+      avFrame = null;
+      retainedFrameBytes.addAndGet(-frame.retire());
+      return true;
+    }
+  }
+
+  /**
+   * @return a live, read-only view of all bots by ID
+   */
+  static Map<String, StateHolder> getInstances()
+  {
+    return Collections.unmodifiableMap(instances);
+  }
+
+  /**
+   * @return the number of bots currently held
+   */
+  public static int getLiveBotCount()
+  {
+    return instances.size();
+  }
+
+  /**
+   * @return the number of bots dropped for being idle
+   */
+  public static long getEvictedBotCount()
+  {
+    return evictedBots.get();
+  }
+
+  /**
+   * @return the number of frames dropped to stay within the frame budget
+   */
+  public static long getEvictedFrameCount()
+  {
+    return evictedFrames.get();
+  }
+
+  /**
+   * Counts bytes added to a live frame after it was stored, such as a
+   * rendition.
+   */
+  static void addRetainedFrameBytes(long n)
+  {
+    retainedFrameBytes.addAndGet(n);
+  }
+
+  /**
+   * @return the sensor history bytes currently held across all bots
+   */
+  public static long getRetainedHistoryBytes()
+  {
+    return retainedHistoryBytes.get();
+  }
+
+  /**
+   * @return the number of histories dropped to stay within the history budget
+   */
+  public static long getEvictedHistoryCount()
+  {
+    return evictedHistories.get();
+  }
+
+  /**
+   * @return the image bytes currently held across all bots
+   */
+  public static long getRetainedFrameBytes()
+  {
+    return retainedFrameBytes.get();
   }
 
   public void setPhoneState(CellbotProtos.PhoneState ps)
   {
-    
-    if(phoneState != null && MERGE_PHONE_STATE )
+    setPhoneStates(Collections.singletonList(ps));
+  }
+
+  /**
+   * Applies a robot's samples in order, as one new version of its state.
+   *
+   * Each sample goes into the history at the server time it was taken, going
+   * by how much older its timestamp is than the newest sample's; the newest is
+   * taken to be now.
+   *
+   * @param batch samples of one bot, oldest first
+   */
+  public void setPhoneStates(List<CellbotProtos.PhoneState> batch)
+  {
+    if (batch.isEmpty())
+    {
+      return;
+    }
+    StateStore shared = store;
+    if (shared == null || !storePhoneStates(shared, batch))
+    {
+      // we merge sensor data because it may not come in that often. Retry
+      // until our merge is based on the latest state so concurrent posts are
+      // not lost. The merge only touches the fields present in each sample; the
+      // PhoneState is not rebuilt until someone reads it.
+      while (true)
+      {
+        PhoneStateSnapshot prev = phoneState.get();
+        MergedPhoneState next = merge(prev == null ? null : prev.merged, batch);
+        long version = prev == null ? 1 : prev.version + 1;
+        if (phoneState.compareAndSet(prev, new PhoneStateSnapshot(next, version, epoch)))
+        {
+          break;
+        }
+      }
+    }
+
+    long now = System.currentTimeMillis();
+    lastPost = now;
+    long newest = batch.get(batch.size() - 1).getTimestamp();
+    long allocated = 0;
+    for (int i = 0; i < batch.size(); i++)
+    {
+      CellbotProtos.PhoneState ps = batch.get(i);
+      allocated += history.record(now - Math.max(newest - ps.getTimestamp(), 0), ps);
+    }
+    if (allocated > 0 && retainedHistoryBytes.addAndGet(allocated) > HISTORY_BUDGET_BYTES)
+    {
+      enforceHistoryBudget(this);
+    }
+
+    synchronized (frameLock)
+    {
+      frameLock.notifyAll();
+    }
+  }
+
+  private static MergedPhoneState merge(MergedPhoneState prev, List<CellbotProtos.PhoneState> batch)
+  {
+    if (!MERGE_PHONE_STATE)
     {
-      //we merge sensor data because it may not come in that often.
-      phoneState = CellbotProtos.PhoneState.newBuilder(phoneState).mergeFrom(ps).build();
+      return MergedPhoneState.of(batch.get(batch.size() - 1));
     }
-    else {
-      phoneState = ps;
+    if (prev != null)
+    {
+      return batch.size() == 1 ? prev.merge(batch.get(0)) : prev.merge(batch);
+    }
+    MergedPhoneState next = MergedPhoneState.of(batch.get(0));
+    return batch.size() > 1 ? next.merge(batch.subList(1, batch.size())) : next;
+  }
+
+  /**
+   * Merges batch into the stored state, retrying until no other server wrote
+   * in between, and makes the result this server's state too.
+   *
+   * @return false if the store could not be reached
+   */
+  private boolean storePhoneStates(StateStore shared, List<CellbotProtos.PhoneState> batch)
+  {
+    String key = STATE_KEY + botID;
+    try
+    {
+      while (true)
+      {
+        StateStore.Entry current = shared.get(key);
+        MergedPhoneState stored = null;
+        if (current != null)
+        {
+          synchronized (storeLock)
+          {
+            if (Arrays.equals(current.value, storedState))
+            {
+              stored = storedMerged;
+            }
+          }
+          if (stored == null)
+          {
+            CellbotProtos.PhoneState ps = parsePhoneState(current.value);
+            stored = ps == null ? null : MergedPhoneState.of(ps);
+          }
+        }
+        MergedPhoneState next = merge(stored, batch);
+        byte[] bytes = next.toPhoneState().toByteArray();
+        if (shared.compareAndSet(key, current, bytes))
+        {
+          synchronized (storeLock)
+          {
+            // the store gives no version for our write; the next read finds
+            // it and, seeing the same bytes, just notes the version
+            storedStateVersion = -1;
+            storedState = bytes;
+            storedMerged = next;
+            publishPhoneState(next, bytes);
+          }
+          mark(shared, STATE_MARK_KEY);
+          return true;
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      log.log(Level.WARNING, "could not store the phone state of " + botID, e);
+      return false;
+    }
+  }
+
+  private void publishPhoneState(MergedPhoneState next, byte[] binary)
+  {
+    while (true)
+    {
+      PhoneStateSnapshot prev = phoneState.get();
+      long version = prev == null ? 1 : prev.version + 1;
+      if (phoneState.compareAndSet(prev, new PhoneStateSnapshot(next, version, epoch, binary)))
+      {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Retags the published state with the version the store gave it, if it is
+   * still the stored one. Until then it carries a tag of this server's, which
+   * is only served if the store can not be read.
+   */
+  // must hold storeLock
+  private void tagWithStoreVersion(long storeVersion)
+  {
+    String etag = PhoneStateSnapshot.storeETag(storeVersion);
+    while (true)
+    {
+      PhoneStateSnapshot prev = phoneState.get();
+      if (prev == null || prev.merged != storedMerged || prev.getETag().equals(etag))
+      {
+        return;
+      }
+      if (phoneState.compareAndSet(prev, prev.withStoreVersion(storeVersion)))
+      {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Takes up a phone state another server stored, if there is a new one.
+   */
+  private void syncPhoneState()
+  {
+    long mark = readMark(STATE_MARK_KEY);
+    synchronized (storeLock)
+    {
+      if (mark != -1 && mark == seenStateMark)
+      {
+        return;
+      }
+    }
+    StateStore.Entry entry = read(STATE_KEY);
+    if (entry == null)
+    {
+      return;
+    }
+    synchronized (storeLock)
+    {
+      seenStateMark = mark;
+      if (entry.version == storedStateVersion)
+      {
+        return;
+      }
+      storedStateVersion = entry.version;
+      if (Arrays.equals(entry.value, storedState))
+      {
+        // our own write, or one taken up already; only the tag is new
+        tagWithStoreVersion(entry.version);
+        return;
+      }
+      CellbotProtos.PhoneState ps = parsePhoneState(entry.value);
+      if (ps == null)
+      {
+        return;
+      }
+      storedState = entry.value;
+      storedMerged = MergedPhoneState.of(ps);
+      publishPhoneState(storedMerged, entry.value);
+      tagWithStoreVersion(entry.version);
+    }
+    synchronized (frameLock)
+    {
+      frameLock.notifyAll();
+    }
+  }
+
+  /**
+   * Takes up a frame another server stored, if there is a new one.
+   */
+  private void syncFrame()
+  {
+    long mark = readMark(FRAME_MARK_KEY);
+    synchronized (storeLock)
+    {
+      if (mark != -1 && mark == seenFrameMark)
+      {
+        return;
+      }
+    }
+    StateStore.Entry entry = read(FRAME_KEY);
+    if (entry == null)
+    {
+      return;
+    }
+    synchronized (storeLock)
+    {
+      seenFrameMark = mark;
+      if (entry.version == storedFrameVersion)
+      {
+        return;
+      }
+      storedFrameVersion = entry.version;
+      if (Arrays.equals(entry.value, storedFrame))
+      {
+        return;
+      }
+      try
+      {
+        CellbotProtos.AudioVideoFrame av = CellbotProtos.AudioVideoFrame.parseFrom(entry.value);
+        storedFrame = entry.value;
+        putVideoFrame(av);
+      }
+      catch (InvalidProtocolBufferException e)
+      {
+        log.log(Level.WARNING, "unreadable stored frame of " + botID, e);
+        return;
+      }
+    }
+    if (retainedFrameBytes.get() > FRAME_BUDGET_BYTES)
+    {
+      enforceFrameBudget(this);
+    }
+  }
+
+  /**
+   * @return the stored value of this bot under the key prefix, or null if
+   *         there is none or no store
+   */
+  private StateStore.Entry read(String prefix)
+  {
+    StateStore shared = store;
+    if (shared == null)
+    {
+      return null;
+    }
+    try
+    {
+      return shared.get(prefix + botID);
+    }
+    catch (IOException e)
+    {
+      log.log(Level.WARNING, "could not read " + prefix + botID, e);
+      return null;
+    }
+  }
+
+  /**
+   * @return the version of this bot's mark under the key prefix, or -1 if
+   *         there is none or no store
+   */
+  private long readMark(String prefix)
+  {
+    StateStore.Entry mark = read(prefix);
+    return mark == null ? -1 : mark.version;
+  }
+
+  /**
+   * Rewrites this bot's mark under the key prefix after a write, so readers
+   * see a new version. If that fails, readers catch up at the next write.
+   */
+  private void mark(StateStore shared, String prefix)
+  {
+    try
+    {
+      shared.set(prefix + botID, MARK);
+    }
+    catch (IOException e)
+    {
+      log.log(Level.WARNING, "could not write " + prefix + botID, e);
+    }
+  }
+
+  private CellbotProtos.PhoneState parsePhoneState(byte[] bytes)
+  {
+    try
+    {
+      return CellbotProtos.PhoneState.parseFrom(bytes);
+    }
+    catch (InvalidProtocolBufferException e)
+    {
+      // written by something else; the next post replaces it
+      log.log(Level.WARNING, "unreadable stored phone state of " + botID, e);
+      return null;
     }
   }
 
   public void setVideoFrame(CellbotProtos.AudioVideoFrame av)
   {
-    avFrame = av;
+    StateStore shared = store;
+    if (shared != null)
+    {
+      byte[] bytes = av.toByteArray();
+      try
+      {
+        shared.set(FRAME_KEY + botID, bytes);
+        synchronized (storeLock)
+        {
+          storedFrameVersion = -1;
+          storedFrame = bytes;
+        }
+        mark(shared, FRAME_MARK_KEY);
+      }
+      catch (IOException e)
+      {
+        log.log(Level.WARNING, "could not store the frame of " + botID, e);
+      }
+    }
+    putVideoFrame(av);
+    if (retainedFrameBytes.get() > FRAME_BUDGET_BYTES)
+    {
+      enforceFrameBudget(this);
+    }
+  }
+
+  private void putVideoFrame(CellbotProtos.AudioVideoFrame av)
+  {
+    synchronized (frameLock)
+    {
+      VideoFrame frame = new VideoFrame(av, ++frameSequence, System.currentTimeMillis());
+      VideoFrame old = avFrame;
+      avFrame = frame;
+      retainedFrameBytes.addAndGet(frame.getDataSize() - (old == null ? 0 : old.retire()));
+      frameLock.notifyAll();
+    }
+  }
+
+  /**
+   * @return the latest frame without counting it as a use
+   */
+  VideoFrame peekLatestFrame()
+  {
+    return avFrame;
+  }
+
+  VideoFrame getLatestFrame()
+  {
+    syncFrame();
+    VideoFrame frame = avFrame;
+    if (frame != null)
+    {
+      frame.lastAccess = System.currentTimeMillis();
+    }
+    return frame;
+  }
+
+  /**
+   * Waits for a frame newer than the one a viewer has already seen. Frames
+   * posted while the viewer was busy are skipped; it always gets the latest.
+   *
+   * @param afterSequence sequence number of the last frame the caller sent
+   * @param timeoutMs longest time to wait, in milliseconds
+   * @return the latest frame, or null if no newer frame arrived in time
+   */
+  VideoFrame awaitVideoFrame(long afterSequence, long timeoutMs) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (true)
+    {
+      syncFrame();
+      synchronized (frameLock)
+      {
+        if (avFrame != null && avFrame.sequence > afterSequence)
+        {
+          avFrame.lastAccess = System.currentTimeMillis();
+          return avFrame;
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0)
+        {
+          return null;
+        }
+        frameLock.wait(pollSlice(remaining));
+      }
+    }
+  }
+
+  /**
+   * @return how long to wait on a lock before looking at the store again
+   */
+  private static long pollSlice(long remaining)
+  {
+    return store == null ? remaining : Math.min(remaining, STORE_POLL_MS);
+  }
+
+  /**
+   * Waits until the bot posts a frame newer than afterSequence or a phone state
+   * newer than afterVersion, whichever comes first.
+   *
+   * @return true if either arrived before the timeout
+   */
+  boolean awaitUpdate(long afterSequence, long afterVersion, long timeoutMs) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (true)
+    {
+      syncPhoneState();
+      syncFrame();
+      synchronized (frameLock)
+      {
+        long remaining = deadline - System.currentTimeMillis();
+        if (updatedSince(afterSequence, afterVersion) || remaining <= 0)
+        {
+          return updatedSince(afterSequence, afterVersion);
+        }
+        frameLock.wait(pollSlice(remaining));
+      }
+    }
+  }
+
+  // must hold frameLock
+  private boolean updatedSince(long afterSequence, long afterVersion)
+  {
+    PhoneStateSnapshot snapshot = phoneState.get();
+    return (avFrame != null && avFrame.sequence > afterSequence)
+        || (snapshot != null && snapshot.version > afterVersion);
   }
 
   public CellbotProtos.PhoneState getPhoneState()
   {
-    return phoneState;
+    syncPhoneState();
+    PhoneStateSnapshot snapshot = phoneState.get();
+    return snapshot == null ? null : snapshot.getState();
   }
 
+  /**
+   * @return the current versioned phone state, or null if the bot never posted
+   */
+  PhoneStateSnapshot getPhoneStateSnapshot()
+  {
+    syncPhoneState();
+    return phoneState.get();
+  }
+
+  /**
+   * @return the phone state this server holds, without looking at the store
+   */
+  PhoneStateSnapshot peekPhoneStateSnapshot()
+  {
+    return phoneState.get();
+  }
+
+  /**
+   * @return the recent sensor readings of this bot
+   */
+  PhoneStateHistory getHistory()
+  {
+    return history;
+  }
+
+  /**
+   * Takes all pending key events and the text command as one ControllerState.
+   *
+   * @return the pending state, or null if nothing was queued since the last
+   *         call
+   */
   public CellbotProtos.ControllerState getControllerState()
   {
-    controllerState = csBuilder.build();
-    csBuilder = null;
-    return controllerState;
+    CellbotProtos.ControllerState local = keyEvents.drain();
+    StateStore shared = store;
+    if (local != null || shared == null)
+    {
+      return local;
+    }
+    // input found empty, or taken, at this mark has not been added to since
+    long mark = readMark(INPUT_MARK_KEY);
+    synchronized (storeLock)
+    {
+      if (mark != -1 && mark == emptyInputMark)
+      {
+        return null;
+      }
+    }
+    String key = INPUT_KEY + botID;
+    try
+    {
+      while (true)
+      {
+        StateStore.Entry current = shared.get(key);
+        if (current == null || current.value.length == 0)
+        {
+          noteEmptyInput(mark);
+          return null;
+        }
+        if (shared.compareAndSet(key, current, NO_INPUT))
+        {
+          noteEmptyInput(mark);
+          return CellbotProtos.ControllerState.newBuilder().mergeFrom(current.value)
+              .setTimestamp(System.currentTimeMillis()).build();
+        }
+      }
+    }
+    catch (InvalidProtocolBufferException e)
+    {
+      log.log(Level.WARNING, "dropped unreadable stored input of " + botID, e);
+      return null;
+    }
+    catch (IOException e)
+    {
+      log.log(Level.WARNING, "could not take the stored input of " + botID, e);
+      return null;
+    }
+  }
+
+  private void noteEmptyInput(long mark)
+  {
+    synchronized (storeLock)
+    {
+      emptyInputMark = mark;
+    }
+  }
+
+  /**
+   * Like {@link #getControllerState()}, but parks the calling thread until a
+   * key event or text command is queued or the timeout expires. Used by the
+   * robot long-poll so commands are delivered as soon as they arrive.
+   *
+   * @param timeoutMs longest time to wait, in milliseconds
+   * @return the pending state, or null if nothing arrived in time
+   */
+  public CellbotProtos.ControllerState awaitControllerState(long timeoutMs) throws InterruptedException
+  {
+    if (store == null)
+    {
+      return keyEvents.await(timeoutMs);
+    }
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (true)
+    {
+      CellbotProtos.ControllerState cs = getControllerState();
+      long remaining = deadline - System.currentTimeMillis();
+      if (cs != null || remaining <= 0)
+      {
+        return cs;
+      }
+      synchronized (inputSignal)
+      {
+        inputSignal.wait(pollSlice(remaining));
+      }
+    }
+  }
+
+  /**
+   * Adds a key event or sets the text command in the stored input, capped at
+   * the capacity of a KeyEventQueue. Unlike the queue, events are not
+   * coalesced.
+   *
+   * @return the number of key events pending, or -1 if the store could not be
+   *         reached
+   */
+  private int storeInput(StateStore shared, CellbotProtos.ControllerState.KeyEvent key, String command)
+  {
+    String storeKey = INPUT_KEY + botID;
+    try
+    {
+      while (true)
+      {
+        StateStore.Entry current = shared.get(storeKey);
+        CellbotProtos.ControllerState.Builder cs = CellbotProtos.ControllerState.newBuilder();
+        if (current != null && current.value.length > 0)
+        {
+          try
+          {
+            cs.mergeFrom(current.value);
+          }
+          catch (InvalidProtocolBufferException e)
+          {
+            log.log(Level.WARNING, "dropped unreadable stored input of " + botID, e);
+            cs.clear();
+          }
+        }
+        cs.setTimestamp(System.currentTimeMillis());
+        if (key != null)
+        {
+          cs.addKeyEvent(key);
+          int excess = cs.getKeyEventCount() - KeyEventQueue.DEFAULT_CAPACITY;
+          if (excess > 0)
+          {
+            List<CellbotProtos.ControllerState.KeyEvent> kept = new ArrayList<CellbotProtos.ControllerState.KeyEvent>(
+                cs.getKeyEventList().subList(excess, cs.getKeyEventCount()));
+            cs.clearKeyEvent().addAllKeyEvent(kept);
+          }
+        }
+        if (command != null)
+        {
+          cs.setTxtCommand(command);
+        }
+        CellbotProtos.ControllerState next = cs.build();
+        if (shared.compareAndSet(storeKey, current, next.toByteArray()))
+        {
+          mark(shared, INPUT_MARK_KEY);
+          synchronized (inputSignal)
+          {
+            inputSignal.notifyAll();
+          }
+          return next.getKeyEventCount();
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      log.log(Level.WARNING, "could not store input for " + botID, e);
+      return -1;
+    }
+  }
+
+  /**
+   * @return how many key events were dropped because the robot was not
+   *         picking them up
+   */
+  public long getKeyEventOverflowCount()
+  {
+    return keyEvents.getOverflowCount();
   }
 
   public boolean newVideoFrameAvilble()
   {
+    syncFrame();
     return avFrame != null;// && instance.avFrame.getTimestamp() !=
   }
 
   public boolean newPhoneStateAvilble()
   {
-    return phoneState != null;// && instance.phoneState.getTimestamp()
+    syncPhoneState();
+    return phoneState.get() != null;// && instance.phoneState.getTimestamp()
   }
 
   public byte[] getVideoFrame()
   {
-    if (avFrame != null && avFrame.hasData())
-      return avFrame.getData().toByteArray();
+    syncFrame();
+    VideoFrame frame = avFrame;
+    if (frame != null && frame.frame.hasData())
+      return frame.frame.getData().toByteArray();
     else
       return null;
   }
 
   public boolean newControllerStateAvailble()
   {
-    return csBuilder != null && csBuilder.getKeyEventCount() > 0;
+    if (keyEvents.hasPending())
+    {
+      return true;
+    }
+    StateStore.Entry entry = read(INPUT_KEY);
+    return entry != null && entry.value.length > 0;
   }
 
   public int addKeyEvent(com.cellbots.CellbotProtos.ControllerState.KeyEvent.Builder key)
   {
-    if (csBuilder == null)
-      csBuilder = CellbotProtos.ControllerState.newBuilder();
-
-    csBuilder.setTimestamp(System.currentTimeMillis());
-    csBuilder.addKeyEvent(key);
-    return csBuilder.getKeyEventCount();
+    StateStore shared = store;
+    if (shared != null)
+    {
+      int pending = storeInput(shared, key.build(), null);
+      if (pending >= 0)
+      {
+        return pending;
+      }
+    }
+    return keyEvents.offer(key.build());
   }
-  
+
   public int addKeyTxtCommand(String command)
   {
-    csBuilder.setTxtCommand(command);
+    StateStore shared = store;
+    if (shared == null || storeInput(shared, null, command) < 0)
+    {
+      keyEvents.setTxtCommand(command);
+    }
     return 1;
   }
 }
@@ -0,0 +1,45 @@
+package com.cellbots.cellserv.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for hot servlet paths. Each thread adds to one of several cells,
+ * picked by thread ID and spaced a cache line apart, so request threads do not
+ * fight over a single AtomicLong. Reads sum all cells and are only
+ * approximately current, which is fine for metrics.
+ */
+final class StripedCounter
+{
+  static final int              STRIPES = 16;
+
+  // one long per 64 byte line
+  private static final int      PAD     = 8;
+
+  private final AtomicLongArray cells   = new AtomicLongArray(STRIPES * PAD);
+
+  void increment()
+  {
+    add(1);
+  }
+
+  void add(long delta)
+  {
+    cells.addAndGet(stripe() * PAD, delta);
+  }
+
+  long get()
+  {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++)
+    {
+      sum += cells.get(i * PAD);
+    }
+    return sum;
+  }
+
+  static int stripe()
+  {
+    long id = Thread.currentThread().getId();
+    return (int) (id ^ (id >>> 4)) & (STRIPES - 1);
+  }
+}
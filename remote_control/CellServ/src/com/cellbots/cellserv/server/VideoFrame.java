@@ -0,0 +1,189 @@
+package com.cellbots.cellserv.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.cellbots.CellbotProtos;
+
+/**
+ * A video frame as stored for one bot. Frames are immutable and carry a per-bot
+ * sequence number so streaming viewers can tell whether they have already sent
+ * the latest one.
+ *
+ * The image bytes are kept only in the frame's ByteString and are written to
+ * viewers from there, so serving a frame does not copy the whole image.
+ *
+ * Scaled-down renditions for slow viewers are made on first request and kept
+ * on the frame, so any number of viewers at one size cost one transcode, and
+ * they go away with the frame. Their bytes count against the frame budget
+ * until the frame is retired. The transcode runs on the thread of the viewer
+ * that asked first, outside any lock; viewers asking while it runs are
+ * served the frame as uploaded rather than made to wait.
+ */
+final class VideoFrame
+{
+  private static final int                CHUNK_SIZE = 8192;
+
+  // protobuf 2.3 has no ByteString.writeTo, so we drain a read-only view of
+  // the frame through a small per-thread buffer instead.
+  private static final ThreadLocal<byte[]> chunks    = new ThreadLocal<byte[]>()
+                                                     {
+                                                       protected byte[] initialValue()
+                                                       {
+                                                         return new byte[CHUNK_SIZE];
+                                                       }
+                                                     };
+
+  final CellbotProtos.AudioVideoFrame      frame;
+
+  final long                               sequence;
+
+  final long                               receivedAt;
+
+  // last time a viewer was served this frame, for LRU eviction
+  volatile long                            lastAccess;
+
+  // all guarded by this
+  private Map<Integer, Rendition>          renditions;
+
+  private int                              renditionBytes;
+
+  private boolean                          retired;
+
+  VideoFrame(CellbotProtos.AudioVideoFrame frame, long sequence, long receivedAt)
+  {
+    this.frame = frame;
+    this.sequence = sequence;
+    this.receivedAt = receivedAt;
+    this.lastAccess = receivedAt;
+  }
+
+  boolean hasData()
+  {
+    return frame.hasData();
+  }
+
+  /**
+   * @return size of the image data in bytes
+   */
+  int getDataSize()
+  {
+    return frame.getData().size();
+  }
+
+  /**
+   * Writes the image data to out without materializing a copy of it.
+   */
+  void writeDataTo(OutputStream out) throws IOException
+  {
+    ByteBuffer view = frame.getData().asReadOnlyByteBuffer();
+    byte[] chunk = chunks.get();
+    while (view.hasRemaining())
+    {
+      int n = Math.min(chunk.length, view.remaining());
+      view.get(chunk, 0, n);
+      out.write(chunk, 0, n);
+    }
+  }
+
+  /**
+   * @param width rendition width from {@link FrameScaler#snapWidth}
+   * @param quality rendition quality from {@link FrameScaler#snapQuality}
+   * @return the image re-encoded at that width and quality, or null to serve
+   *         the frame as uploaded
+   */
+  byte[] getRendition(int width, int quality)
+  {
+    if (width == 0 && quality == 0)
+    {
+      return null;
+    }
+    Integer key = Integer.valueOf(width * 1000 + quality);
+    Rendition rendition;
+    synchronized (this)
+    {
+      if (renditions == null)
+      {
+        renditions = new HashMap<Integer, Rendition>(4);
+      }
+      rendition = renditions.get(key);
+      if (rendition == null)
+      {
+        rendition = new Rendition();
+        renditions.put(key, rendition);
+      }
+    }
+    return rendition.get(width, quality);
+  }
+
+  /**
+   * Stops counting this frame against the frame budget.
+   *
+   * @return the bytes it was counted for: the image and any renditions
+   */
+  synchronized long retire()
+  {
+    retired = true;
+    return getDataSize() + renditionBytes;
+  }
+
+  private synchronized void addRenditionBytes(int n)
+  {
+    if (!retired)
+    {
+      renditionBytes += n;
+      StateHolder.addRetainedFrameBytes(n);
+    }
+  }
+
+  /**
+   * One size of this frame, made by whichever viewer asks first.
+   */
+  private final class Rendition
+  {
+    // guarded by this
+    private boolean started;
+
+    private volatile boolean done;
+
+    private volatile byte[]  jpeg;
+
+    /**
+     * @return the rendition, or null if there is none or it is still being
+     *         made
+     */
+    byte[] get(int width, int quality)
+    {
+      if (done)
+      {
+        return jpeg;
+      }
+      synchronized (this)
+      {
+        if (started)
+        {
+          return null;
+        }
+        started = true;
+      }
+      long start = System.nanoTime();
+      byte[] scaled = FrameScaler.scale(frame.getData().toByteArray(), width, quality);
+      Metrics.renditionNanos.record(System.nanoTime() - start);
+      // a rendition no smaller than the source is not worth sending
+      if (scaled != null && scaled.length >= getDataSize())
+      {
+        scaled = null;
+      }
+      if (scaled != null)
+      {
+        addRenditionBytes(scaled.length);
+      }
+      jpeg = scaled;
+      done = true;
+      return scaled;
+    }
+  }
+}
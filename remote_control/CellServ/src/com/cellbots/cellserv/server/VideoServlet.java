@@ -3,6 +3,7 @@ package com.cellbots.cellserv.server;
 import java.io.IOException;
 
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -10,17 +11,61 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.httpclient.HttpStatus;
 
 import com.cellbots.CellbotProtos;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 
+/**
+ * Takes video frames posted by robots and serves the latest one to viewers,
+ * either one per GET or, with STREAM, as a stream of frames as they arrive.
+ *
+ * Viewers on slow links can pass SIZE (largest width in pixels) and QUALITY
+ * (JPEG quality, 1-99) to get a smaller rendition. Both are rounded up to a
+ * few fixed steps so viewers asking for about the same size share one.
+ */
 public class VideoServlet extends HttpServlet
 {
 
-  private static final long serialVersionUID = -1542374763947377440L;
+  private static final long   serialVersionUID               = -1542374763947377440L;
+
+  private static final String BOUNDARY                       = "cellservframe";
+
+  /** Default time a stream stays open without the robot posting a frame. */
+  private static final long   DEFAULT_STREAM_IDLE_TIMEOUT_MS = 30000;
+
+  private long                streamIdleTimeoutMs            = DEFAULT_STREAM_IDLE_TIMEOUT_MS;
+
+  /** Default cap on the size of one uploaded AudioVideoFrame. */
+  private static final int    DEFAULT_MAX_FRAME_BYTES        = 1 << 20;
+
+  private int                 maxFrameBytes                  = DEFAULT_MAX_FRAME_BYTES;
 
   public String getServletInfo()
   {
     return "Servlet for handeling communication with phone";
   }
 
+  public void init() throws ServletException
+  {
+    String param = null;
+    try
+    {
+      param = getInitParameter("streamIdleTimeoutMs");
+      if (param != null)
+      {
+        streamIdleTimeoutMs = Long.parseLong(param.trim());
+      }
+      param = getInitParameter("maxFrameBytes");
+      if (param != null)
+      {
+        maxFrameBytes = Integer.parseInt(param.trim());
+      }
+    }
+    catch (NumberFormatException e)
+    {
+      throw new ServletException("bad init parameter: " + param, e);
+    }
+  }
+
   public void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException
   {
     String botID = "";
@@ -28,10 +73,32 @@ public class VideoServlet extends HttpServlet
     {
       botID = req.getParameter("BOTID");
     }
-    
-    if (StateHolder.getInstance(botID).newVideoFrameAvilble())
+
+    int width = FrameScaler.snapWidth(getIntParameter(req, "SIZE"));
+    int quality = FrameScaler.snapQuality(getIntParameter(req, "QUALITY"));
+
+    StateHolder holder = StateHolder.getInstance(botID);
+    VideoFrame latest = holder.getLatestFrame();
+
+    if (req.getParameter("STREAM") != null)
+    {
+      Metrics.videoStreams.increment();
+      streamFrames(holder, width, quality, res);
+    }
+    else if (latest != null && latest.hasData())
     {
-      res.getOutputStream().write(StateHolder.getInstance(botID).getVideoFrame());
+      Metrics.videoGets.increment();
+      byte[] rendition = latest.getRendition(width, quality);
+      if (rendition != null)
+      {
+        res.setContentLength(rendition.length);
+        res.getOutputStream().write(rendition);
+      }
+      else
+      {
+        res.setContentLength(latest.getDataSize());
+        latest.writeDataTo(res.getOutputStream());
+      }
     }
     else
     {
@@ -39,20 +106,116 @@ public class VideoServlet extends HttpServlet
     }
   }
 
+  /**
+   * Serves video as multipart/x-mixed-replace, writing each frame as soon as the
+   * robot posts it. A viewer that is still writing the previous frame simply
+   * gets the newest one when it is done, so slow viewers drop frames rather
+   * than queueing them. The stream ends when the viewer disconnects or the
+   * robot stops posting for streamIdleTimeoutMs.
+   */
+  private void streamFrames(StateHolder holder, int width, int quality, HttpServletResponse res)
+      throws IOException
+  {
+    res.setContentType("multipart/x-mixed-replace; boundary=" + BOUNDARY);
+    res.setHeader("Cache-Control", "no-cache");
+    ServletOutputStream out = res.getOutputStream();
+
+    long lastSent = 0;
+    try
+    {
+      while (true)
+      {
+        VideoFrame latest = holder.awaitVideoFrame(lastSent, streamIdleTimeoutMs);
+        if (latest == null)
+        {
+          break;
+        }
+        lastSent = latest.sequence;
+        if (!latest.hasData())
+        {
+          continue;
+        }
+
+        byte[] rendition = latest.getRendition(width, quality);
+        out.print("--" + BOUNDARY + "\r\n");
+        out.print("Content-Type: image/jpeg\r\n");
+        if (rendition != null)
+        {
+          out.print("Content-Length: " + rendition.length + "\r\n\r\n");
+          out.write(rendition);
+        }
+        else
+        {
+          out.print("Content-Length: " + latest.getDataSize() + "\r\n\r\n");
+          latest.writeDataTo(out);
+        }
+        out.print("\r\n");
+        out.flush();
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch (IOException e)
+    {
+      // viewer went away, nothing to clean up
+    }
+  }
+
+  /**
+   * @return the named parameter as a number, or 0 if it is missing or not a
+   *         number
+   */
+  private static int getIntParameter(HttpServletRequest req, String name)
+  {
+    String value = req.getParameter(name);
+    if (value == null)
+    {
+      return 0;
+    }
+    try
+    {
+      return Integer.parseInt(value.trim());
+    }
+    catch (NumberFormatException e)
+    {
+      return 0;
+    }
+  }
+
   public void doPost(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException
   {
     // res.setContentType("text/html");
+    Metrics.videoPosts.increment();
+    if (req.getContentLength() > maxFrameBytes)
+    {
+      res.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+
     try
     {
-      CellbotProtos.AudioVideoFrame frame = CellbotProtos.AudioVideoFrame.parseFrom(req.getInputStream());
+      // parse straight off the request stream; the size limit also covers
+      // chunked uploads that do not declare a length.
+      CodedInputStream coded = CodedInputStream.newInstance(req.getInputStream());
+      coded.setSizeLimit(maxFrameBytes);
+      long start = System.nanoTime();
+      CellbotProtos.AudioVideoFrame frame = CellbotProtos.AudioVideoFrame.parseFrom(coded);
+      Metrics.frameParseNanos.record(System.nanoTime() - start);
+      Metrics.frameBytes.record(frame.getData().size());
       String botID = "";
       if(frame.hasBotID())
       {
         botID = frame.getBotID();
       }
-      
+
       StateHolder.getInstance(botID).setVideoFrame(frame);
     }
+    catch (InvalidProtocolBufferException e)
+    {
+      res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+    }
     catch (IOException e)
     {
       e.printStackTrace();
@@ -17,6 +17,7 @@ public class WiimoteServiceImpl extends RemoteServiceServlet implements WiimoteS
   {
     // TODO Auto-generated method stub
     System.out.println("Got Button Down : " + buttonid);
+    Metrics.wiimoteCalls.increment();
 
     KeyEvent.Builder key = KeyEvent.newBuilder();
 
@@ -30,6 +31,7 @@ public class WiimoteServiceImpl extends RemoteServiceServlet implements WiimoteS
   {
     // TODO Auto-generated method stub
     System.out.println("Got Button Up : " + buttonid);
+    Metrics.wiimoteCalls.increment();
 
     KeyEvent.Builder key = KeyEvent.newBuilder();
 
@@ -41,6 +43,7 @@ public class WiimoteServiceImpl extends RemoteServiceServlet implements WiimoteS
 
   public int handleTextCommand(String command, String botid)
   {
+    Metrics.wiimoteCalls.increment();
     return StateHolder.getInstance(botid).addKeyTxtCommand(command);
   }
   
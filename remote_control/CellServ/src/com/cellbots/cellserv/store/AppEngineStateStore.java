@@ -0,0 +1,174 @@
+package com.cellbots.cellserv.store;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceException;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.memcache.StrictErrorHandler;
+
+/**
+ * A {@link StateStore} on App Engine's memcache service, which every instance
+ * of an application shares. App Engine does not let an application open
+ * sockets, so there this takes the place of {@link MemcachedStateStore}.
+ *
+ * The memcache API of the SDK this project builds with (1.3.7) has no
+ * compare-and-set and hands out no versions. So each value is stored with an
+ * eight byte version in front of it, new on every write and never negative,
+ * and compareAndSet is done under a lock key: it adds the lock with
+ * ADD_ONLY_IF_NOT_PRESENT, reads the value again, writes only if the version
+ * is still the expected one, and deletes the lock. A caller that finds the
+ * lock taken gets false and retries as after any lost race. That is four
+ * calls to the service where memcached's CAS needs one.
+ *
+ * The guarantee is weaker than a real CAS. The lock is a cache entry like
+ * any other: if it expires after LOCK_MS while its holder is stalled, or the
+ * service evicts it, two writers can both pass the check and one update is
+ * lost. set and delete do not take the lock at all. For the state kept here
+ * that costs at most one merged sample or one queued key event, which the
+ * robot's next post or the viewer's next key makes good. Failures of the
+ * service are thrown as IOExceptions.
+ */
+public class AppEngineStateStore implements StateStore
+{
+  private static final int      VERSION_BYTES  = 8;
+
+  /** Longest a compareAndSet holds its lock, in case it dies holding it. */
+  private static final int      LOCK_MS        = 1000;
+
+  private static final String   LOCK_PREFIX    = "lock/";
+
+  private static final byte[]   LOCKED         = new byte[0];
+
+  private final MemcacheService service;
+
+  private final Expiration      expiration;
+
+  private final Expiration      lockExpiration = Expiration.byDeltaMillis(LOCK_MS);
+
+  // a random start keeps instances from reusing each other's versions
+  private final AtomicLong      versions       = new AtomicLong(new SecureRandom().nextLong());
+
+  /**
+   * @param ttlMs how long a value is kept after it was written, or 0 for as
+   *          long as the service has room
+   */
+  public AppEngineStateStore(long ttlMs)
+  {
+    this(MemcacheServiceFactory.getMemcacheService(), ttlMs);
+  }
+
+  AppEngineStateStore(MemcacheService service, long ttlMs)
+  {
+    this.service = service;
+    this.service.setErrorHandler(new StrictErrorHandler());
+    this.expiration = ttlMs > 0 ? Expiration.byDeltaMillis((int) Math.min(ttlMs, Integer.MAX_VALUE)) : null;
+  }
+
+  public Entry get(String key) throws IOException
+  {
+    try
+    {
+      return unwrap(service.get(key));
+    }
+    catch (MemcacheServiceException e)
+    {
+      throw new IOException("could not read " + key + ": " + e.getMessage());
+    }
+  }
+
+  public void set(String key, byte[] value) throws IOException
+  {
+    try
+    {
+      service.put(key, wrap(value), expiration);
+    }
+    catch (MemcacheServiceException e)
+    {
+      throw new IOException("could not write " + key + ": " + e.getMessage());
+    }
+  }
+
+  public boolean compareAndSet(String key, Entry expected, byte[] value) throws IOException
+  {
+    String lock = LOCK_PREFIX + key;
+    try
+    {
+      if (!service.put(lock, LOCKED, lockExpiration, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT))
+      {
+        return false;
+      }
+      try
+      {
+        Entry current = unwrap(service.get(key));
+        if (expected == null ? current != null : current == null || current.version != expected.version)
+        {
+          return false;
+        }
+        service.put(key, wrap(value), expiration);
+        return true;
+      }
+      finally
+      {
+        service.delete(lock);
+      }
+    }
+    catch (MemcacheServiceException e)
+    {
+      throw new IOException("could not write " + key + ": " + e.getMessage());
+    }
+  }
+
+  public void delete(String key) throws IOException
+  {
+    try
+    {
+      service.delete(key);
+    }
+    catch (MemcacheServiceException e)
+    {
+      throw new IOException("could not delete " + key + ": " + e.getMessage());
+    }
+  }
+
+  public void close()
+  {
+    // the service belongs to the application, not to us
+  }
+
+  private byte[] wrap(byte[] value)
+  {
+    long version = versions.incrementAndGet() & Long.MAX_VALUE;
+    byte[] stored = new byte[VERSION_BYTES + value.length];
+    for (int i = 0; i < VERSION_BYTES; i++)
+    {
+      stored[i] = (byte) (version >>> (56 - 8 * i));
+    }
+    System.arraycopy(value, 0, stored, VERSION_BYTES, value.length);
+    return stored;
+  }
+
+  /**
+   * @return the entry stored as value, or null if there is none or it was not
+   *         written by this class
+   */
+  private static Entry unwrap(Object value)
+  {
+    if (!(value instanceof byte[]) || ((byte[]) value).length < VERSION_BYTES)
+    {
+      return null;
+    }
+    byte[] stored = (byte[]) value;
+    long version = 0;
+    for (int i = 0; i < VERSION_BYTES; i++)
+    {
+      version = (version << 8) | (stored[i] & 0xff);
+    }
+    byte[] bytes = new byte[stored.length - VERSION_BYTES];
+    System.arraycopy(stored, VERSION_BYTES, bytes, 0, bytes.length);
+    return new Entry(bytes, version);
+  }
+}
@@ -0,0 +1,125 @@
+package com.cellbots.cellserv.store;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Spreads keys over several stores by consistent hashing, so adding or
+ * removing a store only moves the keys that hash next to it, about 1/n of
+ * them, instead of reshuffling every bot.
+ *
+ * Each store is placed on the ring at many points derived from its name, so
+ * the ring comes out the same on every server configured with the same names,
+ * whatever order they were listed in. Keys are routed by the part after the
+ * first '/', the bot ID, so all the keys of one bot land on the same store.
+ */
+public class ConsistentHashRouter implements StateStore
+{
+  /** Ring points per store, so each store gets close to its fair share. */
+  static final int                        POINTS_PER_STORE = 160;
+
+  private final TreeMap<Long, StateStore> ring             = new TreeMap<Long, StateStore>();
+
+  private final StateStore[]              stores;
+
+  private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>()
+  {
+    protected MessageDigest initialValue()
+    {
+      try
+      {
+        return MessageDigest.getInstance("MD5");
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+        throw new IllegalStateException(e);
+      }
+    }
+  };
+
+  /**
+   * @param stores the stores by a name that identifies them across servers,
+   *          such as host:port
+   */
+  public ConsistentHashRouter(Map<String, ? extends StateStore> stores)
+  {
+    if (stores.isEmpty())
+    {
+      throw new IllegalArgumentException("no stores to route to");
+    }
+    this.stores = stores.values().toArray(new StateStore[stores.size()]);
+    for (Map.Entry<String, ? extends StateStore> entry : stores.entrySet())
+    {
+      for (int i = 0; i < POINTS_PER_STORE; i++)
+      {
+        ring.put(hash(entry.getKey() + "#" + i), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * @return the store that holds key
+   */
+  public StateStore route(String key)
+  {
+    long h = hash(key.substring(key.indexOf('/') + 1));
+    Map.Entry<Long, StateStore> point = ring.ceilingEntry(h);
+    return (point != null ? point : ring.firstEntry()).getValue();
+  }
+
+  public Entry get(String key) throws IOException
+  {
+    return route(key).get(key);
+  }
+
+  public void set(String key, byte[] value) throws IOException
+  {
+    route(key).set(key, value);
+  }
+
+  public boolean compareAndSet(String key, Entry expected, byte[] value) throws IOException
+  {
+    return route(key).compareAndSet(key, expected, value);
+  }
+
+  public void delete(String key) throws IOException
+  {
+    route(key).delete(key);
+  }
+
+  public void close()
+  {
+    for (int i = 0; i < stores.length; i++)
+    {
+      stores[i].close();
+    }
+  }
+
+  /**
+   * @return the first eight bytes of the MD5 of s, which spread well even for
+   *         bot IDs that differ in one character
+   */
+  static long hash(String s)
+  {
+    MessageDigest digest = MD5.get();
+    byte[] d;
+    try
+    {
+      d = digest.digest(s.getBytes("UTF-8"));
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new IllegalStateException(e);
+    }
+    long h = 0;
+    for (int i = 0; i < 8; i++)
+    {
+      h = (h << 8) | (d[i] & 0xff);
+    }
+    return h;
+  }
+}
@@ -0,0 +1,144 @@
+package com.cellbots.cellserv.store;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link StateStore} in this JVM's heap. Only one server sees it, so it is
+ * for a single instance, for tests, and as the backing map of a stand-in
+ * store server.
+ *
+ * Values not written for ttlMs are forgotten. Expired values are dropped when
+ * read, and by a sweep every few thousand writes, so keys that are never read
+ * again do not pile up.
+ */
+public class InProcessStateStore implements StateStore
+{
+  private static final int                          SWEEP_EVERY = 4096;
+
+  private final ConcurrentMap<String, StoredValue> values      = new ConcurrentHashMap<String, StoredValue>();
+
+  private final AtomicLong                         versions    = new AtomicLong();
+
+  private final AtomicLong                         writes      = new AtomicLong();
+
+  private final long                               ttlMs;
+
+  /**
+   * @param ttlMs how long a value is kept after it was written, or 0 to keep
+   *          it until it is deleted
+   */
+  public InProcessStateStore(long ttlMs)
+  {
+    this.ttlMs = ttlMs;
+  }
+
+  public Entry get(String key)
+  {
+    StoredValue stored = values.get(key);
+    if (stored == null)
+    {
+      return null;
+    }
+    if (stored.expired(System.currentTimeMillis()))
+    {
+      values.remove(key, stored);
+      return null;
+    }
+    return stored.entry;
+  }
+
+  public void set(String key, byte[] value)
+  {
+    values.put(key, wrap(value));
+    wrote();
+  }
+
+  public boolean compareAndSet(String key, Entry expected, byte[] value)
+  {
+    boolean stored;
+    if (expected == null)
+    {
+      StoredValue current = values.get(key);
+      if (current != null && current.expired(System.currentTimeMillis()))
+      {
+        values.remove(key, current);
+      }
+      stored = values.putIfAbsent(key, wrap(value)) == null;
+    }
+    else
+    {
+      // versions are unique, so a matching version is the very value the
+      // caller read, whichever Entry object it holds
+      StoredValue current = values.get(key);
+      stored = current != null && current.entry.version == expected.version
+          && !current.expired(System.currentTimeMillis()) && values.replace(key, current, wrap(value));
+    }
+    if (stored)
+    {
+      wrote();
+    }
+    return stored;
+  }
+
+  public void delete(String key)
+  {
+    values.remove(key);
+  }
+
+  public void close()
+  {
+    values.clear();
+  }
+
+  /**
+   * @return the number of values held, including expired ones not yet
+   *         dropped
+   */
+  public int size()
+  {
+    return values.size();
+  }
+
+  private StoredValue wrap(byte[] value)
+  {
+    long expires = ttlMs > 0 ? System.currentTimeMillis() + ttlMs : Long.MAX_VALUE;
+    return new StoredValue(new Entry(value, versions.incrementAndGet()), expires);
+  }
+
+  private void wrote()
+  {
+    if (ttlMs > 0 && writes.incrementAndGet() % SWEEP_EVERY == 0)
+    {
+      long now = System.currentTimeMillis();
+      for (Iterator<Map.Entry<String, StoredValue>> it = values.entrySet().iterator(); it.hasNext();)
+      {
+        if (it.next().getValue().expired(now))
+        {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  private static final class StoredValue
+  {
+    final Entry entry;
+
+    final long  expires;
+
+    StoredValue(Entry entry, long expires)
+    {
+      this.entry = entry;
+      this.expires = expires;
+    }
+
+    boolean expired(long now)
+    {
+      return now >= expires;
+    }
+  }
+}
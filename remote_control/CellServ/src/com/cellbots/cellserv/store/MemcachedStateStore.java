@@ -0,0 +1,386 @@
+package com.cellbots.cellserv.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link StateStore} on one memcached server, spoken to in its text
+ * protocol, so any memcached or compatible store can hold the state that
+ * several CellServ instances share. Versions are memcached's CAS values.
+ *
+ * Up to poolSize connections are kept open and reused; a request waits for a
+ * free one rather than opening more. A connection that fails in any way is
+ * closed and replaced on the next request, and the failure is thrown as an
+ * IOException.
+ */
+public class MemcachedStateStore implements StateStore
+{
+  private static final byte[]      CRLF     = { '\r', '\n' };
+
+  private static final int         MAX_KEY  = 250;
+
+  private final InetSocketAddress  address;
+
+  private final int                expirySeconds;
+
+  private final int                timeoutMs;
+
+  // connections not in use; a null stands for one not opened yet
+  private final BlockingQueue<Conn> idle;
+
+  private volatile boolean         closed;
+
+  /**
+   * @param expirySeconds how long memcached keeps a value after it was
+   *          written, or 0 for as long as it has room
+   * @param poolSize most connections open at once
+   * @param timeoutMs longest wait to connect, for a reply, or for a free
+   *          connection
+   */
+  public MemcachedStateStore(InetSocketAddress address, int expirySeconds, int poolSize, int timeoutMs)
+  {
+    this.address = address;
+    this.expirySeconds = expirySeconds;
+    this.timeoutMs = timeoutMs;
+    this.idle = new ArrayBlockingQueue<Conn>(poolSize);
+    for (int i = 0; i < poolSize; i++)
+    {
+      idle.add(Conn.NONE);
+    }
+  }
+
+  public Entry get(String key) throws IOException
+  {
+    Conn conn = take();
+    try
+    {
+      conn.command("gets " + encodeKey(key));
+      Entry entry = null;
+      String line = conn.readLine();
+      if (line.startsWith("VALUE "))
+      {
+        // VALUE <key> <flags> <bytes> <cas unique>
+        String[] parts = line.split(" ");
+        if (parts.length < 5)
+        {
+          throw new IOException("bad reply: " + line);
+        }
+        byte[] value = conn.readBlock(Integer.parseInt(parts[3]));
+        entry = new Entry(value, Long.parseLong(parts[4]));
+        line = conn.readLine();
+      }
+      expect(line, "END");
+      release(conn);
+      return entry;
+    }
+    catch (NumberFormatException e)
+    {
+      fail(conn);
+      throw new IOException("bad reply from " + address + ": " + e.getMessage());
+    }
+    catch (IOException e)
+    {
+      fail(conn);
+      throw e;
+    }
+  }
+
+  public void set(String key, byte[] value) throws IOException
+  {
+    store("set", key, value, 0);
+  }
+
+  public boolean compareAndSet(String key, Entry expected, byte[] value) throws IOException
+  {
+    if (expected == null)
+    {
+      return store("add", key, value, 0);
+    }
+    return store("cas", key, value, expected.version);
+  }
+
+  public void delete(String key) throws IOException
+  {
+    Conn conn = take();
+    try
+    {
+      conn.command("delete " + encodeKey(key));
+      String line = conn.readLine();
+      if (!line.equals("DELETED") && !line.equals("NOT_FOUND"))
+      {
+        throw new IOException("delete failed: " + line);
+      }
+      release(conn);
+    }
+    catch (IOException e)
+    {
+      fail(conn);
+      throw e;
+    }
+  }
+
+  public void close()
+  {
+    closed = true;
+    Conn conn;
+    while ((conn = idle.poll()) != null)
+    {
+      conn.close();
+    }
+  }
+
+  public String toString()
+  {
+    return "memcached " + address;
+  }
+
+  /**
+   * @return true if memcached stored the value
+   */
+  private boolean store(String verb, String key, byte[] value, long casUnique) throws IOException
+  {
+    Conn conn = take();
+    try
+    {
+      StringBuilder command = new StringBuilder(verb).append(' ').append(encodeKey(key)).append(" 0 ")
+          .append(expirySeconds).append(' ').append(value.length);
+      if (verb.equals("cas"))
+      {
+        command.append(' ').append(casUnique);
+      }
+      conn.write(command.toString());
+      conn.out.write(CRLF);
+      conn.out.write(value);
+      conn.out.write(CRLF);
+      conn.out.flush();
+
+      String line = conn.readLine();
+      boolean stored = line.equals("STORED");
+      if (!stored && !line.equals("NOT_STORED") && !line.equals("EXISTS") && !line.equals("NOT_FOUND"))
+      {
+        throw new IOException(verb + " failed: " + line);
+      }
+      release(conn);
+      return stored;
+    }
+    catch (IOException e)
+    {
+      fail(conn);
+      throw e;
+    }
+  }
+
+  private Conn take() throws IOException
+  {
+    if (closed)
+    {
+      throw new IOException(this + " is closed");
+    }
+    Conn conn;
+    try
+    {
+      conn = idle.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted waiting for " + this);
+    }
+    if (conn == null)
+    {
+      throw new IOException("no free connection to " + address);
+    }
+    if (conn == Conn.NONE)
+    {
+      try
+      {
+        conn = Conn.open(address, timeoutMs);
+      }
+      catch (IOException e)
+      {
+        idle.add(Conn.NONE);
+        throw e;
+      }
+    }
+    return conn;
+  }
+
+  private void release(Conn conn)
+  {
+    if (closed)
+    {
+      conn.close();
+      return;
+    }
+    idle.add(conn);
+  }
+
+  private void fail(Conn conn)
+  {
+    conn.close();
+    release(Conn.NONE);
+  }
+
+  private void expect(String line, String wanted) throws IOException
+  {
+    if (!line.equals(wanted))
+    {
+      throw new IOException("expected " + wanted + " from " + address + ", got " + line);
+    }
+  }
+
+  /**
+   * memcached keys are at most 250 bytes with no spaces or control
+   * characters, so anything outside a safe set is %-escaped and long keys are
+   * shortened to a prefix and a hash.
+   */
+  static String encodeKey(String key)
+  {
+    StringBuilder sb = new StringBuilder(key.length());
+    for (int i = 0; i < key.length(); i++)
+    {
+      char c = key.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '/' || c == '-'
+          || c == '_' || c == '.')
+      {
+        sb.append(c);
+      }
+      else
+      {
+        sb.append(String.format(c < 0x100 ? "%%%02X" : "%%u%04X", (int) c));
+      }
+    }
+    if (sb.length() > MAX_KEY)
+    {
+      String hash = Long.toHexString(ConsistentHashRouter.hash(key));
+      sb.setLength(MAX_KEY - hash.length() - 1);
+      sb.append('#').append(hash);
+    }
+    return sb.toString();
+  }
+
+  private static final class Conn
+  {
+    // placeholder for a pool slot with no connection open
+    static final Conn          NONE = new Conn(null, null, null);
+
+    final Socket               socket;
+
+    final InputStream          in;
+
+    final OutputStream         out;
+
+    private final StringBuilder line = new StringBuilder();
+
+    private Conn(Socket socket, InputStream in, OutputStream out)
+    {
+      this.socket = socket;
+      this.in = in;
+      this.out = out;
+    }
+
+    static Conn open(InetSocketAddress address, int timeoutMs) throws IOException
+    {
+      if (address.isUnresolved())
+      {
+        // looked up for every new connection, so a moved server is found
+        address = new InetSocketAddress(address.getHostName(), address.getPort());
+      }
+      Socket socket = new Socket();
+      try
+      {
+        socket.connect(address, timeoutMs);
+        socket.setSoTimeout(timeoutMs);
+        socket.setTcpNoDelay(true);
+        return new Conn(socket, new BufferedInputStream(socket.getInputStream(), 8192), new BufferedOutputStream(
+            socket.getOutputStream(), 8192));
+      }
+      catch (IOException e)
+      {
+        socket.close();
+        throw e;
+      }
+    }
+
+    void write(String text) throws IOException
+    {
+      for (int i = 0; i < text.length(); i++)
+      {
+        out.write(text.charAt(i));
+      }
+    }
+
+    void command(String text) throws IOException
+    {
+      write(text);
+      out.write(CRLF);
+      out.flush();
+    }
+
+    String readLine() throws IOException
+    {
+      line.setLength(0);
+      for (;;)
+      {
+        int b = in.read();
+        if (b < 0)
+        {
+          throw new IOException("connection closed");
+        }
+        if (b == '\n')
+        {
+          int n = line.length();
+          if (n > 0 && line.charAt(n - 1) == '\r')
+          {
+            line.setLength(n - 1);
+          }
+          return line.toString();
+        }
+        line.append((char) b);
+      }
+    }
+
+    byte[] readBlock(int length) throws IOException
+    {
+      byte[] data = new byte[length];
+      for (int off = 0; off < length;)
+      {
+        int n = in.read(data, off, length - off);
+        if (n < 0)
+        {
+          throw new IOException("connection closed");
+        }
+        off += n;
+      }
+      if (in.read() != '\r' || in.read() != '\n')
+      {
+        throw new IOException("value not terminated");
+      }
+      return data;
+    }
+
+    void close()
+    {
+      if (socket == null)
+      {
+        return;
+      }
+      try
+      {
+        socket.close();
+      }
+      catch (IOException e)
+      {
+        // nothing left to do with it
+      }
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package com.cellbots.cellserv.store;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps what was recently read from a remote store for a short time, so the
+ * many viewers polling a bot's latest state cost one remote read per ttlMs
+ * rather than one each. Misses are cached too, since most lookups are for
+ * bots that are not sending video.
+ *
+ * Reads may be up to ttlMs stale. Writes go straight through and drop the
+ * cached value, and so does a failed compareAndSet, so a read-modify-write
+ * retry always starts from a fresh read. At most maxEntries keys are held,
+ * the least recently used going first.
+ */
+public class NearCachedStateStore implements StateStore
+{
+  private final StateStore                    store;
+
+  private final long                          ttlMs;
+
+  // guarded by itself
+  private final LinkedHashMap<String, Cached> cache;
+
+  public NearCachedStateStore(StateStore store, long ttlMs, final int maxEntries)
+  {
+    this.store = store;
+    this.ttlMs = ttlMs;
+    this.cache = new LinkedHashMap<String, Cached>(16, 0.75f, true)
+    {
+      private static final long serialVersionUID = -2785123094632447251L;
+
+      protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest)
+      {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  public Entry get(String key) throws IOException
+  {
+    long now = System.currentTimeMillis();
+    synchronized (cache)
+    {
+      Cached cached = cache.get(key);
+      if (cached != null && now - cached.fetched < ttlMs)
+      {
+        return cached.entry;
+      }
+    }
+    // not under the lock, so one slow read does not hold up the other keys
+    Entry entry = store.get(key);
+    synchronized (cache)
+    {
+      cache.put(key, new Cached(entry, now));
+    }
+    return entry;
+  }
+
+  public void set(String key, byte[] value) throws IOException
+  {
+    store.set(key, value);
+    invalidate(key);
+  }
+
+  public boolean compareAndSet(String key, Entry expected, byte[] value) throws IOException
+  {
+    boolean stored = store.compareAndSet(key, expected, value);
+    invalidate(key);
+    return stored;
+  }
+
+  public void delete(String key) throws IOException
+  {
+    store.delete(key);
+    invalidate(key);
+  }
+
+  public void close()
+  {
+    synchronized (cache)
+    {
+      cache.clear();
+    }
+    store.close();
+  }
+
+  /**
+   * Drops the cached value of key, so the next read goes to the store.
+   */
+  public void invalidate(String key)
+  {
+    synchronized (cache)
+    {
+      cache.remove(key);
+    }
+  }
+
+  public String toString()
+  {
+    return store + " cached " + ttlMs + "ms";
+  }
+
+  private static final class Cached
+  {
+    final Entry entry;
+
+    final long  fetched;
+
+    Cached(Entry entry, long fetched)
+    {
+      this.entry = entry;
+      this.fetched = fetched;
+    }
+  }
+}
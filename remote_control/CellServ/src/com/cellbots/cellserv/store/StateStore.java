@@ -0,0 +1,58 @@
+package com.cellbots.cellserv.store;
+
+import java.io.IOException;
+
+/**
+ * Somewhere to keep the latest state of each bot as opaque bytes by key, so
+ * that more than one server can see it.
+ *
+ * Values carry a version, which changes on every write, so a read-modify-write
+ * can be retried with {@link #compareAndSet} until nobody else wrote in
+ * between. Implementations must be safe for use by many threads at once. A
+ * store may forget a value at any time, such as when it runs out of room or
+ * the value expires; callers treat a miss the same as a bot that never
+ * posted.
+ */
+public interface StateStore
+{
+  /**
+   * @return the value and its version, or null if there is none
+   */
+  Entry get(String key) throws IOException;
+
+  /**
+   * Stores value whatever is there now.
+   */
+  void set(String key, byte[] value) throws IOException;
+
+  /**
+   * Stores value only if the key still holds the version of expected, or if
+   * expected is null, only if the key holds nothing.
+   *
+   * @return true if value was stored
+   */
+  boolean compareAndSet(String key, Entry expected, byte[] value) throws IOException;
+
+  void delete(String key) throws IOException;
+
+  /**
+   * Releases connections and the like. The store is not used afterwards.
+   */
+  void close();
+
+  /**
+   * A value read from a store, with the version it had at the time.
+   */
+  public static final class Entry
+  {
+    public final byte[] value;
+
+    public final long   version;
+
+    public Entry(byte[] value, long version)
+    {
+      this.value = value;
+      this.version = version;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package com.cellbots.cellserv.store;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds the store named by a configuration string:
+ *
+ * <pre>
+ * local                               this JVM only
+ * appengine                           App Engine's memcache, shared by every
+ *                                     instance of the application
+ * memcached:host:port[,host:port...]  shared; bots are spread over the servers
+ * </pre>
+ *
+ * Remote stores are wrapped in a {@link NearCachedStateStore}.
+ */
+public final class StateStores
+{
+  public static final int DEFAULT_MEMCACHED_PORT = 11211;
+
+  private static final int POOL_SIZE             = 8;
+
+  private static final int TIMEOUT_MS            = 1000;
+
+  private static final int NEAR_CACHE_ENTRIES    = 4096;
+
+  private StateStores()
+  {
+  }
+
+  /**
+   * @param spec the store to use, as above
+   * @param ttlMs how long values are kept after they were last written
+   * @param nearCacheMs how long remote reads are reused, or 0 not to cache
+   * @throws IllegalArgumentException if spec is not understood
+   */
+  public static StateStore create(String spec, long ttlMs, long nearCacheMs)
+  {
+    spec = spec.trim();
+    if (spec.equals("local"))
+    {
+      return new InProcessStateStore(ttlMs);
+    }
+    if (spec.equals("appengine"))
+    {
+      StateStore store = new AppEngineStateStore(ttlMs);
+      return nearCacheMs > 0 ? new NearCachedStateStore(store, nearCacheMs, NEAR_CACHE_ENTRIES) : store;
+    }
+    if (!spec.startsWith("memcached:"))
+    {
+      throw new IllegalArgumentException("unknown state store: " + spec);
+    }
+
+    int expirySeconds = (int) Math.min((ttlMs + 999) / 1000, Integer.MAX_VALUE);
+    Map<String, StateStore> servers = new LinkedHashMap<String, StateStore>();
+    String[] hosts = spec.substring("memcached:".length()).split(",");
+    for (int i = 0; i < hosts.length; i++)
+    {
+      String host = hosts[i].trim();
+      if (host.length() == 0)
+      {
+        continue;
+      }
+      int port = DEFAULT_MEMCACHED_PORT;
+      int colon = host.lastIndexOf(':');
+      if (colon >= 0)
+      {
+        try
+        {
+          port = Integer.parseInt(host.substring(colon + 1));
+        }
+        catch (NumberFormatException e)
+        {
+          throw new IllegalArgumentException("bad port in " + host);
+        }
+        host = host.substring(0, colon);
+      }
+      servers.put(host + ":" + port, new MemcachedStateStore(InetSocketAddress.createUnresolved(host, port),
+          expirySeconds, POOL_SIZE, TIMEOUT_MS));
+    }
+    if (servers.isEmpty())
+    {
+      throw new IllegalArgumentException("no servers in " + spec);
+    }
+
+    StateStore store = servers.size() == 1 ? servers.values().iterator().next() : new ConsistentHashRouter(servers);
+    return nearCacheMs > 0 ? new NearCachedStateStore(store, nearCacheMs, NEAR_CACHE_ENTRIES) : store;
+  }
+}
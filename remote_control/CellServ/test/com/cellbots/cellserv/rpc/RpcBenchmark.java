@@ -0,0 +1,109 @@
+package com.cellbots.cellserv.rpc;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cellbots.CellbotProtos.HALCommand;
+import com.cellbots.CellbotProtos.HALConnection;
+import com.cellbots.CellbotProtos.HALService;
+import com.cellbots.CellbotProtos.HALState;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+
+/**
+ * Calls per second over one loopback {@link SocketRpcChannel} connection, for
+ * a range of calls kept in flight. One in flight is the round-trip bound;
+ * more show what pipelining buys.
+ * Run with: java com.cellbots.cellserv.rpc.RpcBenchmark [calls] [maxInFlight]
+ */
+public class RpcBenchmark
+{
+  public static void main(String[] args) throws Exception
+  {
+    int calls = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int maxInFlight = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    RpcServer server = new RpcServer(executor);
+    server.addService(HALService.newReflectiveService(new Echo()));
+    server.start(0);
+    SocketRpcChannel channel = SocketRpcChannel.connect("127.0.0.1", server.getPort());
+    try
+    {
+      HALService hal = HALService.newStub(channel);
+      // warm up
+      run(hal, calls / 4, 64, false);
+      for (int inFlight = 1; inFlight <= maxInFlight; inFlight *= 4)
+      {
+        run(hal, inFlight == 1 ? Math.max(calls / 20, 1) : calls, inFlight, true);
+      }
+    }
+    finally
+    {
+      channel.close();
+      server.stop();
+      executor.shutdownNow();
+    }
+  }
+
+  private static void run(HALService hal, int calls, int inFlight, boolean report) throws InterruptedException
+  {
+    final Semaphore window = new Semaphore(inFlight);
+    final AtomicLong latencyNanos = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    HALCommand command = HALCommand.newBuilder().setTimestamp(1).setTxtCommand("f").build();
+
+    long start = System.nanoTime();
+    for (int i = 0; i < calls; i++)
+    {
+      window.acquire();
+      final long sent = System.nanoTime();
+      final SimpleRpcController controller = new SimpleRpcController();
+      hal.execute(controller, command, new RpcCallback<HALState>()
+      {
+        public void run(HALState state)
+        {
+          latencyNanos.addAndGet(System.nanoTime() - sent);
+          if (controller.failed())
+          {
+            failures.incrementAndGet();
+          }
+          window.release();
+        }
+      });
+    }
+    window.acquire(inFlight);
+    long elapsed = System.nanoTime() - start;
+    if (!report)
+    {
+      return;
+    }
+
+    System.out.println(String.format("in flight %4d: %9.0f calls/s, mean latency %7.1f us%s", inFlight, calls
+        * 1e9 / elapsed, latencyNanos.get() / 1e3 / calls, failures.get() == 0 ? "" : ", " + failures.get()
+        + " failed"));
+  }
+
+  private static final class Echo implements HALService.Interface
+  {
+    private final HALState state = HALState.newBuilder().setTimestamp(1).build();
+
+    public void connect(RpcController controller, HALConnection request, RpcCallback<HALConnection> done)
+    {
+      done.run(request);
+    }
+
+    public void execute(RpcController controller, HALCommand request, RpcCallback<HALState> done)
+    {
+      done.run(state);
+    }
+
+    public void getConnectionStatus(RpcController controller, HALConnection request,
+        RpcCallback<HALConnection> done)
+    {
+      done.run(request);
+    }
+  }
+}
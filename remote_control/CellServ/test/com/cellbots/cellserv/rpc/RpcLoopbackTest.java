@@ -0,0 +1,285 @@
+package com.cellbots.cellserv.rpc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cellbots.CellbotProtos.AudioVideoFrame;
+import com.cellbots.CellbotProtos.ControllerState;
+import com.cellbots.CellbotProtos.HALCommand;
+import com.cellbots.CellbotProtos.HALConnection;
+import com.cellbots.CellbotProtos.HALService;
+import com.cellbots.CellbotProtos.HALState;
+import com.cellbots.CellbotProtos.HIDService;
+import com.cellbots.CellbotProtos.MasterControlService;
+import com.cellbots.CellbotProtos.PhoneState;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+
+/**
+ * The generated CellbotProtos stubs talking to an {@link RpcServer} over a
+ * loopback socket.
+ */
+public class RpcLoopbackTest extends TestCase
+{
+  private ExecutorService  executor;
+
+  private RpcServer        server;
+
+  private SocketRpcChannel channel;
+
+  protected void setUp() throws Exception
+  {
+    executor = Executors.newFixedThreadPool(8);
+    server = new RpcServer(executor);
+    server.addService(HALService.newReflectiveService(new EchoHAL()));
+    server.addService(MasterControlService.newReflectiveBlockingService(new MasterControl()));
+    server.start(0);
+    channel = SocketRpcChannel.connect("127.0.0.1", server.getPort());
+  }
+
+  protected void tearDown() throws Exception
+  {
+    channel.close();
+    server.stop();
+    executor.shutdownNow();
+  }
+
+  /**
+   * Many calls in flight on one connection, answered out of order, each get
+   * their own response.
+   */
+  public void testPipelinedCallsMatchTheirResponses() throws Exception
+  {
+    final int calls = 2000;
+    final CountDownLatch done = new CountDownLatch(calls);
+    final AtomicInteger mismatched = new AtomicInteger();
+    HALService hal = HALService.newStub(channel);
+
+    for (int i = 0; i < calls; i++)
+    {
+      final long timestamp = i;
+      final SimpleRpcController controller = new SimpleRpcController();
+      hal.execute(controller, HALCommand.newBuilder().setTimestamp(timestamp).build(), new RpcCallback<HALState>()
+      {
+        public void run(HALState state)
+        {
+          if (controller.failed() || state.getTimestamp() != timestamp)
+          {
+            mismatched.incrementAndGet();
+          }
+          done.countDown();
+        }
+      });
+    }
+
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertEquals(0, mismatched.get());
+    assertEquals(0, channel.getPendingCount());
+  }
+
+  public void testServiceFailureReachesCaller() throws Exception
+  {
+    SimpleRpcController controller = new SimpleRpcController();
+    try
+    {
+      HALService.newBlockingStub(channel).connect(controller, HALConnection.newBuilder().setName("none").build());
+      fail();
+    }
+    catch (ServiceException e)
+    {
+      assertEquals("no robot named none", e.getMessage());
+      assertTrue(controller.failed());
+    }
+  }
+
+  public void testBlockingStub() throws Exception
+  {
+    ControllerState cs = ControllerState.newBuilder().setTimestamp(42).build();
+    PhoneState ps = MasterControlService.newBlockingStub(channel).processControllerEvent(new SimpleRpcController(),
+        cs);
+    assertEquals(42, ps.getTimestamp());
+  }
+
+  public void testUnknownServiceFails() throws Exception
+  {
+    SimpleRpcController controller = new SimpleRpcController();
+    try
+    {
+      HIDService.newBlockingStub(channel).displayPhoneState(controller,
+          PhoneState.newBuilder().setTimestamp(1).build());
+      fail();
+    }
+    catch (ServiceException e)
+    {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("unknown method"));
+    }
+  }
+
+  public void testPendingCallsFailWhenServerGoesAway() throws Exception
+  {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    final SimpleRpcController controller = new SimpleRpcController();
+    EchoHAL.hold = started;
+    HALService.newStub(channel).getConnectionStatus(controller, HALConnection.getDefaultInstance(),
+        new RpcCallback<HALConnection>()
+        {
+          public void run(HALConnection connection)
+          {
+            done.countDown();
+          }
+        });
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    server.stop();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertTrue(controller.failed());
+  }
+
+  public void testInterruptedBlockingCallIsForgotten() throws Exception
+  {
+    EchoHAL.hold = new CountDownLatch(1);
+    final SimpleRpcController controller = new SimpleRpcController();
+    Thread caller = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          HALService.newBlockingStub(channel).getConnectionStatus(controller, HALConnection.getDefaultInstance());
+        }
+        catch (ServiceException e)
+        {
+          // expected
+        }
+      }
+    };
+    caller.start();
+    assertTrue(EchoHAL.hold.await(10, TimeUnit.SECONDS));
+    caller.interrupt();
+    caller.join(10000);
+    assertFalse(caller.isAlive());
+    assertEquals(0, channel.getPendingCount());
+  }
+
+  /**
+   * Past its limit a connection is not read, so further calls wait on the
+   * client side instead of piling up in the executor.
+   */
+  public void testConnectionIsHeldAtItsCallLimit() throws Exception
+  {
+    final List<RpcCallback<HALState>> started = Collections.synchronizedList(new ArrayList<RpcCallback<HALState>>());
+    RpcServer limited = new RpcServer(executor, 2);
+    limited.addService(HALService.newReflectiveService(new EchoHAL()
+    {
+      public void execute(RpcController controller, HALCommand request, RpcCallback<HALState> done)
+      {
+        started.add(done);
+      }
+    }));
+    limited.start(0);
+    SocketRpcChannel limitedChannel = SocketRpcChannel.connect("127.0.0.1", limited.getPort());
+    try
+    {
+      final CountDownLatch done = new CountDownLatch(5);
+      for (int i = 0; i < 5; i++)
+      {
+        HALService.newStub(limitedChannel).execute(new SimpleRpcController(),
+            HALCommand.newBuilder().setTimestamp(i).build(), new RpcCallback<HALState>()
+            {
+              public void run(HALState state)
+              {
+                done.countDown();
+              }
+            });
+      }
+      Thread.sleep(200);
+      assertEquals(2, started.size());
+
+      HALState state = HALState.newBuilder().setTimestamp(1).build();
+      for (int answered = 0; answered < 5; answered++)
+      {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (started.size() <= answered && System.currentTimeMillis() < deadline)
+        {
+          Thread.sleep(5);
+        }
+        started.get(answered).run(state);
+      }
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+    finally
+    {
+      limitedChannel.close();
+      limited.stop();
+    }
+  }
+
+  /**
+   * Answers execute with the command's timestamp, sometimes from another
+   * thread, so responses overtake each other.
+   */
+  private static class EchoHAL implements HALService.Interface
+  {
+    static volatile CountDownLatch hold;
+
+    public void connect(RpcController controller, HALConnection request, RpcCallback<HALConnection> done)
+    {
+      controller.setFailed("no robot named " + request.getName());
+      done.run(null);
+    }
+
+    public void execute(RpcController controller, final HALCommand request, final RpcCallback<HALState> done)
+    {
+      final HALState state = HALState.newBuilder().setTimestamp(request.getTimestamp()).build();
+      if (request.getTimestamp() % 3 == 0)
+      {
+        new Thread()
+        {
+          public void run()
+          {
+            done.run(state);
+          }
+        }.start();
+      }
+      else
+      {
+        done.run(state);
+      }
+    }
+
+    public void getConnectionStatus(RpcController controller, HALConnection request,
+        RpcCallback<HALConnection> done)
+    {
+      // never answers; the test tears the server down instead
+      hold.countDown();
+    }
+  }
+
+  private static final class MasterControl implements MasterControlService.BlockingInterface
+  {
+    public PhoneState processControllerEvent(RpcController controller, ControllerState request)
+    {
+      return PhoneState.newBuilder().setTimestamp(request.getTimestamp()).build();
+    }
+
+    public AudioVideoFrame setVideoOptions(RpcController controller, AudioVideoFrame request)
+    {
+      return request;
+    }
+
+    public PhoneState processAVFrame(RpcController controller, AudioVideoFrame request)
+    {
+      return PhoneState.newBuilder().setTimestamp(request.getTimestamp()).build();
+    }
+  }
+}
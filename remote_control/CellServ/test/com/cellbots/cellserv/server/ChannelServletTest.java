@@ -0,0 +1,159 @@
+package com.cellbots.cellserv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import junit.framework.TestCase;
+
+import com.cellbots.CellbotProtos.AudioVideoFrame;
+import com.cellbots.CellbotProtos.ControllerState;
+import com.cellbots.CellbotProtos.PhoneState;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+/**
+ * Robot, controller and viewer talking over /channel.
+ */
+public class ChannelServletTest extends TestCase
+{
+  private LocalServletContainer container;
+
+  private String                botID;
+
+  protected void setUp() throws Exception
+  {
+    container = new LocalServletContainer(new File("war"), 0, 4);
+    container.deployWebXml();
+    container.start();
+    botID = "channel-" + System.nanoTime();
+  }
+
+  protected void tearDown() throws Exception
+  {
+    container.stop();
+  }
+
+  public void testRobotPostsStateAndFrameTogether() throws Exception
+  {
+    HttpURLConnection post = post("", encode(ChannelCodec.PHONE_STATE, phoneState(7), ChannelCodec.VIDEO_FRAME,
+        frame(1)));
+    assertEquals(HttpURLConnection.HTTP_NO_CONTENT, post.getResponseCode());
+
+    StateHolder holder = StateHolder.getInstance(botID);
+    assertEquals(7f, holder.getPhoneState().getLightLevel(), 0f);
+    assertEquals(1, holder.peekLatestFrame().frame.getFrameNumber());
+  }
+
+  public void testControllerInputReachesWaitingRobot() throws Exception
+  {
+    ControllerState cs = ControllerState.newBuilder().setTimestamp(1).addKeyEvent(
+        ControllerState.KeyEvent.newBuilder().setKeyCode("19").setKeyDown(true)).build();
+    assertEquals(HttpURLConnection.HTTP_NO_CONTENT, post("", encode(ChannelCodec.CONTROLLER_STATE, cs))
+        .getResponseCode());
+
+    HttpURLConnection robot = post("&WAIT=5000", encode(ChannelCodec.PHONE_STATE, phoneState(1)));
+    assertEquals(HttpURLConnection.HTTP_OK, robot.getResponseCode());
+    CodedInputStream in = CodedInputStream.newInstance(read(robot.getInputStream()));
+    assertEquals(ChannelCodec.CONTROLLER_STATE, ChannelCodec.typeOf(ChannelCodec.readTag(in)));
+    ControllerState.Builder received = ControllerState.newBuilder();
+    ChannelCodec.readMessage(in, received);
+    assertEquals("19", received.getKeyEvent(0).getKeyCode());
+    assertEquals(0, ChannelCodec.readTag(in));
+  }
+
+  public void testViewerStreamsUpdatesAsTheyArrive() throws Exception
+  {
+    post("", encode(ChannelCodec.PHONE_STATE, phoneState(1)));
+
+    HttpURLConnection viewer = open("/channel?BOTID=" + botID + "&STREAM=1");
+    CodedInputStream in = CodedInputStream.newInstance(viewer.getInputStream());
+    assertEquals(ChannelCodec.PHONE_STATE, ChannelCodec.typeOf(ChannelCodec.readTag(in)));
+    PhoneState.Builder first = PhoneState.newBuilder();
+    ChannelCodec.readMessage(in, first);
+    assertEquals(1f, first.getLightLevel(), 0f);
+
+    post("", encode(ChannelCodec.VIDEO_FRAME, frame(5)));
+    assertEquals(ChannelCodec.VIDEO_FRAME, ChannelCodec.typeOf(ChannelCodec.readTag(in)));
+    AudioVideoFrame.Builder frame = AudioVideoFrame.newBuilder();
+    ChannelCodec.readMessage(in, frame);
+    assertEquals(5, frame.getFrameNumber());
+    viewer.disconnect();
+  }
+
+  public void testIncompleteMessageIsRejected() throws Exception
+  {
+    PhoneState partial = PhoneState.newBuilder().setLightLevel(1).buildPartial();
+    assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, post("", encode(ChannelCodec.PHONE_STATE, partial))
+        .getResponseCode());
+  }
+
+  public void testUnknownTypesAreSkipped() throws Exception
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeString(15, "from a newer robot");
+    ChannelCodec.write(out, ChannelCodec.PHONE_STATE, phoneState(3));
+    out.flush();
+
+    assertEquals(HttpURLConnection.HTTP_NO_CONTENT, post("", bytes.toByteArray()).getResponseCode());
+    assertEquals(3f, StateHolder.getInstance(botID).getPhoneState().getLightLevel(), 0f);
+  }
+
+  private PhoneState phoneState(float lightLevel)
+  {
+    return PhoneState.newBuilder().setTimestamp(1).setLightLevel(lightLevel).build();
+  }
+
+  private AudioVideoFrame frame(int number)
+  {
+    return AudioVideoFrame.newBuilder().setTimestamp(1).setFrameNumber(number).build();
+  }
+
+  private static byte[] encode(Object... typesAndMessages) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    for (int i = 0; i < typesAndMessages.length; i += 2)
+    {
+      ChannelCodec.write(out, (Integer) typesAndMessages[i], (MessageLite) typesAndMessages[i + 1]);
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private HttpURLConnection post(String query, byte[] body) throws IOException
+  {
+    HttpURLConnection conn = open("/channel?BOTID=" + botID + query);
+    conn.setDoOutput(true);
+    conn.setRequestProperty("Content-Type", ChannelCodec.CONTENT_TYPE);
+    conn.getOutputStream().write(body);
+    conn.getOutputStream().close();
+    conn.getResponseCode();
+    return conn;
+  }
+
+  private HttpURLConnection open(String path) throws IOException
+  {
+    HttpURLConnection conn = (HttpURLConnection) new URL(container.getBaseUrl() + path).openConnection();
+    conn.setUseCaches(false);
+    conn.setReadTimeout(10000);
+    return conn;
+  }
+
+  private static byte[] read(InputStream in) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    for (int n; (n = in.read(buf)) > 0;)
+    {
+      bytes.write(buf, 0, n);
+    }
+    in.close();
+    return bytes.toByteArray();
+  }
+}
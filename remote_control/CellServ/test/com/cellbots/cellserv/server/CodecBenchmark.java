@@ -0,0 +1,198 @@
+package com.cellbots.cellserv.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import com.cellbots.SchemaCellbotProtos;
+import com.dyuproject.protostuff.IOUtil;
+import com.dyuproject.protostuff.JsonIOUtil;
+import com.dyuproject.protostuff.LinkedBuffer;
+import com.dyuproject.protostuff.Schema;
+import com.google.protobuf.Message;
+
+/**
+ * Encode/decode throughput and allocation of the CellbotProtos messages for
+ * each wire format CellServ could use: protobuf binary (the robot side),
+ * protostuff JSON with field names and with field numbers (the web side), and
+ * protostuff binary. Needs a HotSpot JVM for per-thread allocation counters.
+ * Run with: java com.cellbots.cellserv.server.CodecBenchmark [iterations]
+ */
+public class CodecBenchmark
+{
+  private interface Codec
+  {
+    String name();
+
+    byte[] encode(Message message) throws IOException;
+
+    Message decode(Message prototype, byte[] bytes) throws IOException;
+  }
+
+  private static final LinkedBuffer buffer = LinkedBuffer.allocate(4096);
+
+  private static final Codec        PROTOBUF = new Codec()
+                                             {
+                                               public String name()
+                                               {
+                                                 return "protobuf";
+                                               }
+
+                                               public byte[] encode(Message message)
+                                               {
+                                                 return message.toByteArray();
+                                               }
+
+                                               public Message decode(Message prototype, byte[] bytes)
+                                                   throws IOException
+                                               {
+                                                 return prototype.newBuilderForType().mergeFrom(bytes).build();
+                                               }
+                                             };
+
+  public static void main(String[] args) throws IOException
+  {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+    run(Fixtures.fullPhoneState(), SchemaCellbotProtos.PhoneState.WRITE, SchemaCellbotProtos.PhoneState.MERGE,
+        iterations);
+    run(Fixtures.controllerState(), SchemaCellbotProtos.ControllerState.WRITE,
+        SchemaCellbotProtos.ControllerState.MERGE, iterations);
+    run(Fixtures.halState(), SchemaCellbotProtos.HALState.WRITE, SchemaCellbotProtos.HALState.MERGE, iterations);
+    // frames are big; fewer rounds keep the run short
+    run(Fixtures.videoFrame(), SchemaCellbotProtos.AudioVideoFrame.WRITE, SchemaCellbotProtos.AudioVideoFrame.MERGE,
+        Math.max(iterations / 50, 1));
+  }
+
+  private static <M extends Message, B extends Message.Builder> void run(M message, Schema<M> write,
+      Schema<B> merge, int iterations) throws IOException
+  {
+    Codec[] codecs = { PROTOBUF, json(write, merge, false), json(write, merge, true), protostuff(write, merge) };
+    for (int c = 0; c < codecs.length; c++)
+    {
+      Codec codec = codecs[c];
+      byte[] bytes = codec.encode(message);
+      boolean decodes = true;
+      try
+      {
+        decodes = message.equals(codec.decode(message, bytes));
+      }
+      catch (IOException e)
+      {
+        decodes = false;
+      }
+      if (!decodes && codec == PROTOBUF)
+      {
+        throw new IllegalStateException("protobuf does not round trip " + name(message));
+      }
+      // the protostuff JSON reader in war/WEB-INF/lib cannot read back some
+      // of what its writer produces (nested messages by name, bytes fields).
+      // CellServ only ever writes JSON, so the encode side is still measured.
+
+      // warm up before measuring
+      for (int i = 0; i < iterations; i++)
+      {
+        bytes = codec.encode(message);
+        if (decodes)
+        {
+          codec.decode(message, bytes);
+        }
+      }
+
+      long allocated = allocated();
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++)
+      {
+        codec.encode(message);
+      }
+      long encodeNanos = System.nanoTime() - start;
+      long encodeBytes = allocated() - allocated;
+
+      String decode = "n/a";
+      if (decodes)
+      {
+        allocated = allocated();
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+          codec.decode(message, bytes);
+        }
+        long decodeNanos = System.nanoTime() - start;
+        long decodeBytes = allocated() - allocated;
+        decode = (decodeNanos / iterations) + " ns/op " + (decodeBytes / iterations) + " B/op";
+      }
+
+      System.out.println(name(message) + " " + codec.name() + ": size " + bytes.length + " B, encode "
+          + (encodeNanos / iterations) + " ns/op " + (encodeBytes / iterations) + " B/op, decode " + decode);
+    }
+  }
+
+  private static <M extends Message, B extends Message.Builder> Codec json(final Schema<M> write,
+      final Schema<B> merge, final boolean numeric)
+  {
+    return new Codec()
+    {
+      public String name()
+      {
+        return numeric ? "json-numeric" : "json";
+      }
+
+      @SuppressWarnings("unchecked")
+      public byte[] encode(Message message)
+      {
+        return JsonIOUtil.toByteArray((M) message, write, numeric);
+      }
+
+      @SuppressWarnings("unchecked")
+      public Message decode(Message prototype, byte[] bytes) throws IOException
+      {
+        B builder = (B) prototype.newBuilderForType();
+        JsonIOUtil.mergeFrom(bytes, builder, merge, numeric);
+        return builder.build();
+      }
+    };
+  }
+
+  private static <M extends Message, B extends Message.Builder> Codec protostuff(final Schema<M> write,
+      final Schema<B> merge)
+  {
+    return new Codec()
+    {
+      public String name()
+      {
+        return "protostuff";
+      }
+
+      @SuppressWarnings("unchecked")
+      public byte[] encode(Message message)
+      {
+        try
+        {
+          return IOUtil.toByteArray((M) message, write, buffer);
+        }
+        finally
+        {
+          buffer.clear();
+        }
+      }
+
+      @SuppressWarnings("unchecked")
+      public Message decode(Message prototype, byte[] bytes)
+      {
+        B builder = (B) prototype.newBuilderForType();
+        IOUtil.mergeFrom(bytes, builder, merge);
+        return builder.build();
+      }
+    };
+  }
+
+  private static String name(Message message)
+  {
+    return message.getDescriptorForType().getName();
+  }
+
+  private static long allocated()
+  {
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
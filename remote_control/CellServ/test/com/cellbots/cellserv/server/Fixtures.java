@@ -0,0 +1,87 @@
+package com.cellbots.cellserv.server;
+
+import java.util.Random;
+
+import com.cellbots.CellbotProtos;
+import com.cellbots.CellbotProtos.AudioVideoFrame;
+import com.cellbots.CellbotProtos.ControllerState;
+import com.cellbots.CellbotProtos.HALState;
+import com.cellbots.CellbotProtos.PhoneState;
+import com.google.protobuf.ByteString;
+
+/**
+ * Realistic messages for tests and benchmarks, shaped like what CellJoust and
+ * the web client actually send.
+ */
+final class Fixtures
+{
+  private Fixtures()
+  {
+  }
+
+  /** A state with every sub message set, as a long-running robot ends up with. */
+  static PhoneState fullPhoneState()
+  {
+    return PhoneState.newBuilder().setTimestamp(1287512345678L).setBotID("5F3A9C21").setDbgMsg("ok")
+        .setCompass(PhoneState.Compass.newBuilder().setX(-21.5f).setY(4.25f).setZ(-38.0f))
+        .setAccelerometer(PhoneState.Accelerometer.newBuilder().setX(0.12f).setY(9.78f).setZ(0.31f))
+        .setOrientation(PhoneState.Orientation.newBuilder().setAzimuth(271.4f).setPitch(-5.2f).setRoll(1.9f))
+        .setPhoneBatteryLevel(83).setPhoneBatteryTemp(312).setLightLevel(220.5f)
+        .setWifi(PhoneState.WIFI.newBuilder().setEnabled(true).setConnected(true).setStrength(-61).setKbps(54)
+            .setIp(0x0A00010F))
+        .setCellular(PhoneState.Cellular.newBuilder().setEnabled(true).setStrength(3))
+        .setLocation(PhoneState.Location.newBuilder().setLatitude(37.422006).setLongitude(-122.084095)
+            .setAccuracy(5).setProvider("gps").setTime(1287512345000L))
+        .setGpsEnabled(true)
+        .setHALConnection(CellbotProtos.HALConnection.newBuilder().setName("robot").setAddress("00:12:6F:01:02:03")
+            .setRssi(-40)).build();
+  }
+
+  /** Single-sensor updates, as SensorListenerImpl sends them. */
+  static PhoneState[] sensorUpdates()
+  {
+    return new PhoneState[] {
+        PhoneState.newBuilder().setTimestamp(2).setBotID("5F3A9C21")
+            .setAccelerometer(PhoneState.Accelerometer.newBuilder().setX(0.3f).setY(9.7f).setZ(0.1f)).build(),
+        PhoneState.newBuilder().setTimestamp(3).setBotID("5F3A9C21")
+            .setCompass(PhoneState.Compass.newBuilder().setX(4).setY(5).setZ(6)).build(),
+        PhoneState.newBuilder().setTimestamp(4).setBotID("5F3A9C21")
+            .setOrientation(PhoneState.Orientation.newBuilder().setAzimuth(91).setPitch(4).setRoll(2)).build() };
+  }
+
+  /** A burst of d-pad presses from the web client, with a text command. */
+  static ControllerState controllerState()
+  {
+    ControllerState.Builder cs = ControllerState.newBuilder().setTimestamp(1287512345678L).setBotID("5F3A9C21");
+    String[] codes = { "19", "21", "20", "22" };
+    for (int i = 0; i < codes.length; i++)
+    {
+      cs.addKeyEvent(ControllerState.KeyEvent.newBuilder().setKeyCode(codes[i]).setKeyDown(true));
+      cs.addKeyEvent(ControllerState.KeyEvent.newBuilder().setKeyCode(codes[i]).setKeyUp(true));
+    }
+    return cs.setTxtCommand("hu").build();
+  }
+
+  /** A 640x480 preview frame; JPEG data does not compress, so random bytes will do. */
+  static AudioVideoFrame videoFrame()
+  {
+    byte[] jpeg = new byte[30 * 1024];
+    new Random(1).nextBytes(jpeg);
+    return AudioVideoFrame.newBuilder().setTimestamp(1287512345678L).setFrameNumber(1234).setBotID("5F3A9C21")
+        .setWidthPx(640).setHeightPx(480).setCompressionLevel(30).setEncoding(AudioVideoFrame.Encoding.JPEG)
+        .setData(ByteString.copyFrom(jpeg)).build();
+  }
+
+  static HALState halState()
+  {
+    HALState.Builder hal = HALState.newBuilder().setTimestamp(1287512345678L).setBotID("5F3A9C21").setVBat(7400)
+        .setCurrentDraw(850).setPowerUsed(120).setBatteryTemp(31).setVCC(5000);
+    for (int i = 0; i < 8; i++)
+    {
+      hal.addSensorValue(HALState.SensorValue.newBuilder().setID("s" + i).setValue(100 * i).setPrevValue(100 * i - 3)
+          .setMinSenseableValue(0).setMaxSenseableValue(1023)
+          .setSensorUnits(HALState.SensorValue.SensorUnits.CENTIMETERS));
+    }
+    return hal.build();
+  }
+}
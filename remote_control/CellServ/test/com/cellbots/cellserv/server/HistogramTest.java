@@ -0,0 +1,54 @@
+package com.cellbots.cellserv.server;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link Histogram} and {@link StripedCounter}.
+ */
+public class HistogramTest extends TestCase
+{
+  public void testQuantilesFallInPowerOfTwoBuckets()
+  {
+    Histogram histogram = new Histogram();
+    for (int i = 1; i <= 100; i++)
+    {
+      histogram.record(i);
+    }
+    long[] snapshot = histogram.snapshot();
+
+    assertEquals(100, Histogram.count(snapshot));
+    assertEquals(5050, Histogram.sum(snapshot));
+    assertEquals(63, Histogram.quantile(snapshot, 0.5));
+    assertEquals(127, Histogram.quantile(snapshot, 0.99));
+    assertEquals(0, Histogram.quantile(new Histogram().snapshot(), 0.5));
+  }
+
+  public void testCountsFromManyThreadsAddUp() throws Exception
+  {
+    final StripedCounter counter = new StripedCounter();
+    final Histogram histogram = new Histogram();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++)
+    {
+      threads[t] = new Thread()
+      {
+        public void run()
+        {
+          for (int i = 0; i < 10000; i++)
+          {
+            counter.increment();
+            histogram.record(i);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (int t = 0; t < threads.length; t++)
+    {
+      threads[t].join();
+    }
+
+    assertEquals(80000, counter.get());
+    assertEquals(80000, Histogram.count(histogram.snapshot()));
+  }
+}
@@ -0,0 +1,77 @@
+package com.cellbots.cellserv.server;
+
+import junit.framework.TestCase;
+
+import com.cellbots.CellbotProtos.ControllerState;
+import com.cellbots.CellbotProtos.ControllerState.KeyEvent;
+
+/**
+ * Tests for {@link KeyEventQueue}.
+ */
+public class KeyEventQueueTest extends TestCase
+{
+  public void testRepeatedEventIsCoalesced()
+  {
+    KeyEventQueue queue = new KeyEventQueue();
+    queue.offer(down("38"));
+    queue.offer(down("38"));
+    queue.offer(down("40"));
+
+    ControllerState cs = queue.drain();
+    assertEquals(2, cs.getKeyEventCount());
+    assertEquals(1, queue.getCoalescedCount());
+  }
+
+  public void testSupersededPressIsCoalesced()
+  {
+    KeyEventQueue queue = new KeyEventQueue();
+    queue.offer(down("38"));
+    queue.offer(up("38"));
+    queue.offer(down("38"));
+    queue.offer(up("38"));
+
+    ControllerState cs = queue.drain();
+    assertEquals(2, cs.getKeyEventCount());
+    assertTrue(cs.getKeyEvent(0).getKeyDown());
+    assertTrue(cs.getKeyEvent(1).getKeyUp());
+  }
+
+  public void testStuckRobotKeepsNewestEventsOnly()
+  {
+    KeyEventQueue queue = new KeyEventQueue(4);
+    for (int i = 0; i < 10; i++)
+    {
+      queue.offer(down("" + i));
+    }
+
+    ControllerState cs = queue.drain();
+    assertEquals(4, cs.getKeyEventCount());
+    assertEquals("6", cs.getKeyEvent(0).getKeyCode());
+    assertEquals("9", cs.getKeyEvent(3).getKeyCode());
+    assertEquals(6, queue.getOverflowCount());
+  }
+
+  public void testDrainTakesKeysAndCommandTogether()
+  {
+    KeyEventQueue queue = new KeyEventQueue();
+    assertNull(queue.drain());
+    queue.setTxtCommand("hello");
+    queue.offer(down("38"));
+
+    ControllerState cs = queue.drain();
+    assertEquals("hello", cs.getTxtCommand());
+    assertEquals(1, cs.getKeyEventCount());
+    assertFalse(queue.hasPending());
+    assertNull(queue.drain());
+  }
+
+  private static KeyEvent down(String code)
+  {
+    return KeyEvent.newBuilder().setKeyCode(code).setKeyDown(true).build();
+  }
+
+  private static KeyEvent up(String code)
+  {
+    return KeyEvent.newBuilder().setKeyCode(code).setKeyUp(true).build();
+  }
+}
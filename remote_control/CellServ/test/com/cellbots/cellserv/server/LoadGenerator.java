@@ -0,0 +1,531 @@
+package com.cellbots.cellserv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.cellbots.CellbotProtos.AudioVideoFrame;
+import com.cellbots.CellbotProtos.ControllerState;
+import com.cellbots.CellbotProtos.PhoneState;
+import com.google.protobuf.ByteString;
+
+/**
+ * Finds out how many robots one CellServ instance can host. Boots the servlets
+ * from war/WEB-INF/web.xml in a {@link LocalServletContainer} (or targets a
+ * running server with url=), then runs, for the given number of seconds:
+ * <ul>
+ * <li>robots=N robots, each posting PhoneState to /robotState at stateHz and
+ * AudioVideoFrames to /video at fps</li>
+ * <li>viewers=M viewers, each polling /video and /robotState for one robot at
+ * viewerHz, with If-None-Match like the web client; viewerFormat=json, gzip
+ * or protobuf picks the /robotState encoding they ask for</li>
+ * <li>one controller sending WiimoteService key events over GWT-RPC at
+ * controlHz, round robin over the robots</li>
+ * </ul>
+ * and reports throughput and p50/p99/p999 latency per endpoint.
+ *
+ * Every client sends on a fixed schedule and measures latency from when the
+ * request was due, not from when it was sent, so a server that falls behind
+ * shows up as latency rather than as a quietly lower request rate.
+ *
+ * Run with: java com.cellbots.cellserv.server.LoadGenerator [name=value ...]
+ * from the CellServ directory.
+ */
+public class LoadGenerator
+{
+  private static final String         WIIMOTE_SERVICE = "com.cellbots.cellserv.client.WiimoteService";
+
+  private static final String[]       KEY_CODES       = { "19", "20", "21", "22" };
+
+  private final Map<String, String>   settings        = new LinkedHashMap<String, String>();
+
+  private final List<Client>          clients         = new ArrayList<Client>();
+
+  private String                      baseUrl;
+
+  private long                        warmupEnd;
+
+  private long                        end;
+
+  public static void main(String[] args) throws Exception
+  {
+    LoadGenerator load = new LoadGenerator();
+    load.settings.put("robots", "10");
+    load.settings.put("stateHz", "10");
+    load.settings.put("fps", "5");
+    load.settings.put("frameBytes", "30720");
+    load.settings.put("viewers", "10");
+    load.settings.put("viewerHz", "5");
+    load.settings.put("viewerFormat", "json");
+    load.settings.put("controlHz", "10");
+    load.settings.put("seconds", "30");
+    load.settings.put("warmupSeconds", "5");
+    load.settings.put("threads", "256");
+    load.settings.put("war", "war");
+    load.settings.put("url", "");
+    for (int i = 0; i < args.length; i++)
+    {
+      int eq = args[i].indexOf('=');
+      if (eq < 0 || !load.settings.containsKey(args[i].substring(0, eq)))
+      {
+        System.err.println("unknown setting " + args[i] + ", expected name=value with name one of "
+            + load.settings.keySet());
+        System.exit(2);
+      }
+      load.settings.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+    }
+    load.run(System.out);
+    System.exit(0);
+  }
+
+  private int intSetting(String name)
+  {
+    return Integer.parseInt(settings.get(name));
+  }
+
+  private double rateSetting(String name)
+  {
+    return Double.parseDouble(settings.get(name));
+  }
+
+  void run(PrintStream report) throws Exception
+  {
+    File war = new File(settings.get("war"));
+    LocalServletContainer container = null;
+    baseUrl = settings.get("url");
+    if (baseUrl.length() == 0)
+    {
+      container = new LocalServletContainer(war, 0, intSetting("threads"));
+      container.deployWebXml();
+      container.start();
+      baseUrl = container.getBaseUrl();
+    }
+
+    int robots = intSetting("robots");
+    for (int i = 0; i < robots; i++)
+    {
+      clients.add(new RobotStateClient(botID(i), rateSetting("stateHz")));
+      clients.add(new RobotVideoClient(botID(i), rateSetting("fps"), intSetting("frameBytes")));
+    }
+    int viewers = intSetting("viewers");
+    for (int i = 0; i < viewers && robots > 0; i++)
+    {
+      clients.add(new ViewerVideoClient(botID(i % robots), rateSetting("viewerHz")));
+      clients.add(new ViewerStateClient(botID(i % robots), rateSetting("viewerHz"), settings.get("viewerFormat")));
+    }
+    if (robots > 0 && rateSetting("controlHz") > 0)
+    {
+      clients.add(new ControllerClient(robots, rateSetting("controlHz"), policyStrongName(war)));
+    }
+
+    // WiimoteServiceImpl logs every button press to stdout
+    PrintStream stdout = System.out;
+    System.setOut(new PrintStream(new OutputStream()
+    {
+      public void write(int b)
+      {
+      }
+
+      public void write(byte[] b, int off, int len)
+      {
+      }
+    }));
+    try
+    {
+      long now = System.currentTimeMillis();
+      warmupEnd = now + 1000L * intSetting("warmupSeconds");
+      end = warmupEnd + 1000L * intSetting("seconds");
+      for (Client client : clients)
+      {
+        client.start();
+      }
+      for (Client client : clients)
+      {
+        client.join();
+      }
+    }
+    finally
+    {
+      System.setOut(stdout);
+      if (container != null)
+      {
+        container.stop();
+      }
+    }
+    report(report);
+  }
+
+  private void report(PrintStream out)
+  {
+    Map<String, List<Client>> byEndpoint = new LinkedHashMap<String, List<Client>>();
+    for (Client client : clients)
+    {
+      List<Client> group = byEndpoint.get(client.endpoint);
+      if (group == null)
+      {
+        group = new ArrayList<Client>();
+        byEndpoint.put(client.endpoint, group);
+      }
+      group.add(client);
+    }
+
+    double seconds = intSetting("seconds");
+    out.println("settings " + settings);
+    out.println(String.format("%-24s %9s %7s %9s %9s %9s %9s %9s", "endpoint", "requests", "errors", "req/s",
+        "p50 ms", "p99 ms", "p999 ms", "max ms"));
+    for (Map.Entry<String, List<Client>> entry : byEndpoint.entrySet())
+    {
+      int count = 0;
+      long errors = 0;
+      for (Client client : entry.getValue())
+      {
+        count += client.count;
+        errors += client.errors;
+      }
+      long[] all = new long[count];
+      int at = 0;
+      for (Client client : entry.getValue())
+      {
+        System.arraycopy(client.latencies, 0, all, at, client.count);
+        at += client.count;
+      }
+      Arrays.sort(all);
+      out.println(String.format("%-24s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f", entry.getKey(), count, errors,
+          count / seconds, millis(all, 0.5), millis(all, 0.99), millis(all, 0.999), millis(all, 1.0)));
+    }
+
+    long keyEvents = 0;
+    for (Client client : clients)
+    {
+      if (client instanceof RobotStateClient)
+      {
+        keyEvents += ((RobotStateClient) client).keyEventsReceived;
+      }
+    }
+    out.println("key events delivered to robots " + keyEvents);
+  }
+
+  private static double millis(long[] sorted, double quantile)
+  {
+    if (sorted.length == 0)
+    {
+      return 0;
+    }
+    int index = (int) Math.ceil(quantile * sorted.length) - 1;
+    return sorted[Math.max(index, 0)] / 1e6;
+  }
+
+  private static String botID(int i)
+  {
+    return "load" + i;
+  }
+
+  /**
+   * @return the strong name of the compiled WiimoteService serialization
+   *         policy in war/cellserv, so calls are checked against it as the
+   *         browser's are
+   */
+  private static String policyStrongName(File war) throws IOException
+  {
+    File[] files = new File(war, "cellserv").listFiles();
+    for (int i = 0; files != null && i < files.length; i++)
+    {
+      String name = files[i].getName();
+      if (name.endsWith(".gwt.rpc"))
+      {
+        return name.substring(0, name.length() - ".gwt.rpc".length());
+      }
+    }
+    throw new IOException("no GWT-RPC serialization policy in " + war + "/cellserv; compile the GWT module first");
+  }
+
+  /**
+   * One connection's worth of load: sends a request every period until the
+   * run ends and keeps its own latencies, so recording never contends.
+   */
+  private abstract class Client extends Thread
+  {
+    final String endpoint;
+
+    final long   periodNanos;
+
+    long[]       latencies = new long[1024];
+
+    int          count;
+
+    long         errors;
+
+    Client(String endpoint, double hz)
+    {
+      this.endpoint = endpoint;
+      this.periodNanos = (long) (1e9 / hz);
+      setDaemon(true);
+    }
+
+    // body of the last response, or null if it had none
+    byte[]       lastBody;
+
+    HttpURLConnection open(String path, String query) throws IOException
+    {
+      URL url = new URL(baseUrl + path + (query == null ? "" : "?" + query));
+      HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+      conn.setUseCaches(false);
+      conn.setConnectTimeout(10000);
+      conn.setReadTimeout(60000);
+      return conn;
+    }
+
+    /**
+     * Sends the request and reads the whole response into lastBody, so the JDK
+     * can reuse the connection for this client's next request.
+     *
+     * @return the HTTP status
+     */
+    int exchange(HttpURLConnection conn, byte[] body) throws IOException
+    {
+      if (body != null)
+      {
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setFixedLengthStreamingMode(body.length);
+        OutputStream out = conn.getOutputStream();
+        out.write(body);
+        out.close();
+      }
+      int status = conn.getResponseCode();
+      InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+      lastBody = null;
+      if (in != null)
+      {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        for (int n; (n = in.read(buf)) > 0;)
+        {
+          bytes.write(buf, 0, n);
+        }
+        in.close();
+        lastBody = bytes.size() == 0 ? null : bytes.toByteArray();
+      }
+      return status;
+    }
+
+    /**
+     * @return false if the server answered with an error
+     */
+    abstract boolean send() throws IOException;
+
+    public void run()
+    {
+      // spread the clients over the first period rather than all at once
+      long due = System.nanoTime() + (long) (Math.random() * periodNanos);
+      while (System.currentTimeMillis() < end)
+      {
+        long wait = due - System.nanoTime();
+        if (wait > 0)
+        {
+          try
+          {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+          }
+          catch (InterruptedException e)
+          {
+            return;
+          }
+        }
+
+        boolean ok;
+        try
+        {
+          ok = send();
+        }
+        catch (IOException e)
+        {
+          ok = false;
+        }
+        long latency = System.nanoTime() - due;
+        due += periodNanos;
+
+        if (System.currentTimeMillis() < warmupEnd)
+        {
+          continue;
+        }
+        if (!ok)
+        {
+          errors++;
+        }
+        if (count == latencies.length)
+        {
+          latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = latency;
+      }
+    }
+  }
+
+  private final class RobotStateClient extends Client
+  {
+    private final String       botID;
+
+    private final PhoneState[] updates;
+
+    private int                sent;
+
+    long                       keyEventsReceived;
+
+    RobotStateClient(String botID, double hz)
+    {
+      super("POST /robotState", hz);
+      this.botID = botID;
+      PhoneState[] sensors = Fixtures.sensorUpdates();
+      updates = new PhoneState[sensors.length + 1];
+      updates[0] = PhoneState.newBuilder(Fixtures.fullPhoneState()).setBotID(botID).build();
+      for (int i = 0; i < sensors.length; i++)
+      {
+        updates[i + 1] = PhoneState.newBuilder(sensors[i]).setBotID(botID).build();
+      }
+    }
+
+    boolean send() throws IOException
+    {
+      // a full state first, then single sensors like SensorListenerImpl
+      PhoneState update = updates[sent == 0 ? 0 : 1 + sent % (updates.length - 1)];
+      sent++;
+      HttpURLConnection conn = open("/robotState", null);
+      conn.setRequestProperty("Content-Type", "application/x-protobuf");
+      byte[] body = PhoneState.newBuilder(update).setTimestamp(System.currentTimeMillis()).build().toByteArray();
+      int status = exchange(conn, body);
+      if (status == HttpURLConnection.HTTP_OK && lastBody != null)
+      {
+        keyEventsReceived += ControllerState.parseFrom(lastBody).getKeyEventCount();
+      }
+      return status < 400;
+    }
+  }
+
+  private final class RobotVideoClient extends Client
+  {
+    private final AudioVideoFrame frame;
+
+    private int                   frameNumber;
+
+    RobotVideoClient(String botID, double fps, int frameBytes)
+    {
+      super("POST /video", fps);
+      byte[] jpeg = new byte[frameBytes];
+      new Random(botID.hashCode()).nextBytes(jpeg);
+      frame = AudioVideoFrame.newBuilder(Fixtures.videoFrame()).setBotID(botID).setData(ByteString.copyFrom(jpeg))
+          .build();
+    }
+
+    boolean send() throws IOException
+    {
+      byte[] body = AudioVideoFrame.newBuilder(frame).setFrameNumber(++frameNumber)
+          .setTimestamp(System.currentTimeMillis()).build().toByteArray();
+      HttpURLConnection conn = open("/video", null);
+      conn.setRequestProperty("Content-Type", "application/x-protobuf");
+      return exchange(conn, body) < 400;
+    }
+  }
+
+  private final class ViewerVideoClient extends Client
+  {
+    private final String botID;
+
+    ViewerVideoClient(String botID, double hz)
+    {
+      super("GET /video", hz);
+      this.botID = botID;
+    }
+
+    boolean send() throws IOException
+    {
+      return exchange(open("/video", "BOTID=" + botID), null) < 400;
+    }
+  }
+
+  private final class ViewerStateClient extends Client
+  {
+    private final String botID;
+
+    private final String format;
+
+    private String       etag;
+
+    ViewerStateClient(String botID, double hz, String format)
+    {
+      super("GET /robotState", hz);
+      this.botID = botID;
+      this.format = format;
+    }
+
+    boolean send() throws IOException
+    {
+      HttpURLConnection conn = open("/robotState", "BOTID=" + botID);
+      if (format.equals("protobuf"))
+      {
+        conn.setRequestProperty("Accept", RobotStateServlet.PROTOBUF_TYPE);
+      }
+      else if (format.equals("gzip"))
+      {
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+      }
+      if (etag != null)
+      {
+        conn.setRequestProperty("If-None-Match", etag);
+      }
+      int status = exchange(conn, null);
+      if (status == HttpURLConnection.HTTP_OK)
+      {
+        etag = conn.getHeaderField("ETag");
+      }
+      return status < 400;
+    }
+  }
+
+  private final class ControllerClient extends Client
+  {
+    private final int    robots;
+
+    private final String strongName;
+
+    private int          sent;
+
+    ControllerClient(int robots, double hz, String strongName)
+    {
+      super("POST /cellserv/wiimote", hz);
+      this.robots = robots;
+      this.strongName = strongName;
+    }
+
+    boolean send() throws IOException
+    {
+      // press then release, walking the d-pad and the robots
+      String method = sent % 2 == 0 ? "handleButtonDown" : "handleButtonUp";
+      String keyCode = KEY_CODES[(sent / 2) % KEY_CODES.length];
+      String botID = botID((sent / 2) % robots);
+      sent++;
+
+      String moduleBase = baseUrl + "/cellserv/";
+      String payload = "5|0|7|" + moduleBase + "|" + strongName + "|" + WIIMOTE_SERVICE + "|" + method
+          + "|I|java.lang.String/2004016611|" + botID + "|1|2|3|4|2|5|6|" + keyCode + "|7|";
+      HttpURLConnection conn = open("/cellserv/wiimote", null);
+      conn.setRequestProperty("Content-Type", "text/x-gwt-rpc; charset=utf-8");
+      conn.setRequestProperty("X-GWT-Module-Base", moduleBase);
+      conn.setRequestProperty("X-GWT-Permutation", strongName);
+      int status = exchange(conn, payload.getBytes("UTF-8"));
+      return status == HttpURLConnection.HTTP_OK && lastBody != null
+          && new String(lastBody, "UTF-8").startsWith("//OK");
+    }
+  }
+}
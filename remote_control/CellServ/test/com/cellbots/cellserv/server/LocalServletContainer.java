@@ -0,0 +1,1154 @@
+package com.cellbots.cellserv.server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Just enough of a servlet container to run CellServ's servlets over real
+ * sockets without the App Engine SDK: the servlets, mappings and init-params
+ * come from war/WEB-INF/web.xml, requests are served by the JDK's built-in
+ * HTTP server on a fixed-size thread pool, and static resources (such as the
+ * GWT serialization policy) are read from the war directory.
+ *
+ * Responses are buffered and sent with a Content-Length unless the servlet
+ * flushes, in which case the rest is sent chunked, so streaming responses
+ * such as video?STREAM=1 work as they would behind a flushing container.
+ * Sessions, cookies and request dispatching are not supported.
+ */
+final class LocalServletContainer
+{
+  private final HttpServer                server;
+
+  private final ExecutorService           executor;
+
+  private final Context                   context;
+
+  private final Map<String, HttpServlet>  servlets = new LinkedHashMap<String, HttpServlet>();
+
+  // url-pattern -> servlet name, in web.xml order
+  private final Map<String, String>       mappings = new LinkedHashMap<String, String>();
+
+  /**
+   * @param war the war directory, for web.xml and static resources
+   * @param port the port to listen on, or 0 for any free port
+   * @param threads the number of request threads
+   */
+  LocalServletContainer(File war, int port, int threads) throws IOException
+  {
+    // headers and body go out as separate writes; without this, Nagle and
+    // delayed ACKs add 40 ms to every small response
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    context = new Context(war);
+    executor = Executors.newFixedThreadPool(threads);
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+    server.setExecutor(executor);
+    server.createContext("/", new HttpHandler()
+    {
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        dispatch(exchange);
+      }
+    });
+  }
+
+  /**
+   * Instantiates and initializes every servlet declared in war/WEB-INF/web.xml.
+   */
+  void deployWebXml() throws Exception
+  {
+    DocumentBuilder parser = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    parser.setEntityResolver(new EntityResolver()
+    {
+      public InputSource resolveEntity(String publicId, String systemId)
+      {
+        // web.xml names the servlet 2.3 DTD; do not go to the network for it
+        return new InputSource(new StringReader(""));
+      }
+    });
+    Document doc = parser.parse(new File(context.war, "WEB-INF/web.xml"));
+
+    NodeList servletNodes = doc.getElementsByTagName("servlet");
+    for (int i = 0; i < servletNodes.getLength(); i++)
+    {
+      Element servlet = (Element) servletNodes.item(i);
+      Map<String, String> params = new LinkedHashMap<String, String>();
+      NodeList paramNodes = servlet.getElementsByTagName("init-param");
+      for (int p = 0; p < paramNodes.getLength(); p++)
+      {
+        Element param = (Element) paramNodes.item(p);
+        params.put(text(param, "param-name"), text(param, "param-value"));
+      }
+      String name = text(servlet, "servlet-name");
+      HttpServlet instance = (HttpServlet) Class.forName(text(servlet, "servlet-class")).newInstance();
+      addServlet(name, instance, params);
+    }
+
+    NodeList mappingNodes = doc.getElementsByTagName("servlet-mapping");
+    for (int i = 0; i < mappingNodes.getLength(); i++)
+    {
+      Element mapping = (Element) mappingNodes.item(i);
+      addMapping(text(mapping, "url-pattern"), text(mapping, "servlet-name"));
+    }
+  }
+
+  void addServlet(String name, HttpServlet servlet, Map<String, String> initParams) throws ServletException
+  {
+    servlet.init(new Config(name, initParams, context));
+    servlets.put(name, servlet);
+  }
+
+  /**
+   * @param pattern an exact path such as "/video", or a prefix such as "/robotState/*"
+   */
+  void addMapping(String pattern, String servletName)
+  {
+    mappings.put(pattern, servletName);
+  }
+
+  void start()
+  {
+    server.start();
+  }
+
+  void stop()
+  {
+    server.stop(0);
+    executor.shutdownNow();
+    for (HttpServlet servlet : servlets.values())
+    {
+      servlet.destroy();
+    }
+  }
+
+  int getPort()
+  {
+    return server.getAddress().getPort();
+  }
+
+  String getBaseUrl()
+  {
+    return "http://127.0.0.1:" + getPort();
+  }
+
+  private void dispatch(HttpExchange exchange) throws IOException
+  {
+    String path = exchange.getRequestURI().getPath();
+    String servletPath = null;
+    String pathInfo = null;
+    HttpServlet servlet = null;
+    for (Map.Entry<String, String> mapping : mappings.entrySet())
+    {
+      String pattern = mapping.getKey();
+      if (pattern.equals(path))
+      {
+        servletPath = path;
+      }
+      else if (pattern.endsWith("/*"))
+      {
+        String prefix = pattern.substring(0, pattern.length() - 2);
+        if (path.equals(prefix) || path.startsWith(prefix + "/"))
+        {
+          servletPath = prefix;
+          pathInfo = path.length() > prefix.length() ? path.substring(prefix.length()) : null;
+        }
+      }
+      if (servletPath != null)
+      {
+        servlet = servlets.get(mapping.getValue());
+        break;
+      }
+    }
+
+    Response res = new Response(exchange);
+    try
+    {
+      if (servlet == null)
+      {
+        res.sendError(HttpServletResponse.SC_NOT_FOUND);
+      }
+      else
+      {
+        servlet.service(new Request(exchange, context, servletPath, pathInfo), res);
+      }
+      res.finish();
+    }
+    catch (Throwable t)
+    {
+      if (!res.isCommitted())
+      {
+        t.printStackTrace();
+        res.reset();
+        res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, String.valueOf(t));
+        res.finish();
+      }
+    }
+    finally
+    {
+      exchange.close();
+    }
+  }
+
+  private static String text(Element parent, String tag)
+  {
+    NodeList nodes = parent.getElementsByTagName(tag);
+    return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent().trim();
+  }
+
+  private static Enumeration<String> enumeration(Set<String> names)
+  {
+    return Collections.enumeration(new ArrayList<String>(names));
+  }
+
+  private static final class Config implements ServletConfig
+  {
+    private final String              name;
+
+    private final Map<String, String> params;
+
+    private final Context             context;
+
+    Config(String name, Map<String, String> params, Context context)
+    {
+      this.name = name;
+      this.params = params;
+      this.context = context;
+    }
+
+    public String getServletName()
+    {
+      return name;
+    }
+
+    public ServletContext getServletContext()
+    {
+      return context;
+    }
+
+    public String getInitParameter(String n)
+    {
+      return params.get(n);
+    }
+
+    public Enumeration<String> getInitParameterNames()
+    {
+      return enumeration(params.keySet());
+    }
+  }
+
+  private static final class Context implements ServletContext
+  {
+    private final File                war;
+
+    private final Map<String, Object> attributes = Collections.synchronizedMap(new HashMap<String, Object>());
+
+    // a load test makes the same complaint thousands of times; say it once
+    private final Set<String>         logged     = Collections.synchronizedSet(new HashSet<String>());
+
+    Context(File war)
+    {
+      this.war = war;
+    }
+
+    public ServletContext getContext(String p)
+    {
+      return null;
+    }
+
+    public String getContextPath()
+    {
+      return "";
+    }
+
+    public int getMajorVersion()
+    {
+      return 2;
+    }
+
+    public int getMinorVersion()
+    {
+      return 5;
+    }
+
+    public String getMimeType(String f)
+    {
+      return null;
+    }
+
+    public Set<String> getResourcePaths(String p)
+    {
+      return null;
+    }
+
+    public URL getResource(String p) throws MalformedURLException
+    {
+      File f = new File(war, p);
+      return f.exists() ? f.toURI().toURL() : null;
+    }
+
+    public InputStream getResourceAsStream(String p)
+    {
+      try
+      {
+        return new FileInputStream(new File(war, p));
+      }
+      catch (IOException e)
+      {
+        return null;
+      }
+    }
+
+    public RequestDispatcher getRequestDispatcher(String p)
+    {
+      return null;
+    }
+
+    public RequestDispatcher getNamedDispatcher(String n)
+    {
+      return null;
+    }
+
+    public Servlet getServlet(String n)
+    {
+      return null;
+    }
+
+    public Enumeration<Servlet> getServlets()
+    {
+      return Collections.enumeration(Collections.<Servlet> emptyList());
+    }
+
+    public Enumeration<String> getServletNames()
+    {
+      return Collections.enumeration(Collections.<String> emptyList());
+    }
+
+    public void log(String m)
+    {
+      if (logged.add(m))
+      {
+        System.err.println(m);
+      }
+    }
+
+    public void log(Exception e, String m)
+    {
+      log(m, e);
+    }
+
+    public void log(String m, Throwable t)
+    {
+      if (logged.add(m))
+      {
+        System.err.println(m);
+        if (t != null)
+        {
+          t.printStackTrace();
+        }
+      }
+    }
+
+    public String getRealPath(String p)
+    {
+      return new File(war, p).getPath();
+    }
+
+    public String getServerInfo()
+    {
+      return "LocalServletContainer";
+    }
+
+    public String getInitParameter(String n)
+    {
+      return null;
+    }
+
+    public Enumeration<String> getInitParameterNames()
+    {
+      return Collections.enumeration(Collections.<String> emptyList());
+    }
+
+    public Object getAttribute(String n)
+    {
+      return attributes.get(n);
+    }
+
+    public Enumeration<String> getAttributeNames()
+    {
+      return enumeration(attributes.keySet());
+    }
+
+    public void setAttribute(String n, Object o)
+    {
+      attributes.put(n, o);
+    }
+
+    public void removeAttribute(String n)
+    {
+      attributes.remove(n);
+    }
+
+    public String getServletContextName()
+    {
+      return "cellserv";
+    }
+  }
+
+  private static final class Request implements HttpServletRequest
+  {
+    private final HttpExchange              exchange;
+
+    private final Context                   context;
+
+    private final String                    servletPath;
+
+    private final String                    pathInfo;
+
+    private final Map<String, Object>       attributes = new HashMap<String, Object>();
+
+    private Map<String, List<String>>       params;
+
+    private String                          encoding;
+
+    private ServletInputStream              in;
+
+    Request(HttpExchange exchange, Context context, String servletPath, String pathInfo)
+    {
+      this.exchange = exchange;
+      this.context = context;
+      this.servletPath = servletPath;
+      this.pathInfo = pathInfo;
+    }
+
+    private Map<String, List<String>> params()
+    {
+      if (params == null)
+      {
+        params = new LinkedHashMap<String, List<String>>();
+        parseQuery(exchange.getRequestURI().getRawQuery());
+        String type = getContentType();
+        if (in == null && "POST".equals(getMethod()) && type != null
+            && type.startsWith("application/x-www-form-urlencoded"))
+        {
+          try
+          {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            InputStream stream = exchange.getRequestBody();
+            byte[] buf = new byte[4096];
+            for (int n; (n = stream.read(buf)) > 0;)
+            {
+              body.write(buf, 0, n);
+            }
+            parseQuery(body.toString("ISO-8859-1"));
+          }
+          catch (IOException e)
+          {
+            // treat an unreadable form as empty, like most containers
+          }
+        }
+      }
+      return params;
+    }
+
+    private void parseQuery(String query)
+    {
+      if (query == null)
+      {
+        return;
+      }
+      String[] pairs = query.split("&");
+      for (int i = 0; i < pairs.length; i++)
+      {
+        if (pairs[i].length() == 0)
+        {
+          continue;
+        }
+        int eq = pairs[i].indexOf('=');
+        String name = decode(eq < 0 ? pairs[i] : pairs[i].substring(0, eq));
+        String value = eq < 0 ? "" : decode(pairs[i].substring(eq + 1));
+        List<String> values = params.get(name);
+        if (values == null)
+        {
+          values = new ArrayList<String>(1);
+          params.put(name, values);
+        }
+        values.add(value);
+      }
+    }
+
+    private static String decode(String s)
+    {
+      try
+      {
+        return URLDecoder.decode(s, "UTF-8");
+      }
+      catch (UnsupportedEncodingException e)
+      {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    public Object getAttribute(String n)
+    {
+      return attributes.get(n);
+    }
+
+    public Enumeration<String> getAttributeNames()
+    {
+      return enumeration(attributes.keySet());
+    }
+
+    public String getCharacterEncoding()
+    {
+      if (encoding == null)
+      {
+        String type = getContentType();
+        int charset = type == null ? -1 : type.toLowerCase().indexOf("charset=");
+        if (charset >= 0)
+        {
+          encoding = type.substring(charset + 8).trim();
+        }
+      }
+      return encoding;
+    }
+
+    public void setCharacterEncoding(String e)
+    {
+      encoding = e;
+    }
+
+    public int getContentLength()
+    {
+      String length = getHeader("Content-Length");
+      return length == null ? -1 : Integer.parseInt(length.trim());
+    }
+
+    public String getContentType()
+    {
+      return getHeader("Content-Type");
+    }
+
+    public ServletInputStream getInputStream()
+    {
+      if (in == null)
+      {
+        final InputStream body = exchange.getRequestBody();
+        in = new ServletInputStream()
+        {
+          public int read() throws IOException
+          {
+            return body.read();
+          }
+
+          public int read(byte[] b, int off, int len) throws IOException
+          {
+            return body.read(b, off, len);
+          }
+        };
+      }
+      return in;
+    }
+
+    public String getParameter(String n)
+    {
+      List<String> values = params().get(n);
+      return values == null ? null : values.get(0);
+    }
+
+    public Enumeration<String> getParameterNames()
+    {
+      return enumeration(params().keySet());
+    }
+
+    public String[] getParameterValues(String n)
+    {
+      List<String> values = params().get(n);
+      return values == null ? null : values.toArray(new String[values.size()]);
+    }
+
+    public Map<String, String[]> getParameterMap()
+    {
+      Map<String, String[]> map = new LinkedHashMap<String, String[]>();
+      for (String name : params().keySet())
+      {
+        map.put(name, getParameterValues(name));
+      }
+      return map;
+    }
+
+    public String getProtocol()
+    {
+      return exchange.getProtocol();
+    }
+
+    public String getScheme()
+    {
+      return "http";
+    }
+
+    public String getServerName()
+    {
+      return exchange.getLocalAddress().getHostName();
+    }
+
+    public int getServerPort()
+    {
+      return exchange.getLocalAddress().getPort();
+    }
+
+    public BufferedReader getReader() throws IOException
+    {
+      String charset = getCharacterEncoding();
+      return new BufferedReader(new InputStreamReader(getInputStream(), charset == null ? "ISO-8859-1" : charset));
+    }
+
+    public String getRemoteAddr()
+    {
+      return exchange.getRemoteAddress().getAddress().getHostAddress();
+    }
+
+    public String getRemoteHost()
+    {
+      return getRemoteAddr();
+    }
+
+    public void setAttribute(String n, Object o)
+    {
+      attributes.put(n, o);
+    }
+
+    public void removeAttribute(String n)
+    {
+      attributes.remove(n);
+    }
+
+    public Locale getLocale()
+    {
+      return Locale.getDefault();
+    }
+
+    public Enumeration<Locale> getLocales()
+    {
+      return Collections.enumeration(Collections.singletonList(Locale.getDefault()));
+    }
+
+    public boolean isSecure()
+    {
+      return false;
+    }
+
+    public RequestDispatcher getRequestDispatcher(String p)
+    {
+      return null;
+    }
+
+    public String getRealPath(String p)
+    {
+      return context.getRealPath(p);
+    }
+
+    public int getRemotePort()
+    {
+      return exchange.getRemoteAddress().getPort();
+    }
+
+    public String getLocalName()
+    {
+      return exchange.getLocalAddress().getHostName();
+    }
+
+    public String getLocalAddr()
+    {
+      return exchange.getLocalAddress().getAddress().getHostAddress();
+    }
+
+    public int getLocalPort()
+    {
+      return exchange.getLocalAddress().getPort();
+    }
+
+    public String getAuthType()
+    {
+      return null;
+    }
+
+    public Cookie[] getCookies()
+    {
+      return null;
+    }
+
+    public long getDateHeader(String n)
+    {
+      String value = getHeader(n);
+      if (value == null)
+      {
+        return -1;
+      }
+      try
+      {
+        return httpDateFormat().parse(value).getTime();
+      }
+      catch (ParseException e)
+      {
+        throw new IllegalArgumentException(n + ": " + value);
+      }
+    }
+
+    public String getHeader(String n)
+    {
+      return exchange.getRequestHeaders().getFirst(n);
+    }
+
+    public Enumeration<String> getHeaders(String n)
+    {
+      List<String> values = exchange.getRequestHeaders().get(n);
+      return Collections.enumeration(values == null ? Collections.<String> emptyList() : values);
+    }
+
+    public Enumeration<String> getHeaderNames()
+    {
+      return enumeration(exchange.getRequestHeaders().keySet());
+    }
+
+    public int getIntHeader(String n)
+    {
+      String value = getHeader(n);
+      return value == null ? -1 : Integer.parseInt(value.trim());
+    }
+
+    public String getMethod()
+    {
+      return exchange.getRequestMethod();
+    }
+
+    public String getPathInfo()
+    {
+      return pathInfo;
+    }
+
+    public String getPathTranslated()
+    {
+      return pathInfo == null ? null : context.getRealPath(pathInfo);
+    }
+
+    public String getContextPath()
+    {
+      return "";
+    }
+
+    public String getQueryString()
+    {
+      return exchange.getRequestURI().getRawQuery();
+    }
+
+    public String getRemoteUser()
+    {
+      return null;
+    }
+
+    public boolean isUserInRole(String r)
+    {
+      return false;
+    }
+
+    public Principal getUserPrincipal()
+    {
+      return null;
+    }
+
+    public String getRequestedSessionId()
+    {
+      return null;
+    }
+
+    public String getRequestURI()
+    {
+      return exchange.getRequestURI().getRawPath();
+    }
+
+    public StringBuffer getRequestURL()
+    {
+      return new StringBuffer("http://").append(getHeader("Host")).append(getRequestURI());
+    }
+
+    public String getServletPath()
+    {
+      return servletPath;
+    }
+
+    public HttpSession getSession(boolean c)
+    {
+      if (c)
+      {
+        throw new UnsupportedOperationException("sessions are not supported");
+      }
+      return null;
+    }
+
+    public HttpSession getSession()
+    {
+      return getSession(true);
+    }
+
+    public boolean isRequestedSessionIdValid()
+    {
+      return false;
+    }
+
+    public boolean isRequestedSessionIdFromCookie()
+    {
+      return false;
+    }
+
+    public boolean isRequestedSessionIdFromURL()
+    {
+      return false;
+    }
+
+    public boolean isRequestedSessionIdFromUrl()
+    {
+      return false;
+    }
+  }
+
+  private static final class Response implements HttpServletResponse
+  {
+    private final HttpExchange          exchange;
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    private final ServletOutputStream   out;
+
+    private int                         status = SC_OK;
+
+    private boolean                     committed;
+
+    private PrintWriter                 writer;
+
+    private String                      encoding;
+
+    Response(HttpExchange exchange)
+    {
+      this.exchange = exchange;
+      out = new ServletOutputStream()
+      {
+        public void write(int b) throws IOException
+        {
+          target().write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+          target().write(b, off, len);
+        }
+
+        public void flush() throws IOException
+        {
+          // not flushBuffer(): the writer flushes through here
+          commit();
+          exchange.getResponseBody().flush();
+        }
+      };
+    }
+
+    private OutputStream target()
+    {
+      return committed ? exchange.getResponseBody() : buffer;
+    }
+
+    /**
+     * Sends the status line and headers, chunked since the length of the rest
+     * is not known, followed by anything buffered so far.
+     */
+    private void commit() throws IOException
+    {
+      if (!committed)
+      {
+        committed = true;
+        exchange.sendResponseHeaders(status, 0);
+        buffer.writeTo(exchange.getResponseBody());
+        buffer.reset();
+      }
+    }
+
+    /**
+     * Completes the response once the servlet returns.
+     */
+    void finish() throws IOException
+    {
+      if (writer != null)
+      {
+        writer.flush();
+      }
+      if (committed)
+      {
+        exchange.getResponseBody().flush();
+        return;
+      }
+      committed = true;
+      int length = buffer.size();
+      boolean noBody = status == SC_NOT_MODIFIED || status == SC_NO_CONTENT || length == 0;
+      exchange.sendResponseHeaders(status, noBody ? -1 : length);
+      if (!noBody)
+      {
+        buffer.writeTo(exchange.getResponseBody());
+      }
+    }
+
+    public String getCharacterEncoding()
+    {
+      return encoding == null ? "ISO-8859-1" : encoding;
+    }
+
+    public String getContentType()
+    {
+      return exchange.getResponseHeaders().getFirst("Content-Type");
+    }
+
+    public ServletOutputStream getOutputStream()
+    {
+      return out;
+    }
+
+    public PrintWriter getWriter() throws IOException
+    {
+      if (writer == null)
+      {
+        writer = new PrintWriter(new OutputStreamWriter(out, getCharacterEncoding()));
+      }
+      return writer;
+    }
+
+    public void setCharacterEncoding(String e)
+    {
+      encoding = e;
+    }
+
+    public void setContentLength(int l)
+    {
+      // the length is worked out when the response is sent
+    }
+
+    public void setContentType(String t)
+    {
+      setHeader("Content-Type", t);
+      int charset = t.toLowerCase().indexOf("charset=");
+      if (charset >= 0)
+      {
+        encoding = t.substring(charset + 8).trim();
+      }
+    }
+
+    public void setBufferSize(int s)
+    {
+    }
+
+    public int getBufferSize()
+    {
+      return buffer.size();
+    }
+
+    public void flushBuffer() throws IOException
+    {
+      if (writer != null)
+      {
+        writer.flush();
+      }
+      out.flush();
+    }
+
+    public void resetBuffer()
+    {
+      if (committed)
+      {
+        throw new IllegalStateException("response already committed");
+      }
+      buffer.reset();
+    }
+
+    public boolean isCommitted()
+    {
+      return committed;
+    }
+
+    public void reset()
+    {
+      resetBuffer();
+      status = SC_OK;
+      writer = null;
+      exchange.getResponseHeaders().clear();
+    }
+
+    public void setLocale(Locale l)
+    {
+    }
+
+    public Locale getLocale()
+    {
+      return Locale.getDefault();
+    }
+
+    public void addCookie(Cookie c)
+    {
+      throw new UnsupportedOperationException("cookies are not supported");
+    }
+
+    public boolean containsHeader(String n)
+    {
+      return exchange.getResponseHeaders().containsKey(n);
+    }
+
+    public String encodeURL(String u)
+    {
+      return u;
+    }
+
+    public String encodeRedirectURL(String u)
+    {
+      return u;
+    }
+
+    public String encodeUrl(String u)
+    {
+      return u;
+    }
+
+    public String encodeRedirectUrl(String u)
+    {
+      return u;
+    }
+
+    public void sendError(int s, String m) throws IOException
+    {
+      resetBuffer();
+      status = s;
+      setContentType("text/plain");
+      if (m != null)
+      {
+        buffer.write(m.getBytes("UTF-8"));
+      }
+    }
+
+    public void sendError(int s) throws IOException
+    {
+      sendError(s, null);
+    }
+
+    public void sendRedirect(String l) throws IOException
+    {
+      resetBuffer();
+      status = 302;
+      setHeader("Location", l);
+    }
+
+    public void setDateHeader(String n, long d)
+    {
+      setHeader(n, httpDateFormat().format(new java.util.Date(d)));
+    }
+
+    public void addDateHeader(String n, long d)
+    {
+      addHeader(n, httpDateFormat().format(new java.util.Date(d)));
+    }
+
+    public void setHeader(String n, String v)
+    {
+      if (!committed)
+      {
+        exchange.getResponseHeaders().set(n, v);
+      }
+    }
+
+    public void addHeader(String n, String v)
+    {
+      if (!committed)
+      {
+        exchange.getResponseHeaders().add(n, v);
+      }
+    }
+
+    public void setIntHeader(String n, int v)
+    {
+      setHeader(n, String.valueOf(v));
+    }
+
+    public void addIntHeader(String n, int v)
+    {
+      addHeader(n, String.valueOf(v));
+    }
+
+    public void setStatus(int s)
+    {
+      if (!committed)
+      {
+        status = s;
+      }
+    }
+
+    public void setStatus(int s, String m)
+    {
+      setStatus(s);
+    }
+  }
+
+  private static SimpleDateFormat httpDateFormat()
+  {
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format;
+  }
+}
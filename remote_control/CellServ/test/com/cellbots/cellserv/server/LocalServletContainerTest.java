@@ -0,0 +1,233 @@
+package com.cellbots.cellserv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import com.cellbots.CellbotProtos.PhoneState;
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * Runs the deployed servlets end to end through {@link LocalServletContainer},
+ * as the load generator does.
+ */
+public class LocalServletContainerTest extends TestCase
+{
+  private LocalServletContainer container;
+
+  protected void setUp() throws Exception
+  {
+    container = new LocalServletContainer(new File("war"), 0, 4);
+    container.deployWebXml();
+    container.start();
+  }
+
+  protected void tearDown() throws Exception
+  {
+    container.stop();
+  }
+
+  public void testPostedStateIsServedWithETag() throws Exception
+  {
+    String botID = "container-" + System.nanoTime();
+    PhoneState state = PhoneState.newBuilder().setTimestamp(1).setBotID(botID).setLightLevel(42).build();
+
+    HttpURLConnection post = open("/robotState");
+    post.setDoOutput(true);
+    OutputStream out = post.getOutputStream();
+    out.write(state.toByteArray());
+    out.close();
+    // no key events are waiting for the robot
+    assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, post.getResponseCode());
+
+    HttpURLConnection get = open("/robotState?BOTID=" + botID);
+    assertEquals(HttpURLConnection.HTTP_OK, get.getResponseCode());
+    assertTrue(read(get.getInputStream()).contains("\"lightLevel\":42"));
+    String etag = get.getHeaderField("ETag");
+    assertNotNull(etag);
+
+    HttpURLConnection again = open("/robotState?BOTID=" + botID);
+    again.setRequestProperty("If-None-Match", etag);
+    assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, again.getResponseCode());
+  }
+
+  public void testProtobufIsServedWhenAccepted() throws Exception
+  {
+    PhoneState state = post("protobuf");
+
+    HttpURLConnection get = open("/robotState?BOTID=" + state.getBotID());
+    get.setRequestProperty("Accept", "application/json;q=0.5, application/x-protobuf");
+    assertEquals(HttpURLConnection.HTTP_OK, get.getResponseCode());
+    assertEquals(RobotStateServlet.PROTOBUF_TYPE, get.getContentType());
+    assertEquals(state, PhoneState.parseFrom(get.getInputStream()));
+
+    // the JSON entity tag must not validate the binary encoding
+    String etag = get.getHeaderField("ETag");
+    HttpURLConnection json = open("/robotState?BOTID=" + state.getBotID());
+    json.setRequestProperty("If-None-Match", etag);
+    assertEquals(HttpURLConnection.HTTP_OK, json.getResponseCode());
+    assertFalse(etag.equals(json.getHeaderField("ETag")));
+  }
+
+  public void testJsonIsGzippedWhenAccepted() throws Exception
+  {
+    PhoneState state = post("gzip");
+
+    HttpURLConnection get = open("/robotState?BOTID=" + state.getBotID());
+    get.setRequestProperty("Accept-Encoding", "gzip, deflate");
+    assertEquals(HttpURLConnection.HTTP_OK, get.getResponseCode());
+    assertEquals("gzip", get.getHeaderField("Content-Encoding"));
+    assertTrue(read(new GZIPInputStream(get.getInputStream())).contains("\"lightLevel\":42"));
+
+    HttpURLConnection refused = open("/robotState?BOTID=" + state.getBotID());
+    refused.setRequestProperty("Accept-Encoding", "gzip;q=0");
+    assertEquals(HttpURLConnection.HTTP_OK, refused.getResponseCode());
+    assertNull(refused.getHeaderField("Content-Encoding"));
+  }
+
+  public void testETagListsAndWeakTagsValidate() throws Exception
+  {
+    PhoneState state = post("validators");
+
+    HttpURLConnection get = open("/robotState?BOTID=" + state.getBotID());
+    get.setRequestProperty("Accept-Encoding", "gzip");
+    assertEquals(HttpURLConnection.HTTP_OK, get.getResponseCode());
+    String etag = get.getHeaderField("ETag");
+
+    HttpURLConnection again = open("/robotState?BOTID=" + state.getBotID());
+    again.setRequestProperty("Accept-Encoding", "gzip");
+    again.setRequestProperty("If-None-Match", "\"stale\", W/" + etag);
+    assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, again.getResponseCode());
+    assertEquals(etag, again.getHeaderField("ETag"));
+
+    assertTrue(RobotStateServlet.matches("*", etag));
+    assertFalse(RobotStateServlet.matches("\"stale\"", etag));
+    assertFalse(RobotStateServlet.matches(null, etag));
+  }
+
+  public void testHistoryStreamsRequestedFields() throws Exception
+  {
+    PhoneState state = post("history");
+
+    HttpURLConnection get = open("/robotState/history?BOTID=" + state.getBotID()
+        + "&since=-60000&fields=lightLevel,location.latitude");
+    assertEquals(HttpURLConnection.HTTP_OK, get.getResponseCode());
+    String body = read(get.getInputStream());
+    assertTrue(body, body.startsWith("{\"fields\":[\"time\",\"lightLevel\",\"location.latitude\"],\"rows\":[\n["));
+    assertTrue(body, body.endsWith(",42.0,37.422006]]}"));
+
+    assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, open(
+        "/robotState/history?BOTID=" + state.getBotID() + "&fields=nothing").getResponseCode());
+  }
+
+  public void testHistoryWritesNonFiniteValuesAsNull() throws Exception
+  {
+    String botID = "infinite-" + System.nanoTime();
+    HttpURLConnection post = open("/robotState");
+    post.setDoOutput(true);
+    post.getOutputStream().write(
+        PhoneState.newBuilder().setTimestamp(1).setBotID(botID).setLightLevel(Float.POSITIVE_INFINITY).build()
+            .toByteArray());
+    post.getOutputStream().close();
+    assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, post.getResponseCode());
+
+    HttpURLConnection get = open("/robotState/history?BOTID=" + botID + "&fields=lightLevel");
+    String body = read(get.getInputStream());
+    assertTrue(body, body.endsWith(",null]]}"));
+  }
+
+  public void testBatchIsAppliedInOrder() throws Exception
+  {
+    String botID = "batch-" + System.nanoTime();
+    ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    CodedOutputStream out = CodedOutputStream.newInstance(batch);
+    for (int i = 1; i <= 3; i++)
+    {
+      // PhoneStateBatch.state is field 1
+      out.writeMessage(1, PhoneState.newBuilder().setTimestamp(i).setBotID(botID).setLightLevel(i).build());
+    }
+    out.flush();
+
+    HttpURLConnection post = open("/robotState?BATCH=1");
+    post.setDoOutput(true);
+    post.getOutputStream().write(batch.toByteArray());
+    post.getOutputStream().close();
+    assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, post.getResponseCode());
+
+    HttpURLConnection get = open("/robotState?BOTID=" + botID);
+    get.setRequestProperty("Accept", RobotStateServlet.PROTOBUF_TYPE);
+    assertEquals(3f, PhoneState.parseFrom(get.getInputStream()).getLightLevel(), 0f);
+
+    HttpURLConnection bad = open("/robotState?BATCH=1");
+    bad.setDoOutput(true);
+    bad.getOutputStream().write(new byte[] { 10, 2, 16, 1 });
+    bad.getOutputStream().close();
+    assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, bad.getResponseCode());
+  }
+
+  public void testBatchMixingBotsIsRefused() throws Exception
+  {
+    String botID = "mixed-" + System.nanoTime();
+    ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    CodedOutputStream out = CodedOutputStream.newInstance(batch);
+    out.writeMessage(1, PhoneState.newBuilder().setTimestamp(1).setBotID(botID).setLightLevel(1).build());
+    out.writeMessage(1, PhoneState.newBuilder().setTimestamp(2).setBotID(botID + "-other").setLightLevel(2).build());
+    out.flush();
+
+    HttpURLConnection post = open("/robotState?BATCH=1");
+    post.setDoOutput(true);
+    post.getOutputStream().write(batch.toByteArray());
+    post.getOutputStream().close();
+    assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, post.getResponseCode());
+
+    // neither bot got any of it
+    HttpURLConnection get = open("/robotState?BOTID=" + botID + "-other");
+    get.setRequestProperty("Accept", RobotStateServlet.PROTOBUF_TYPE);
+    assertEquals("", read(get.getInputStream()));
+  }
+
+  public void testUnmappedPathIsNotFound() throws Exception
+  {
+    assertEquals(HttpURLConnection.HTTP_NOT_FOUND, open("/nothing").getResponseCode());
+  }
+
+  /** Posts a full state, whose JSON is worth compressing. */
+  private PhoneState post(String name) throws IOException
+  {
+    PhoneState state = Fixtures.fullPhoneState().toBuilder().setBotID(name + "-" + System.nanoTime())
+        .setLightLevel(42).build();
+    HttpURLConnection post = open("/robotState");
+    post.setDoOutput(true);
+    OutputStream out = post.getOutputStream();
+    out.write(state.toByteArray());
+    out.close();
+    assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, post.getResponseCode());
+    return state;
+  }
+
+  private HttpURLConnection open(String path) throws IOException
+  {
+    HttpURLConnection conn = (HttpURLConnection) new URL(container.getBaseUrl() + path).openConnection();
+    conn.setUseCaches(false);
+    return conn;
+  }
+
+  private static String read(InputStream in) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    for (int n; (n = in.read(buf)) > 0;)
+    {
+      bytes.write(buf, 0, n);
+    }
+    in.close();
+    return bytes.toString("UTF-8");
+  }
+}
@@ -0,0 +1,72 @@
+package com.cellbots.cellserv.server;
+
+import java.lang.management.ManagementFactory;
+
+import com.cellbots.CellbotProtos.PhoneState;
+
+/**
+ * Compares the bytes allocated per phone state update by the old full
+ * rebuild (newBuilder(old).mergeFrom(update).build()) and by
+ * {@link MergedPhoneState}. Needs a HotSpot JVM for per-thread allocation
+ * counters. Run with: java com.cellbots.cellserv.server.MergedPhoneStateBenchmark
+ */
+public class MergedPhoneStateBenchmark
+{
+  private static final int WARMUP  = 200000;
+
+  private static final int UPDATES = 1000000;
+
+  public static void main(String[] args)
+  {
+    PhoneState full = Fixtures.fullPhoneState();
+    PhoneState[] updates = Fixtures.sensorUpdates();
+
+    rebuild(full, updates, WARMUP);
+    merge(full, updates, WARMUP);
+
+    long before = allocated();
+    long start = System.nanoTime();
+    Object sink1 = rebuild(full, updates, UPDATES);
+    report("full rebuild", before, start);
+
+    before = allocated();
+    start = System.nanoTime();
+    Object sink2 = merge(full, updates, UPDATES);
+    report("incremental merge", before, start);
+
+    if (sink1 == sink2)
+      System.out.println();
+  }
+
+  private static PhoneState rebuild(PhoneState state, PhoneState[] updates, int n)
+  {
+    for (int i = 0; i < n; i++)
+    {
+      state = PhoneState.newBuilder(state).mergeFrom(updates[i % updates.length]).build();
+    }
+    return state;
+  }
+
+  private static MergedPhoneState merge(PhoneState state, PhoneState[] updates, int n)
+  {
+    MergedPhoneState merged = MergedPhoneState.of(state);
+    for (int i = 0; i < n; i++)
+    {
+      merged = merged.merge(updates[i % updates.length]);
+    }
+    return merged;
+  }
+
+  private static void report(String name, long allocatedBefore, long startNanos)
+  {
+    long nanos = System.nanoTime() - startNanos;
+    long bytes = allocated() - allocatedBefore;
+    System.out.println(name + ": " + (bytes / UPDATES) + " bytes/update, " + (nanos / UPDATES) + " ns/update");
+  }
+
+  private static long allocated()
+  {
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -0,0 +1,95 @@
+package com.cellbots.cellserv.server;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.cellbots.CellbotProtos;
+import com.cellbots.CellbotProtos.PhoneState;
+
+/**
+ * Checks that {@link MergedPhoneState} gives the same result as the protobuf
+ * merge it replaces.
+ */
+public class MergedPhoneStateTest extends TestCase
+{
+  public void testMatchesProtobufMerge() throws Exception
+  {
+    Random random = new Random(7);
+    PhoneState first = randomUpdate(random, 0);
+    PhoneState expected = first;
+    MergedPhoneState merged = MergedPhoneState.of(first);
+
+    for (int i = 1; i < 500; i++)
+    {
+      PhoneState update = randomUpdate(random, i);
+      expected = PhoneState.newBuilder(expected).mergeFrom(update).build();
+      merged = merged.merge(update);
+      if (i % 10 == 0)
+      {
+        assertEquals(expected, merged.toPhoneState());
+      }
+    }
+    assertEquals(expected, merged.toPhoneState());
+  }
+
+  public void testUntouchedSubMessagesAreShared() throws Exception
+  {
+    PhoneState.Compass compass = PhoneState.Compass.newBuilder().setX(1).setY(2).setZ(3).build();
+    MergedPhoneState merged = MergedPhoneState.of(PhoneState.newBuilder().setTimestamp(1).setCompass(compass).build());
+
+    merged = merged.merge(PhoneState.newBuilder().setTimestamp(2).setLightLevel(5).build());
+
+    assertSame(compass, merged.toPhoneState().getCompass());
+    assertSame(merged.toPhoneState(), merged.toPhoneState());
+  }
+
+  public void testPartialSubMessageIsMerged() throws Exception
+  {
+    MergedPhoneState merged = MergedPhoneState.of(PhoneState.newBuilder().setTimestamp(1)
+        .setOrientation(PhoneState.Orientation.newBuilder().setAzimuth(1).setPitch(2).setRoll(3)).build());
+
+    merged = merged.merge(PhoneState.newBuilder().setTimestamp(2)
+        .setOrientation(PhoneState.Orientation.newBuilder().setRoll(9)).build());
+
+    PhoneState.Orientation o = merged.toPhoneState().getOrientation();
+    assertEquals(1f, o.getAzimuth(), 0f);
+    assertEquals(2f, o.getPitch(), 0f);
+    assertEquals(9f, o.getRoll(), 0f);
+  }
+
+  private static PhoneState randomUpdate(Random random, long timestamp)
+  {
+    PhoneState.Builder b = PhoneState.newBuilder().setTimestamp(timestamp);
+    switch (random.nextInt(8))
+    {
+      case 0:
+        b.setCompass(PhoneState.Compass.newBuilder().setX(random.nextFloat()).setY(random.nextFloat())
+            .setZ(random.nextFloat()));
+        break;
+      case 1:
+        b.setAccelerometer(PhoneState.Accelerometer.newBuilder().setX(random.nextFloat()));
+        break;
+      case 2:
+        b.setOrientation(PhoneState.Orientation.newBuilder().setPitch(random.nextFloat()));
+        break;
+      case 3:
+        b.setPhoneBatteryLevel(random.nextFloat()).setPhoneBatteryTemp(random.nextInt(50));
+        break;
+      case 4:
+        b.setWifi(PhoneState.WIFI.newBuilder().setStrength(random.nextInt(100)));
+        break;
+      case 5:
+        b.setLocation(PhoneState.Location.newBuilder().setLatitude(random.nextDouble())
+            .setLongitude(random.nextDouble()).setSpeed(random.nextFloat()));
+        break;
+      case 6:
+        b.setHALConnection(CellbotProtos.HALConnection.newBuilder().setRssi(random.nextInt(100)));
+        break;
+      default:
+        b.setBotID("bot").setLightLevel(random.nextFloat()).setGpsEnabled(random.nextBoolean());
+        break;
+    }
+    return b.build();
+  }
+}
@@ -0,0 +1,143 @@
+package com.cellbots.cellserv.server;
+
+import junit.framework.TestCase;
+
+import com.cellbots.CellbotProtos.PhoneState;
+
+public class PhoneStateHistoryTest extends TestCase
+{
+  private static final int ACCEL_X  = PhoneStateHistory.fieldIndex("accelerometer.x");
+
+  private static final int LIGHT    = PhoneStateHistory.fieldIndex("lightLevel");
+
+  private static final int LATITUDE = PhoneStateHistory.fieldIndex("location.latitude");
+
+  public void testUpdatesInOneIntervalShareARow()
+  {
+    PhoneStateHistory history = new PhoneStateHistory(16, 100);
+    history.record(1000, accel(1.5f));
+    history.record(1050, light(7));
+    history.record(1100, accel(2.5f));
+
+    PhoneStateHistory.Chunk chunk = new PhoneStateHistory.Chunk(new int[] { ACCEL_X, LIGHT }, 16);
+    assertEquals(2, history.read(0, chunk));
+    assertEquals(2, chunk.size);
+    assertEquals(1000, chunk.times[0]);
+    assertEquals(1.5, chunk.values[0][0], 0);
+    assertEquals(7.0, chunk.values[1][0], 0);
+    assertEquals(2.5, chunk.values[0][1], 0);
+    // no light reading in the second interval
+    assertTrue(Double.isNaN(chunk.values[1][1]));
+  }
+
+  public void testOverwrittenRowsAreSkipped()
+  {
+    PhoneStateHistory history = new PhoneStateHistory(4, 10);
+    for (int i = 0; i < 10; i++)
+    {
+      history.record(i * 10, accel(i));
+    }
+
+    PhoneStateHistory.Chunk chunk = new PhoneStateHistory.Chunk(new int[] { ACCEL_X }, 3);
+    long next = history.read(0, chunk);
+    assertEquals(9, next);
+    assertEquals(3, chunk.size);
+    assertEquals(60, chunk.times[0]);
+    assertEquals(6.0, chunk.values[0][0], 0);
+
+    assertEquals(10, history.read(next, chunk));
+    assertEquals(1, chunk.size);
+    assertEquals(9.0, chunk.values[0][0], 0);
+
+    assertEquals(10, history.read(10, chunk));
+    assertEquals(0, chunk.size);
+  }
+
+  public void testFirstAfterFindsTheRange()
+  {
+    PhoneStateHistory history = new PhoneStateHistory(8, 10);
+    assertEquals(0, history.firstAfter(0));
+    for (int i = 0; i < 20; i++)
+    {
+      history.record(1000 + i * 10, accel(i));
+    }
+    // rows 12..19 are held, at times 1120..1190
+    assertEquals(12, history.firstAfter(Long.MIN_VALUE));
+    assertEquals(15, history.firstAfter(1140));
+    assertEquals(15, history.firstAfter(1145));
+    assertEquals(20, history.firstAfter(1190));
+  }
+
+  public void testTimeNeverGoesBackwards()
+  {
+    PhoneStateHistory history = new PhoneStateHistory(8, 10);
+    history.record(1000, accel(1));
+    history.record(500, accel(2));
+    history.record(1020, accel(3));
+
+    PhoneStateHistory.Chunk chunk = new PhoneStateHistory.Chunk(new int[] { ACCEL_X }, 8);
+    history.read(0, chunk);
+    assertEquals(2, chunk.size);
+    // the late reading joined the first row
+    assertEquals(2.0, chunk.values[0][0], 0);
+    assertEquals(1020, chunk.times[1]);
+  }
+
+  public void testLocationKeepsDoublePrecision()
+  {
+    PhoneStateHistory history = new PhoneStateHistory(4, 10);
+    history.record(0, PhoneState.newBuilder().setTimestamp(1)
+        .setLocation(PhoneState.Location.newBuilder().setLatitude(37.4220061).setLongitude(-122.0840951)).build());
+
+    PhoneStateHistory.Chunk chunk = new PhoneStateHistory.Chunk(new int[] { LATITUDE }, 4);
+    history.read(0, chunk);
+    assertEquals(37.4220061, chunk.values[0][0], 0);
+  }
+
+  public void testBlocksAreAllocatedAsRowsAreWritten()
+  {
+    PhoneStateHistory history = new PhoneStateHistory(PhoneStateHistory.BLOCK_ROWS + 10, 10);
+    assertEquals(0, history.getAllocatedBytes());
+    assertEquals(PhoneStateHistory.BLOCK_ROWS * PhoneStateHistory.ROW_BYTES, history.record(0, accel(0)));
+    for (int i = 1; i < PhoneStateHistory.BLOCK_ROWS; i++)
+    {
+      assertEquals(0, history.record(i * 10, accel(i)));
+    }
+    // the last block only holds what is left of the capacity
+    assertEquals(10 * PhoneStateHistory.ROW_BYTES, history.record(PhoneStateHistory.BLOCK_ROWS * 10, accel(1)));
+    assertEquals((PhoneStateHistory.BLOCK_ROWS + 10) * PhoneStateHistory.ROW_BYTES, history.getAllocatedBytes());
+  }
+
+  public void testClearDropsRowsAndMemory()
+  {
+    PhoneStateHistory history = new PhoneStateHistory(8, 10);
+    for (int i = 0; i < 5; i++)
+    {
+      history.record(i * 10, accel(i));
+    }
+    long allocated = history.getAllocatedBytes();
+    assertEquals(allocated, history.clear());
+    assertEquals(0, history.getAllocatedBytes());
+
+    PhoneStateHistory.Chunk chunk = new PhoneStateHistory.Chunk(new int[] { ACCEL_X }, 8);
+    assertEquals(5, history.read(0, chunk));
+    assertEquals(0, chunk.size);
+
+    history.record(100, accel(7));
+    assertEquals(5, history.firstAfter(Long.MIN_VALUE));
+    assertEquals(6, history.read(0, chunk));
+    assertEquals(1, chunk.size);
+    assertEquals(7.0, chunk.values[0][0], 0);
+  }
+
+  private static PhoneState accel(float x)
+  {
+    return PhoneState.newBuilder().setTimestamp(1).setAccelerometer(PhoneState.Accelerometer.newBuilder().setX(x))
+        .build();
+  }
+
+  private static PhoneState light(float level)
+  {
+    return PhoneState.newBuilder().setTimestamp(1).setLightLevel(level).build();
+  }
+}
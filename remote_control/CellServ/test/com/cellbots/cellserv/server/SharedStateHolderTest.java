@@ -0,0 +1,175 @@
+package com.cellbots.cellserv.server;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.cellbots.CellbotProtos.AudioVideoFrame;
+import com.cellbots.CellbotProtos.ControllerState;
+import com.cellbots.CellbotProtos.PhoneState;
+import com.cellbots.cellserv.store.LocalMemcachedServer;
+import com.cellbots.cellserv.store.MemcachedStateStore;
+import com.cellbots.cellserv.store.NearCachedStateStore;
+import com.cellbots.cellserv.store.StateStore;
+
+/**
+ * Two servers sharing bots through a {@link StateStore}. Each server is played
+ * by switching StateHolder to its own client of one stand-in memcached, which
+ * also forgets everything the previous server held locally.
+ */
+public class SharedStateHolderTest extends TestCase
+{
+  private LocalMemcachedServer memcached;
+
+  private StateStore           serverA;
+
+  private StateStore           serverB;
+
+  private ExecutorService      pool;
+
+  protected void setUp() throws Exception
+  {
+    memcached = new LocalMemcachedServer();
+    serverA = client(memcached);
+    serverB = new NearCachedStateStore(client(memcached), 20, 64);
+    pool = Executors.newSingleThreadExecutor();
+  }
+
+  protected void tearDown() throws Exception
+  {
+    StateHolder.useStore(null);
+    pool.shutdownNow();
+    serverA.close();
+    serverB.close();
+    memcached.stop();
+  }
+
+  public void testPhoneStateMergesAcrossServers() throws Exception
+  {
+    StateHolder.useStore(serverA);
+    StateHolder.getInstance("shared").setPhoneState(PhoneState.newBuilder().setTimestamp(1)
+        .setCompass(PhoneState.Compass.newBuilder().setX(1).setY(2).setZ(3)).build());
+
+    StateHolder.useStore(serverB);
+    StateHolder holder = StateHolder.getInstance("shared");
+    holder.setPhoneState(PhoneState.newBuilder().setTimestamp(2).setLightLevel(42).build());
+    PhoneState merged = holder.getPhoneState();
+    assertEquals(1f, merged.getCompass().getX());
+    assertEquals(42f, merged.getLightLevel());
+
+    StateHolder.useStore(serverA);
+    assertEquals(merged, StateHolder.getInstance("shared").getPhoneState());
+  }
+
+  public void testOwnWritesDoNotBumpTheVersionTwice() throws Exception
+  {
+    StateHolder.useStore(serverB);
+    StateHolder holder = StateHolder.getInstance("versions");
+    holder.setPhoneState(Fixtures.fullPhoneState());
+    long version = holder.getPhoneStateSnapshot().version;
+    Thread.sleep(30);
+    assertEquals(version, holder.getPhoneStateSnapshot().version);
+  }
+
+  public void testInputReachesTheRobotOnAnotherServer() throws Exception
+  {
+    StateHolder.useStore(serverA);
+    StateHolder controller = StateHolder.getInstance("input");
+    controller.addKeyEvent(ControllerState.KeyEvent.newBuilder().setKeyCode("w").setKeyDown(true));
+    assertEquals(2, controller.addKeyEvent(ControllerState.KeyEvent.newBuilder().setKeyCode("w").setKeyUp(true)));
+    controller.addKeyTxtCommand("stop");
+
+    StateHolder.useStore(serverB);
+    StateHolder robot = StateHolder.getInstance("input");
+    assertTrue(robot.newControllerStateAvailble());
+    ControllerState cs = robot.getControllerState();
+    assertEquals(2, cs.getKeyEventCount());
+    assertTrue(cs.getKeyEvent(0).getKeyDown());
+    assertEquals("stop", cs.getTxtCommand());
+    // taken exactly once
+    assertNull(robot.getControllerState());
+    StateHolder.useStore(serverA);
+    assertNull(StateHolder.getInstance("input").getControllerState());
+  }
+
+  public void testWaitingViewerSeesFramePostedElsewhere() throws Exception
+  {
+    StateHolder.useStore(serverB);
+    final StateHolder viewer = StateHolder.getInstance("video");
+    Future<VideoFrame> waiting = pool.submit(new Callable<VideoFrame>()
+    {
+      public VideoFrame call() throws Exception
+      {
+        return viewer.awaitVideoFrame(0, 5000);
+      }
+    });
+
+    // another server posts the frame straight to the store
+    Thread.sleep(50);
+    AudioVideoFrame frame = Fixtures.videoFrame();
+    serverA.set("frame/video", frame.toByteArray());
+
+    VideoFrame seen = waiting.get(2, TimeUnit.SECONDS);
+    assertNotNull(seen);
+    assertEquals(frame.getData(), seen.frame.getData());
+  }
+
+  public void testServersAgreeOnTheETag() throws Exception
+  {
+    StateHolder.useStore(serverA);
+    StateHolder.getInstance("tagged").setPhoneState(PhoneState.newBuilder().setTimestamp(1).setLightLevel(1).build());
+    String etag = StateHolder.getInstance("tagged").getPhoneStateSnapshot().getETag();
+
+    StateHolder.useStore(serverB);
+    StateHolder holder = StateHolder.getInstance("tagged");
+    assertEquals(etag, holder.getPhoneStateSnapshot().getETag());
+    holder.setPhoneState(PhoneState.newBuilder().setTimestamp(2).setLightLevel(2).build());
+    String next = holder.getPhoneStateSnapshot().getETag();
+    assertFalse(etag.equals(next));
+
+    StateHolder.useStore(serverA);
+    assertEquals(next, StateHolder.getInstance("tagged").getPhoneStateSnapshot().getETag());
+  }
+
+  public void testIdlePollsReadOnlyTheMarks() throws Exception
+  {
+    StateHolder.useStore(serverA);
+    StateHolder holder = StateHolder.getInstance("idle");
+    holder.setPhoneState(PhoneState.newBuilder().setTimestamp(1).setLightLevel(1).build());
+    holder.addKeyTxtCommand("go");
+    assertEquals(1f, holder.getPhoneState().getLightLevel());
+    assertEquals("go", holder.getControllerState().getTxtCommand());
+
+    int start = memcached.getCommandCount();
+    for (int i = 0; i < 5; i++)
+    {
+      assertEquals(1f, holder.getPhoneState().getLightLevel());
+      assertNull(holder.getControllerState());
+    }
+    assertEquals(10, memcached.getCommandCount() - start);
+
+    holder.addKeyTxtCommand("stop");
+    assertEquals("stop", holder.getControllerState().getTxtCommand());
+  }
+
+  public void testUnreachableStoreFallsBackToThisServer() throws Exception
+  {
+    memcached.stop();
+    StateHolder.useStore(serverA);
+    StateHolder holder = StateHolder.getInstance("offline");
+    holder.setPhoneState(PhoneState.newBuilder().setTimestamp(1).setLightLevel(7).build());
+    assertEquals(7f, holder.getPhoneState().getLightLevel());
+    holder.addKeyTxtCommand("go");
+    assertEquals("go", holder.getControllerState().getTxtCommand());
+  }
+
+  private static StateStore client(LocalMemcachedServer server)
+  {
+    return new MemcachedStateStore(new InetSocketAddress("127.0.0.1", server.getPort()), 60, 4, 1000);
+  }
+}
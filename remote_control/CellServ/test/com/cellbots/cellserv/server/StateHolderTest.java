@@ -0,0 +1,337 @@
+package com.cellbots.cellserv.server;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cellbots.CellbotProtos;
+import com.cellbots.CellbotProtos.ControllerState;
+import com.cellbots.CellbotProtos.PhoneState;
+
+/**
+ * Stress tests for the concurrent bot registry in {@link StateHolder}.
+ */
+public class StateHolderTest extends TestCase
+{
+  private static final int THREADS    = 8;
+
+  private static final int ITERATIONS = 2000;
+
+  private ExecutorService  pool;
+
+  protected void setUp() throws Exception
+  {
+    pool = Executors.newFixedThreadPool(THREADS);
+  }
+
+  protected void tearDown() throws Exception
+  {
+    pool.shutdownNow();
+  }
+
+  /**
+   * Every thread racing to create the same bot must see the same holder.
+   */
+  public void testGetInstanceReturnsSingleHolderPerBot() throws Exception
+  {
+    final int bots = 200;
+    final StateHolder[][] seen = new StateHolder[THREADS][bots];
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(THREADS);
+
+    for (int t = 0; t < THREADS; t++)
+    {
+      final int thread = t;
+      pool.execute(new Runnable()
+      {
+        public void run()
+        {
+          awaitQuietly(start);
+          for (int b = 0; b < bots; b++)
+          {
+            seen[thread][b] = StateHolder.getInstance("registry-" + b);
+          }
+          done.countDown();
+        }
+      });
+    }
+    start.countDown();
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+
+    for (int b = 0; b < bots; b++)
+    {
+      for (int t = 1; t < THREADS; t++)
+      {
+        assertSame(seen[0][b], seen[t][b]);
+      }
+    }
+  }
+
+  /**
+   * Concurrent producers and a polling robot: every key event added must be
+   * delivered exactly once or counted as overflow.
+   */
+  public void testNoKeyEventsLost() throws Exception
+  {
+    final StateHolder holder = StateHolder.getInstance("keys-" + System.nanoTime());
+    final int producers = THREADS - 1;
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch produced = new CountDownLatch(producers);
+    final AtomicInteger delivered = new AtomicInteger();
+
+    for (int t = 0; t < producers; t++)
+    {
+      final int thread = t;
+      pool.execute(new Runnable()
+      {
+        public void run()
+        {
+          awaitQuietly(start);
+          for (int i = 0; i < ITERATIONS; i++)
+          {
+            // distinct key codes so nothing is coalesced away
+            holder.addKeyEvent(ControllerState.KeyEvent.newBuilder().setKeyCode(thread + "-" + i).setKeyDown(true));
+            if (i % 100 == 0)
+            {
+              holder.addKeyTxtCommand("cmd" + i);
+            }
+          }
+          produced.countDown();
+        }
+      });
+    }
+
+    start.countDown();
+    while (produced.getCount() > 0)
+    {
+      ControllerState cs = holder.getControllerState();
+      if (cs != null)
+      {
+        delivered.addAndGet(cs.getKeyEventCount());
+      }
+    }
+    ControllerState rest = holder.getControllerState();
+    if (rest != null)
+    {
+      delivered.addAndGet(rest.getKeyEventCount());
+    }
+
+    assertEquals(producers * ITERATIONS, delivered.get() + holder.getKeyEventOverflowCount());
+    assertNull(holder.getControllerState());
+    assertFalse(holder.newControllerStateAvailble());
+  }
+
+  /**
+   * A parked long-poll returns as soon as a key event is queued, and returns
+   * null once its timeout passes with nothing queued.
+   */
+  public void testAwaitControllerStateWakesOnKeyEvent() throws Exception
+  {
+    final StateHolder holder = StateHolder.getInstance("poll-" + System.nanoTime());
+    assertNull(holder.awaitControllerState(20));
+
+    pool.execute(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          Thread.sleep(50);
+        }
+        catch (InterruptedException e)
+        {
+          return;
+        }
+        holder.addKeyEvent(ControllerState.KeyEvent.newBuilder().setKeyCode("38").setKeyDown(true));
+      }
+    });
+
+    long start = System.currentTimeMillis();
+    ControllerState cs = holder.awaitControllerState(10000);
+    assertNotNull(cs);
+    assertEquals(1, cs.getKeyEventCount());
+    assertTrue(System.currentTimeMillis() - start < 5000);
+  }
+
+  /**
+   * A viewer that falls behind skips straight to the newest frame.
+   */
+  public void testAwaitVideoFrameIsLatestWins() throws Exception
+  {
+    StateHolder holder = StateHolder.getInstance("video-" + System.nanoTime());
+    assertNull(holder.awaitVideoFrame(0, 10));
+
+    for (int i = 1; i <= 3; i++)
+    {
+      holder.setVideoFrame(CellbotProtos.AudioVideoFrame.newBuilder().setFrameNumber(i).build());
+    }
+
+    VideoFrame latest = holder.awaitVideoFrame(0, 1000);
+    assertEquals(3, latest.frame.getFrameNumber());
+    assertNull(holder.awaitVideoFrame(latest.sequence, 10));
+  }
+
+  /**
+   * Every update bumps the version and ETag; reads of one version share a
+   * single encoding.
+   */
+  public void testPhoneStateSnapshotIsVersionedAndEncodedOnce() throws Exception
+  {
+    StateHolder holder = StateHolder.getInstance("snapshot-" + System.nanoTime());
+    assertNull(holder.getPhoneStateSnapshot());
+
+    holder.setPhoneState(PhoneState.newBuilder().setTimestamp(1).setLightLevel(3).build());
+    PhoneStateSnapshot first = holder.getPhoneStateSnapshot();
+    assertSame(first.getJson(false), first.getJson(false));
+    assertSame(first.getBinary(), first.getBinary());
+    assertTrue(new String(first.getJson(false), "UTF-8").contains("lightLevel"));
+
+    holder.setPhoneState(PhoneState.newBuilder().setTimestamp(2).build());
+    PhoneStateSnapshot second = holder.getPhoneStateSnapshot();
+    assertEquals(first.version + 1, second.version);
+    assertFalse(first.getETag().equals(second.getETag()));
+    assertEquals(3f, second.getState().getLightLevel(), 0f);
+  }
+
+  /**
+   * A batch is one new version, merged in order, and each sample lands in the
+   * history at its own time.
+   */
+  public void testBatchIsAppliedInOrder() throws Exception
+  {
+    StateHolder holder = StateHolder.getInstance("batch-" + System.nanoTime());
+    holder.setPhoneStates(Arrays.asList(
+        PhoneState.newBuilder().setTimestamp(2000).setLightLevel(3)
+            .setAccelerometer(PhoneState.Accelerometer.newBuilder().setX(1)).build(),
+        PhoneState.newBuilder().setTimestamp(2500).setLightLevel(4).build(),
+        PhoneState.newBuilder().setTimestamp(3000)
+            .setAccelerometer(PhoneState.Accelerometer.newBuilder().setX(2)).build()));
+
+    PhoneStateSnapshot snapshot = holder.getPhoneStateSnapshot();
+    assertEquals(1, snapshot.version);
+    PhoneState state = snapshot.getState();
+    assertEquals(3000, state.getTimestamp());
+    assertEquals(2f, state.getAccelerometer().getX(), 0f);
+    assertEquals(4f, state.getLightLevel(), 0f);
+
+    int x = PhoneStateHistory.fieldIndex("accelerometer.x");
+    PhoneStateHistory.Chunk chunk = new PhoneStateHistory.Chunk(new int[] { x }, 8);
+    holder.getHistory().read(0, chunk);
+    assertEquals(3, chunk.size);
+    assertEquals(1.0, chunk.values[0][0], 0);
+    assertTrue(Double.isNaN(chunk.values[0][1]));
+    assertEquals(2.0, chunk.values[0][2], 0);
+    // spaced out by the sample timestamps, not by when they arrived
+    assertEquals(1000, chunk.times[2] - chunk.times[0]);
+  }
+
+  /**
+   * Idle bots are dropped along with their frame bytes.
+   */
+  public void testIdleBotIsEvicted() throws Exception
+  {
+    String botID = "idle-" + System.nanoTime();
+    StateHolder holder = StateHolder.getInstance(botID);
+    holder.setVideoFrame(CellbotProtos.AudioVideoFrame.newBuilder()
+        .setData(com.google.protobuf.ByteString.copyFrom(new byte[1000])).build());
+    long retained = StateHolder.getRetainedFrameBytes();
+    long evicted = StateHolder.getEvictedBotCount();
+
+    StateHolder.evictIdle(System.currentTimeMillis() + 1);
+
+    assertTrue(StateHolder.getEvictedBotCount() > evicted);
+    assertTrue(StateHolder.getRetainedFrameBytes() <= retained - 1000);
+    assertNotSame(holder, StateHolder.getInstance(botID));
+  }
+
+  /**
+   * Each thread owns one part of the phone state; with merging on, the final
+   * state must carry the last value written by every thread.
+   */
+  public void testConcurrentPhoneStateMergesAreNotLost() throws Exception
+  {
+    final StateHolder holder = StateHolder.getInstance("phone-" + System.nanoTime());
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(4);
+
+    runWriter(start, done, new Writer()
+    {
+      public void write(PhoneState.Builder ps, int i)
+      {
+        ps.setCompass(PhoneState.Compass.newBuilder().setX(i));
+      }
+    }, holder);
+    runWriter(start, done, new Writer()
+    {
+      public void write(PhoneState.Builder ps, int i)
+      {
+        ps.setAccelerometer(PhoneState.Accelerometer.newBuilder().setY(i));
+      }
+    }, holder);
+    runWriter(start, done, new Writer()
+    {
+      public void write(PhoneState.Builder ps, int i)
+      {
+        ps.setOrientation(PhoneState.Orientation.newBuilder().setRoll(i));
+      }
+    }, holder);
+    runWriter(start, done, new Writer()
+    {
+      public void write(PhoneState.Builder ps, int i)
+      {
+        ps.setLightLevel(i);
+      }
+    }, holder);
+
+    start.countDown();
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+
+    PhoneState state = holder.getPhoneState();
+    float last = ITERATIONS - 1;
+    assertEquals(last, state.getCompass().getX(), 0f);
+    assertEquals(last, state.getAccelerometer().getY(), 0f);
+    assertEquals(last, state.getOrientation().getRoll(), 0f);
+    assertEquals(last, state.getLightLevel(), 0f);
+  }
+
+  private interface Writer
+  {
+    void write(PhoneState.Builder ps, int i);
+  }
+
+  private void runWriter(final CountDownLatch start, final CountDownLatch done, final Writer writer,
+      final StateHolder holder)
+  {
+    pool.execute(new Runnable()
+    {
+      public void run()
+      {
+        awaitQuietly(start);
+        for (int i = 0; i < ITERATIONS; i++)
+        {
+          CellbotProtos.PhoneState.Builder ps = PhoneState.newBuilder().setTimestamp(i);
+          writer.write(ps, i);
+          holder.setPhoneState(ps.build());
+        }
+        done.countDown();
+      }
+    });
+  }
+
+  private static void awaitQuietly(CountDownLatch latch)
+  {
+    try
+    {
+      latch.await();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
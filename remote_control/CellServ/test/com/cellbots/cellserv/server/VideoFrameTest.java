@@ -0,0 +1,113 @@
+package com.cellbots.cellserv.server;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import com.cellbots.CellbotProtos;
+import com.google.protobuf.ByteString;
+
+/**
+ * Tests for {@link VideoFrame}.
+ */
+public class VideoFrameTest extends TestCase
+{
+  /**
+   * Frames larger than the copy chunk come out byte for byte.
+   */
+  public void testWriteDataToCopiesWholeFrame() throws Exception
+  {
+    byte[] jpeg = new byte[50000];
+    new Random(42).nextBytes(jpeg);
+    CellbotProtos.AudioVideoFrame av = CellbotProtos.AudioVideoFrame.newBuilder().setData(ByteString.copyFrom(jpeg)).build();
+    VideoFrame frame = new VideoFrame(av, 1, System.currentTimeMillis());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    frame.writeDataTo(out);
+
+    assertEquals(jpeg.length, frame.getDataSize());
+    assertTrue(Arrays.equals(jpeg, out.toByteArray()));
+  }
+
+  /**
+   * Viewers asking for about the same size share one rendition, made once.
+   */
+  public void testRenditionIsMadeOnceAndShared() throws Exception
+  {
+    VideoFrame frame = new VideoFrame(jpegFrame(640, 480), 1, System.currentTimeMillis());
+
+    int width = FrameScaler.snapWidth(150);
+    assertEquals(160, width);
+    byte[] small = frame.getRendition(width, 0);
+    assertNotNull(small);
+    assertSame(small, frame.getRendition(FrameScaler.snapWidth(160), 0));
+    assertTrue(small.length < frame.getDataSize());
+
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(small));
+    assertEquals(160, image.getWidth());
+    assertEquals(120, image.getHeight());
+
+    assertEquals(frame.getDataSize() + small.length, frame.retire());
+  }
+
+  public void testFullSizeNeedsNoRendition() throws Exception
+  {
+    VideoFrame frame = new VideoFrame(jpegFrame(64, 48), 1, System.currentTimeMillis());
+    assertNull(frame.getRendition(0, 0));
+    // the frame is already smaller than the requested width
+    assertNull(frame.getRendition(FrameScaler.snapWidth(320), 0));
+  }
+
+  public void testUnreadableFrameIsServedAsUploaded()
+  {
+    byte[] garbage = new byte[1000];
+    new Random(7).nextBytes(garbage);
+    CellbotProtos.AudioVideoFrame av = CellbotProtos.AudioVideoFrame.newBuilder().setTimestamp(1)
+        .setData(ByteString.copyFrom(garbage)).build();
+    VideoFrame frame = new VideoFrame(av, 1, System.currentTimeMillis());
+    assertNull(frame.getRendition(FrameScaler.snapWidth(80), FrameScaler.snapQuality(50)));
+    assertEquals(garbage.length, frame.retire());
+  }
+
+  public void testFrameIsServedAsUploadedWithoutImageIO() throws Exception
+  {
+    VideoFrame frame = new VideoFrame(jpegFrame(640, 480), 1, System.currentTimeMillis());
+    FrameScaler.setAvailable(false);
+    try
+    {
+      assertNull(frame.getRendition(FrameScaler.snapWidth(160), 0));
+    }
+    finally
+    {
+      FrameScaler.setAvailable(true);
+    }
+  }
+
+  private static CellbotProtos.AudioVideoFrame jpegFrame(int width, int height) throws Exception
+  {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+    Random random = new Random(1);
+    for (int y = 0; y < height; y += 8)
+    {
+      for (int x = 0; x < width; x += 8)
+      {
+        g.setColor(new Color(random.nextInt(0xFFFFFF)));
+        g.fillRect(x, y, 8, 8);
+      }
+    }
+    g.dispose();
+    ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpeg", jpeg);
+    return CellbotProtos.AudioVideoFrame.newBuilder().setTimestamp(1).setData(ByteString.copyFrom(jpeg.toByteArray()))
+        .build();
+  }
+}
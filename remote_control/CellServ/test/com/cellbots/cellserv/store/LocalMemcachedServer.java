@@ -0,0 +1,243 @@
+package com.cellbots.cellserv.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Enough of a memcached server to test {@link MemcachedStateStore} against:
+ * get, gets, set, add, cas and delete in the text protocol, over an
+ * {@link InProcessStateStore}, with a thread per connection. Flags and expiry
+ * times are accepted and ignored.
+ */
+public class LocalMemcachedServer
+{
+  private final ServerSocket       serverSocket;
+
+  private final InProcessStateStore values      = new InProcessStateStore(0);
+
+  private final Set<Socket>        connections = Collections.synchronizedSet(new HashSet<Socket>());
+
+  private volatile int             commands;
+
+  public LocalMemcachedServer() throws IOException
+  {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    Thread acceptor = new Thread("memcached-" + getPort())
+    {
+      public void run()
+      {
+        accept();
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public int getPort()
+  {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * @return the values as this server holds them
+   */
+  public InProcessStateStore getValues()
+  {
+    return values;
+  }
+
+  /**
+   * @return the number of commands served so far
+   */
+  public int getCommandCount()
+  {
+    return commands;
+  }
+
+  /**
+   * Stops listening and drops every open connection.
+   */
+  public void stop()
+  {
+    try
+    {
+      serverSocket.close();
+    }
+    catch (IOException e)
+    {
+      // already closed
+    }
+    synchronized (connections)
+    {
+      for (Socket socket : connections)
+      {
+        try
+        {
+          socket.close();
+        }
+        catch (IOException e)
+        {
+          // already closed
+        }
+      }
+      connections.clear();
+    }
+  }
+
+  private void accept()
+  {
+    while (!serverSocket.isClosed())
+    {
+      try
+      {
+        final Socket socket = serverSocket.accept();
+        if (serverSocket.isClosed())
+        {
+          // accepted while stop() was closing the listener
+          socket.close();
+          return;
+        }
+        connections.add(socket);
+        Thread handler = new Thread("memcached-conn-" + socket.getPort())
+        {
+          public void run()
+          {
+            try
+            {
+              serve(new BufferedInputStream(socket.getInputStream()), new BufferedOutputStream(socket
+                  .getOutputStream()));
+            }
+            catch (IOException e)
+            {
+              // client went away
+            }
+            finally
+            {
+              connections.remove(socket);
+              try
+              {
+                socket.close();
+              }
+              catch (IOException e)
+              {
+                // already closed
+              }
+            }
+          }
+        };
+        handler.setDaemon(true);
+        handler.start();
+      }
+      catch (IOException e)
+      {
+        // closed by stop()
+      }
+    }
+  }
+
+  private void serve(InputStream in, OutputStream out) throws IOException
+  {
+    String line;
+    while ((line = readLine(in)) != null)
+    {
+      commands++;
+      String[] parts = line.split(" ");
+      String verb = parts[0];
+      if (verb.equals("get") || verb.equals("gets"))
+      {
+        for (int i = 1; i < parts.length; i++)
+        {
+          StateStore.Entry entry = values.get(parts[i]);
+          if (entry != null)
+          {
+            write(out, "VALUE " + parts[i] + " 0 " + entry.value.length
+                + (verb.equals("gets") ? " " + entry.version : ""));
+            out.write(entry.value);
+            write(out, "");
+          }
+        }
+        write(out, "END");
+      }
+      else if (verb.equals("set") || verb.equals("add") || verb.equals("cas"))
+      {
+        // <verb> <key> <flags> <exptime> <bytes> [<cas unique>]
+        byte[] data = new byte[Integer.parseInt(parts[4])];
+        for (int off = 0; off < data.length;)
+        {
+          int n = in.read(data, off, data.length - off);
+          if (n < 0)
+          {
+            return;
+          }
+          off += n;
+        }
+        readLine(in);
+        String key = parts[1];
+        if (verb.equals("set"))
+        {
+          values.set(key, data);
+          write(out, "STORED");
+        }
+        else if (verb.equals("add"))
+        {
+          write(out, values.compareAndSet(key, null, data) ? "STORED" : "NOT_STORED");
+        }
+        else
+        {
+          StateStore.Entry expected = new StateStore.Entry(null, Long.parseLong(parts[5]));
+          if (values.compareAndSet(key, expected, data))
+            write(out, "STORED");
+          else
+            write(out, values.get(key) == null ? "NOT_FOUND" : "EXISTS");
+        }
+      }
+      else if (verb.equals("delete"))
+      {
+        boolean found = values.get(parts[1]) != null;
+        values.delete(parts[1]);
+        write(out, found ? "DELETED" : "NOT_FOUND");
+      }
+      else
+      {
+        write(out, "ERROR");
+      }
+      out.flush();
+    }
+  }
+
+  private static String readLine(InputStream in) throws IOException
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int b; (b = in.read()) != '\n';)
+    {
+      if (b < 0)
+      {
+        return null;
+      }
+      if (b != '\r')
+      {
+        sb.append((char) b);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static void write(OutputStream out, String line) throws IOException
+  {
+    for (int i = 0; i < line.length(); i++)
+    {
+      out.write(line.charAt(i));
+    }
+    out.write('\r');
+    out.write('\n');
+  }
+}
@@ -0,0 +1,244 @@
+package com.cellbots.cellserv.store;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class StateStoreTest extends TestCase
+{
+  private LocalMemcachedServer server;
+
+  private MemcachedStateStore  memcached;
+
+  protected void setUp() throws Exception
+  {
+    server = new LocalMemcachedServer();
+    memcached = new MemcachedStateStore(new InetSocketAddress("127.0.0.1", server.getPort()), 60, 2, 2000);
+  }
+
+  protected void tearDown() throws Exception
+  {
+    memcached.close();
+    server.stop();
+  }
+
+  public void testInProcessCompareAndSet() throws IOException
+  {
+    checkCompareAndSet(new InProcessStateStore(0));
+  }
+
+  public void testMemcachedCompareAndSet() throws IOException
+  {
+    checkCompareAndSet(memcached);
+  }
+
+  public void testInProcessValuesExpire() throws Exception
+  {
+    InProcessStateStore store = new InProcessStateStore(20);
+    store.set("state/a", bytes("1"));
+    assertNotNull(store.get("state/a"));
+    Thread.sleep(40);
+    assertNull(store.get("state/a"));
+    // an expired value does not block an add
+    store.set("state/b", bytes("1"));
+    Thread.sleep(40);
+    assertTrue(store.compareAndSet("state/b", null, bytes("2")));
+  }
+
+  public void testMemcachedKeysAreEscaped() throws IOException
+  {
+    String key = "state/my bot\u00e9\n";
+    memcached.set(key, bytes("x"));
+    assertEquals("x", text(memcached.get(key)));
+    assertNull(memcached.get("state/my bot"));
+    assertEquals("state/my%20bot%E9%0A", MemcachedStateStore.encodeKey(key));
+
+    StringBuilder longKey = new StringBuilder("state/");
+    for (int i = 0; i < 300; i++)
+    {
+      longKey.append('b');
+    }
+    memcached.set(longKey.toString(), bytes("long"));
+    assertEquals("long", text(memcached.get(longKey.toString())));
+    assertTrue(MemcachedStateStore.encodeKey(longKey.toString()).length() <= 250);
+  }
+
+  public void testMemcachedReconnectsAfterFailure() throws IOException
+  {
+    memcached.set("state/a", bytes("1"));
+    server.stop();
+    try
+    {
+      memcached.get("state/a");
+      fail("server is down");
+    }
+    catch (IOException expected)
+    {
+    }
+
+    LocalMemcachedServer restarted = new LocalMemcachedServer();
+    MemcachedStateStore store = new MemcachedStateStore(new InetSocketAddress("127.0.0.1", restarted.getPort()), 60,
+        1, 2000);
+    try
+    {
+      assertNull(store.get("state/a"));
+      store.set("state/a", bytes("2"));
+      assertEquals("2", text(store.get("state/a")));
+    }
+    finally
+    {
+      store.close();
+      restarted.stop();
+    }
+  }
+
+  public void testRouterKeepsABotOnOneStoreAndMovesFewBots() throws IOException
+  {
+    Map<String, InProcessStateStore> stores = new LinkedHashMap<String, InProcessStateStore>();
+    for (int i = 0; i < 4; i++)
+    {
+      stores.put("host" + i + ":11211", new InProcessStateStore(0));
+    }
+    ConsistentHashRouter router = new ConsistentHashRouter(stores);
+
+    int bots = 4000;
+    Map<StateStore, Integer> counts = new HashMap<StateStore, Integer>();
+    Map<String, StateStore> before = new HashMap<String, StateStore>();
+    for (int i = 0; i < bots; i++)
+    {
+      String bot = "bot-" + i;
+      StateStore home = router.route("state/" + bot);
+      assertSame(home, router.route("frame/" + bot));
+      before.put(bot, home);
+      Integer n = counts.get(home);
+      counts.put(home, n == null ? 1 : n + 1);
+    }
+    for (Integer n : counts.values())
+    {
+      // a fair share is 1000
+      assertTrue("share " + n, n > 700 && n < 1300);
+    }
+
+    stores.put("host4:11211", new InProcessStateStore(0));
+    ConsistentHashRouter grown = new ConsistentHashRouter(stores);
+    int moved = 0;
+    for (int i = 0; i < bots; i++)
+    {
+      StateStore home = grown.route("state/bot-" + i);
+      if (home != before.get("bot-" + i))
+      {
+        moved++;
+        // only to the new store
+        assertSame(stores.get("host4:11211"), home);
+      }
+    }
+    // about a fifth should move
+    assertTrue("moved " + moved, moved > bots / 10 && moved < bots * 3 / 10);
+
+    router.set("state/bot-1", bytes("1"));
+    assertEquals("1", text(before.get("bot-1").get("state/bot-1")));
+  }
+
+  public void testNearCacheServesRepeatReadsLocally() throws Exception
+  {
+    NearCachedStateStore cached = new NearCachedStateStore(memcached, 10000, 16);
+    cached.set("state/a", bytes("1"));
+    int start = server.getCommandCount();
+    for (int i = 0; i < 10; i++)
+    {
+      assertEquals("1", text(cached.get("state/a")));
+      assertNull(cached.get("state/missing"));
+    }
+    assertEquals(2, server.getCommandCount() - start);
+
+    // a write from elsewhere is not seen until the entry expires...
+    memcached.set("state/a", bytes("2"));
+    assertEquals("1", text(cached.get("state/a")));
+    // ...but a failed compareAndSet drops it, so a retry reads fresh
+    StateStore.Entry stale = cached.get("state/a");
+    assertFalse(cached.compareAndSet("state/a", stale, bytes("3")));
+    StateStore.Entry fresh = cached.get("state/a");
+    assertEquals("2", text(fresh));
+    assertTrue(cached.compareAndSet("state/a", fresh, bytes("3")));
+    assertEquals("3", text(cached.get("state/a")));
+  }
+
+  public void testNearCacheHoldsAtMostMaxEntries() throws IOException
+  {
+    NearCachedStateStore cached = new NearCachedStateStore(memcached, 10000, 2);
+    cached.get("state/a");
+    cached.get("state/b");
+    cached.get("state/c");
+    int start = server.getCommandCount();
+    cached.get("state/c");
+    cached.get("state/b");
+    assertEquals(0, server.getCommandCount() - start);
+    cached.get("state/a");
+    assertEquals(1, server.getCommandCount() - start);
+  }
+
+  public void testCreateParsesSpecs()
+  {
+    assertTrue(StateStores.create("local", 1000, 100) instanceof InProcessStateStore);
+    StateStore store = StateStores.create("memcached:127.0.0.1:" + server.getPort(), 1000, 0);
+    assertTrue(store instanceof MemcachedStateStore);
+    store.close();
+    store = StateStores.create("memcached:a:1,b", 1000, 50);
+    assertTrue(store instanceof NearCachedStateStore);
+    store.close();
+    try
+    {
+      StateStores.create("redis:localhost", 1000, 0);
+      fail("unknown store");
+    }
+    catch (IllegalArgumentException expected)
+    {
+    }
+  }
+
+  private static void checkCompareAndSet(StateStore store) throws IOException
+  {
+    assertNull(store.get("state/a"));
+    assertTrue(store.compareAndSet("state/a", null, bytes("1")));
+    assertFalse(store.compareAndSet("state/a", null, bytes("x")));
+
+    StateStore.Entry first = store.get("state/a");
+    assertEquals("1", text(first));
+    assertTrue(store.compareAndSet("state/a", first, bytes("2")));
+    // first is stale now
+    assertFalse(store.compareAndSet("state/a", first, bytes("x")));
+
+    StateStore.Entry second = store.get("state/a");
+    assertEquals("2", text(second));
+    assertTrue(second.version != first.version);
+
+    store.set("state/a", bytes("3"));
+    assertFalse(store.compareAndSet("state/a", second, bytes("x")));
+    assertEquals("3", text(store.get("state/a")));
+
+    store.delete("state/a");
+    assertNull(store.get("state/a"));
+    assertFalse(store.compareAndSet("state/a", second, bytes("x")));
+  }
+
+  private static byte[] bytes(String s)
+  {
+    try
+    {
+      return s.getBytes("UTF-8");
+    }
+    catch (IOException e)
+    {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static String text(StateStore.Entry entry) throws IOException
+  {
+    return entry == null ? null : new String(entry.value, "UTF-8");
+  }
+}